@@ -1,7 +1,16 @@
 package com.github.shibin;
 
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Pool;
 import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A shared, distribute lock.
@@ -10,6 +19,19 @@ abstract public class AbstractLock {
     public static final long DEFAULT_EXPIRED_TIME_MILLIS = Long.getLong("redis.lock.expired.time", 1000);
     public static final long DEFAULT_BLOCKING_TIMEOUT_MILLIS = Long.getLong("redis.lock.blocking.time", 1000);
     public static final long DEFAULT_SLEEP_TIME_MILLIS = Long.getLong("redis.lock.sleep.time", 100);
+    public static final long DEFAULT_MAX_SLEEP_TIME_MILLIS = Long.getLong("redis.lock.max.sleep.time", 1000);
+    public static final double DEFAULT_CLOCK_DRIFT_FACTOR =
+            Double.parseDouble(System.getProperty("redis.lock.clock.drift.factor", "0.01"));
+
+    /**
+     * Returned by "doTryAcquire" when the lock has been acquired.
+     */
+    protected static final long ACQUIRED = -1;
+
+    /**
+     * Returned by "doTryAcquire" when the lock is held by other client whose remaining time is unknown.
+     */
+    protected static final long UNKNOWN_TTL = -2;
 
     protected Jedis jedisClient;
     protected String lockName;
@@ -17,54 +39,99 @@ abstract public class AbstractLock {
     protected boolean isBlocking;
     protected long blockingTimeout;
     protected long sleepTime;
+    protected long maxSleepTime = DEFAULT_MAX_SLEEP_TIME_MILLIS;
+    protected long stickyTime;
+    protected double clockDriftFactor = DEFAULT_CLOCK_DRIFT_FACTOR;
+    protected AdmissionController admissionController;
+    protected ContentionProfiler contentionProfiler =
+            ContentionProfiler.DEFAULT_ENABLED ? ContentionProfiler.getDefault() : null;
+    protected AdaptiveLeasePolicy adaptiveLeasePolicy;
+    protected InvalidationTracker invalidationTracker;
+    protected Pool<Jedis> backgroundPool;
     protected RedisLock.Token token;
 
+    private final ReentrantLock clientLock = new ReentrantLock();
+    private final Object wakeup = new Object();
+    private long wakeups;
+    private final AtomicInteger localWaiters = new AtomicInteger();
+    private final AtomicReference<Lease> parkedLease = new AtomicReference<Lease>();
+    private volatile long stickyDeadline;
+
+    /**
+     * A token with the local monotonic deadline of its lease.
+     */
+    protected static class Lease {
+        private final String token;
+        private volatile long deadline;
+        private volatile long acquiredAt;
+        private volatile boolean ended;
+        private volatile ScheduledFuture<?> renewal;
+        private volatile Object holdEvent;
+
+        protected Lease(String token, long deadline) {
+            this.token = token;
+            this.deadline = deadline;
+        }
+
+        protected String getToken() {
+            return token;
+        }
+
+        /**
+         * The System.nanoTime() after which the lease may have expired in redis.
+         */
+        protected long getDeadline() {
+            return deadline;
+        }
+
+        protected void setDeadline(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
     protected static class Token {
 
-        private String localToken = null;
-        private ThreadLocal<String> threadToken;
+        private volatile Lease localLease = null;
+        private ThreadLocal<Lease> threadLease;
 
         protected Token(boolean threadLocal) {
             if (threadLocal) {
-                threadToken = new ThreadLocal<String>() {
+                threadLease = new ThreadLocal<Lease>() {
                     @Override
-                    protected String initialValue() {
+                    protected Lease initialValue() {
                         return null;
                     }
                 };
             }
         }
 
-        protected void setToken(String token) {
-            if (threadToken != null) {
-                threadToken.set(token);
+        protected void setLease(Lease lease) {
+            if (threadLease != null) {
+                threadLease.set(lease);
             } else {
-                localToken = token;
+                localLease = lease;
             }
         }
 
-        protected String getToken() {
-            if (threadToken != null) {
-                return threadToken.get();
+        protected Lease getLease() {
+            if (threadLease != null) {
+                return threadLease.get();
             }
 
-            return localToken;
+            return localLease;
+        }
+
+        protected String getToken() {
+            Lease lease = getLease();
+            return lease == null ? null : lease.getToken();
         }
 
         protected void clean() {
-            if (threadToken != null) {
-                threadToken.set(null);
-            } else {
-                localToken = null;
-            }
+            setLease(null);
         }
 
         public boolean isValid(){
-            if (threadToken != null) {
-                return threadToken.get() != null;
-            } else {
-                return localToken != null;
-            }
+            return getLease() != null;
         }
     }
 
@@ -221,72 +288,869 @@ abstract public class AbstractLock {
         this.sleepTime = sleepTime;
     }
 
+    public long getMaxSleepTime() {
+        return maxSleepTime;
+    }
+
+    /**
+     * When the remaining time of the current holder is known, the waiter sleeps until the lock expires
+     * instead of "sleepTime", but never longer than "maxSleepTime" so that an early release is noticed.
+     *
+     * @param maxSleepTime the maximum interval in ms between two attempts.
+     *                     Defaults to DEFAULT_MAX_SLEEP_TIME_MILLIS.
+     */
+    public void setMaxSleepTime(long maxSleepTime) {
+        this.maxSleepTime = maxSleepTime;
+    }
+
+    public long getStickyTime() {
+        return stickyTime;
+    }
+
+    /**
+     * Enable the sticky lease mode. For "stickyTime" ms after the lock is acquired from redis, "release" keeps
+     * the redis lease and hands it to the next "acquire" on this instance without any round trip. The lease
+     * is really released when the sticky time ends or as soon as a release sees remote clients waiting.
+     * The window is capped to half of "expiredTime" since a local requester inherits the remaining lease.
+     * Remote clients are only seen waiting when their locks are in sticky mode as well.
+     *
+     * @param stickyTime the sticky window in ms, 0 disables the sticky mode.
+     *                   Defaults to 0.
+     */
+    public void setStickyTime(long stickyTime) {
+        this.stickyTime = stickyTime;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Limit the number of threads inside "acquire", the callers above the limit get a LockRejectedException.
+     * The same controller is usually shared by many locks to get a global limit as well.
+     *
+     * @param admissionController the controller, null to admit every caller.
+     *                            Defaults to null.
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public ContentionProfiler getContentionProfiler() {
+        return contentionProfiler;
+    }
+
+    /**
+     * Record the failed attempts, the wait time and the timeouts of the contended acquires.
+     *
+     * @param contentionProfiler the profiler, null to record nothing. Defaults to ContentionProfiler.getDefault(),
+     *                           or to null when "redis.lock.profiler.enabled" is set to false.
+     */
+    public void setContentionProfiler(ContentionProfiler contentionProfiler) {
+        this.contentionProfiler = contentionProfiler;
+    }
+
+    public AdaptiveLeasePolicy getAdaptiveLeasePolicy() {
+        return adaptiveLeasePolicy;
+    }
+
+    /**
+     * Choose the lease time of each acquire from the hold times observed by the policy instead of
+     * "expiredTime", and renew the lease automatically while the lock is held. The renewals run in the
+     * background, see "setBackgroundPool".
+     *
+     * @param adaptiveLeasePolicy the policy, usually shared by many locks, null to always use "expiredTime".
+     *                            Defaults to null.
+     * @throws IllegalArgumentException if the lock does not "supportsLeaseTime"
+     */
+    public void setAdaptiveLeasePolicy(AdaptiveLeasePolicy adaptiveLeasePolicy) {
+        if (adaptiveLeasePolicy != null && !supportsLeaseTime()) {
+            throw new IllegalArgumentException(getClass().getName() + " does not support a lease time"
+                    + " and can not use an AdaptiveLeasePolicy");
+        }
+        this.adaptiveLeasePolicy = adaptiveLeasePolicy;
+    }
+
+    /**
+     * Whether "doTryAcquire" acquires the lock with the given lease time and "doExtendTo" is
+     * implemented. The locks of this package do, other locks keep "expiredTime", are extended with
+     * "doExtend" and are rejected by "setAdaptiveLeasePolicy".
+     */
+    protected boolean supportsLeaseTime() {
+        return false;
+    }
+
+    public Pool<Jedis> getBackgroundPool() {
+        return backgroundPool;
+    }
+
+    /**
+     * The renewals of an AdaptiveLeasePolicy and the releases of the sticky leases run on background
+     * threads. Without a pool they use the client of the lock, taking turns with the other commands of the
+     * lock, but the lock can not keep other code from using the same connection meanwhile: a client shared
+     * with the application requires a pool when the lock renews its leases or is sticky. Locks whose client
+     * "isClientThreadSafe" ignore it.
+     *
+     * @param backgroundPool the pool the background round trips borrow their connection from, null to use
+     *                       the client of the lock. Defaults to null.
+     */
+    public void setBackgroundPool(Pool<Jedis> backgroundPool) {
+        this.backgroundPool = backgroundPool;
+    }
+
+    public InvalidationTracker getInvalidationTracker() {
+        return invalidationTracker;
+    }
+
+    /**
+     * Let the waiters be woken up by the invalidations of the lock key instead of polling. A waiter then
+     * sleeps until the lease of the current holder ends, regardless of "maxSleepTime", unless the key
+     * changes earlier. The waiters keep polling when the tracker can not track the key.
+     *
+     * @param invalidationTracker the tracker, usually shared by all the locks of a redis server, null to poll.
+     *                            Defaults to null.
+     */
+    public void setInvalidationTracker(InvalidationTracker invalidationTracker) {
+        this.invalidationTracker = invalidationTracker;
+    }
+
+    public double getClockDriftFactor() {
+        return clockDriftFactor;
+    }
+
+    /**
+     * The local lease deadline is shortened by this fraction of the lease time, to cover the drift
+     * between the local clock and the clock of the redis server.
+     *
+     * @param clockDriftFactor the fraction of the lease time, defaults to DEFAULT_CLOCK_DRIFT_FACTOR.
+     */
+    public void setClockDriftFactor(double clockDriftFactor) {
+        this.clockDriftFactor = clockDriftFactor;
+    }
+
     public String getTokenAsString() {
         return this.token.getToken();
     }
 
+    /**
+     * Whether the lock is held and its lease has not expired, according to the local clock only.
+     * The lease starts when the acquire request is sent and is shortened by the clock drift, so
+     * this is pessimistic: the lock may still be held in redis when this returns false.
+     *
+     * @return true if the lease is still valid
+     */
+    public boolean isHeld() {
+        return remainingLeaseNanos() > 0;
+    }
+
+    /**
+     * The remaining time of the lease according to the local clock, without any round trip.
+     *
+     * @return the remaining nanos, 0 if the lock is not held or the lease has expired
+     */
+    public long remainingLeaseNanos() {
+        Lease lease = this.token.getLease();
+        if (lease == null) {
+            return 0;
+        }
+
+        return Math.max(0, lease.getDeadline() - System.nanoTime());
+    }
+
+    /**
+     * Guard to call right before committing the work done under the lock.
+     *
+     * @param minRemaining the minimum remaining time of the lease needed to commit
+     * @param unit         the unit of "minRemaining"
+     * @throws LockException if the lock is not held or its lease ends within "minRemaining"
+     */
+    public void checkLease(long minRemaining, TimeUnit unit) {
+        long remaining = remainingLeaseNanos();
+        if (remaining <= unit.toNanos(minRemaining)) {
+            throw new LockException("The lease of the lock " + lockName + " has " +
+                    TimeUnit.NANOSECONDS.toMillis(remaining) + " ms left.");
+        }
+    }
+
+    private static long toMillisRoundedUp(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+    }
+
+    /**
+     * The part of a lease of "leaseTime" ms which is safe according to the local clock.
+     */
+    private long leaseValidityNanos(long leaseTime) {
+        return TimeUnit.MILLISECONDS.toNanos(leaseTime - (long) (leaseTime * clockDriftFactor));
+    }
+
     /**
      * Acquire the lock.
      *
      * @return true if the lock is acquired, false if not blocking or timeout
      * @throws InterruptedException in case thread interrupt
+     * @throws LockRejectedException if the admission controller sheds the caller
      */
     public boolean acquire() throws InterruptedException {
-        long stopTryingTime = blockingTimeout;
+        return acquire(isBlocking, blockingTimeout);
+    }
+
+    /**
+     * Acquire the lock, overriding the "blocking" and "blockingTimeout" settings of the instance.
+     *
+     * @param blocking        whether to wait until the lock is acquired or to fail immediately
+     * @param blockingTimeout the maximum amount of time in ms to spend trying to acquire the lock
+     * @return true if the lock is acquired, false if not blocking or timeout
+     * @throws InterruptedException in case thread interrupt
+     * @throws LockRejectedException if the admission controller sheds the caller
+     */
+    public boolean acquire(boolean blocking, long blockingTimeout) throws InterruptedException {
+        AdmissionController controller = this.admissionController;
+        if (controller == null) {
+            return acquireUntil(blocking, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockingTimeout));
+        }
+
+        String name = lockName;
+        if (!controller.tryEnter(name)) {
+            throw new LockRejectedException("Too many threads are acquiring the lock named " + name);
+        }
+
+        long start = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = acquireUntil(blocking, start + TimeUnit.MILLISECONDS.toNanos(blockingTimeout));
+            return acquired;
+        } finally {
+            controller.exit(name, System.nanoTime() - start, acquired, blocking);
+        }
+    }
+
+    private boolean acquireUntil(boolean blocking, long deadline) throws InterruptedException {
 
         String tokenString = this.token.getToken();
 
         if (tokenString == null){
-            tokenString = UUID.randomUUID().toString();
+            tokenString = newToken();
         }
 
-        while (true) {
-            if (doAcquire(tokenString)) {
-                this.token.setToken(tokenString);
-                return true;
+        boolean ownsNoLease = this.token.getToken() == null;
+        ContentionProfiler profiler = this.contentionProfiler;
+        long contendedSince = 0;
+        AdaptiveLeasePolicy policy = this.adaptiveLeasePolicy;
+        long leaseTime = policy == null ? expiredTime : policy.leaseTime(lockName, expiredTime);
+        InvalidationTracker tracker = this.invalidationTracker;
+        boolean tracked = false;
+        Object event = LockEvents.beginAcquire();
+        int attempts = 0;
+        String outcome = LockEvents.ERROR;
+
+        localWaiters.incrementAndGet();
+        try {
+            while (true) {
+                if (ownsNoLease && adoptParkedLease(policy, leaseTime)) {
+                    recordWait(profiler, contendedSince, false);
+                    outcome = LockEvents.ACQUIRED;
+                    return true;
+                }
+
+                long seenWakeups = tracked ? wakeups() : 0;
+                long start = System.nanoTime();
+                attempts++;
+                long ttl = acquireOnce(tokenString, leaseTime, blocking && stickyTime > 0);
+                if (ttl == ACQUIRED) {
+                    Lease lease = new Lease(tokenString, start + leaseValidityNanos(leaseTime));
+                    startLease(lease, start, policy, leaseTime);
+                    stickyDeadline = System.nanoTime()
+                            + TimeUnit.MILLISECONDS.toNanos(Math.min(stickyTime, leaseTime / 2));
+                    recordWait(profiler, contendedSince, false);
+                    outcome = LockEvents.ACQUIRED;
+                    return true;
+                }
+
+                if (profiler != null) {
+                    profiler.recordFailedAttempt(lockName);
+                    if (contendedSince == 0) {
+                        contendedSince = start;
+                    }
+                }
+
+                // rounded up, so that the last sleep does not end before the deadline
+                long remaining = toMillisRoundedUp(deadline - System.nanoTime());
+                if (!blocking || remaining <= 0) {
+                    recordWait(profiler, contendedSince, blocking);
+                    outcome = blocking ? LockEvents.TIMED_OUT : LockEvents.NOT_ACQUIRED;
+                    return false;
+                }
+
+                if (ownsNoLease && parkedLease.get() != null) {
+                    continue;
+                }
+
+                if (tracker != null && !tracked && tracker.track(this)) {
+                    // the key may have changed before the tracking started, so try again right away
+                    tracked = true;
+                    continue;
+                }
+
+                if (tracked) {
+                    waitForInvalidation(seenWakeups, Math.min(ttl == UNKNOWN_TTL ? sleepTime : Math.max(ttl, 1),
+                            remaining));
+                } else {
+                    waitForRetry(Math.min(nextSleepTime(ttl), remaining));
+                }
+            }
+        } finally {
+            localWaiters.decrementAndGet();
+            if (tracked) {
+                tracker.untrack(this);
             }
+            LockEvents.commitAcquire(event, lockName, attempts, outcome);
+        }
+    }
 
-            if (!isBlocking || stopTryingTime <= 0) {
-                return false;
+    private void recordWait(ContentionProfiler profiler, long contendedSince, boolean timedOut) {
+        if (profiler != null && contendedSince != 0) {
+            profiler.recordWait(lockName, System.nanoTime() - contendedSince, timedOut);
+        }
+    }
+
+    /**
+     * Generate the token identifying a new owner of the lock.
+     */
+    protected String newToken() {
+        return UUID.randomUUID().toString();
+    }
+
+    private boolean isStickyWindowOpen() {
+        return stickyTime > 0 && System.nanoTime() - stickyDeadline < 0;
+    }
+
+    /**
+     * Take over the lease parked by a sticky release of this instance.
+     */
+    private boolean adoptParkedLease(AdaptiveLeasePolicy policy, long leaseTime) {
+        Lease parked = parkedLease.getAndSet(null);
+        if (parked == null) {
+            return false;
+        }
+
+        if (isStickyWindowOpen()) {
+            startLease(new Lease(parked.getToken(), parked.getDeadline()), System.nanoTime(), policy, leaseTime);
+            return true;
+        }
+
+        releaseOnce(parked.getToken());
+        return false;
+    }
+
+    private void startLease(Lease lease, long acquiredAt, AdaptiveLeasePolicy policy, long leaseTime) {
+        Lease previous = this.token.getLease();
+        if (previous != null) {
+            previous.ended = true;
+            if (!previous.getToken().equals(lease.getToken())) {
+                leaseLost(previous.getToken());
             }
+        }
+
+        lease.acquiredAt = acquiredAt;
+        lease.holdEvent = LockEvents.beginHold();
+        this.token.setLease(lease);
+        if (policy != null) {
+            scheduleRenewal(lease, leaseTime);
+        }
+    }
+
+    /**
+     * Stop renewing the lease and record its hold time.
+     */
+    private void endLease(Lease lease) {
+        lease.ended = true;
+        Object holdEvent = lease.holdEvent;
+        lease.holdEvent = null;
+        LockEvents.commitHold(holdEvent, lockName);
+        ScheduledFuture<?> renewal = lease.renewal;
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
 
-            stopTryingTime -= sleepTime;
-            Thread.sleep(sleepTime);
+        AdaptiveLeasePolicy policy = this.adaptiveLeasePolicy;
+        if (policy != null) {
+            policy.recordHoldTime(lockName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lease.acquiredAt));
         }
     }
 
+    /**
+     * Drop the lease of the holder without releasing the lock, it runs out on the server.
+     */
+    void dropLease() {
+        Lease lease = this.token.getLease();
+        if (lease == null) {
+            return;
+        }
+
+        this.token.clean();
+        endLease(lease);
+        leaseLost(lease.getToken());
+    }
+
+    /**
+     * Called when a lease ends without a release: its renewal failed, a new lease replaced it or the holder
+     * dropped it. Locks keeping state per lease forget it here, the release goes through "doRelease".
+     *
+     * @param token the token of the lease
+     */
+    protected void leaseLost(String token) {
+    }
+
+    /**
+     * Renew the lease to "leaseTime" when a third of it is left, as long as it is held.
+     */
+    private void scheduleRenewal(final Lease lease, final long leaseTime) {
+        long delay = TimeUnit.NANOSECONDS.toMillis(lease.getDeadline() - System.nanoTime()) - leaseTime / 3;
+        lease.renewal = LockTimer.scheduleRoundTrip(new Runnable() {
+            public void run() {
+                if (lease.ended) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    if (!extendInBackground(lease.getToken(), leaseTime)) {
+                        leaseLost(lease.getToken());
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    // the lease runs out, "isHeld" tells the holder
+                    leaseLost(lease.getToken());
+                    return;
+                }
+
+                extendDeadline(lease, start, leaseTime);
+                if (!lease.ended) {
+                    scheduleRenewal(lease, leaseTime);
+                }
+            }
+        }, Math.max(delay, 0));
+    }
+
+    /**
+     * Keep the lease in redis for the next local requester, it is released when the sticky window ends.
+     */
+    private void parkLease(final Lease lease) {
+        parkedLease.set(lease);
+        wakeUpWaiters();
+
+        long delay = TimeUnit.NANOSECONDS.toMillis(stickyDeadline - System.nanoTime());
+        LockTimer.scheduleRoundTrip(new Runnable() {
+            public void run() {
+                if (parkedLease.compareAndSet(lease, null)) {
+                    releaseInBackground(lease.getToken());
+                    wakeUpWaiters();
+                }
+            }
+        }, Math.max(delay, 0));
+    }
+
+    /**
+     * The interval before the next attempt: until the lease of the current holder ends when it is known,
+     * "sleepTime" otherwise.
+     */
+    private long nextSleepTime(long ttl) {
+        if (ttl == UNKNOWN_TTL) {
+            return sleepTime;
+        }
+
+        return Math.min(Math.max(ttl, 1), maxSleepTime);
+    }
+
+    /**
+     * Sleep before the next attempt unless the waiters are woken up earlier, for example when
+     * the lock is released from this instance.
+     */
+    protected void waitForRetry(long millis) throws InterruptedException {
+        synchronized (wakeup) {
+            wakeup.wait(millis);
+        }
+    }
+
+    /**
+     * Sleep until the waiters are woken up, unless they were woken up since "seenWakeups" already.
+     */
+    private void waitForInvalidation(long seenWakeups, long millis) throws InterruptedException {
+        synchronized (wakeup) {
+            if (wakeups == seenWakeups) {
+                wakeup.wait(millis);
+            }
+        }
+    }
+
+    private long wakeups() {
+        synchronized (wakeup) {
+            return wakeups;
+        }
+    }
+
+    /**
+     * Wake up the threads waiting in "acquire" so that they retry immediately.
+     */
+    protected void wakeUpWaiters() {
+        synchronized (wakeup) {
+            wakeups++;
+            wakeup.notifyAll();
+        }
+    }
+
+    /**
+     * Whether the client of the lock runs commands from many threads at once. Jedis does not, so the round
+     * trips of a lock, including the renewals and the sticky releases running in the background, are
+     * serialized unless a lock overrides it.
+     */
+    protected boolean isClientThreadSafe() {
+        return false;
+    }
+
+    private void lockClient() {
+        if (!isClientThreadSafe()) {
+            clientLock.lock();
+        }
+    }
+
+    private void unlockClient() {
+        if (!isClientThreadSafe()) {
+            clientLock.unlock();
+        }
+    }
+
+    private boolean extendInBackground(String token, long leaseTime) {
+        Pool<Jedis> pool = backgroundPool;
+        if (pool == null || isClientThreadSafe()) {
+            return extendOnce(token, leaseTime);
+        }
+
+        Jedis foreground = lendBackgroundClient(pool);
+        try {
+            return extendOnce(token, leaseTime);
+        } finally {
+            restoreClient(foreground);
+        }
+    }
+
+    private void releaseInBackground(String token) {
+        Pool<Jedis> pool = backgroundPool;
+        if (pool == null || isClientThreadSafe()) {
+            releaseOnce(token);
+            return;
+        }
+
+        Jedis foreground = lendBackgroundClient(pool);
+        try {
+            releaseOnce(token);
+        } finally {
+            restoreClient(foreground);
+        }
+    }
+
+    /**
+     * Replace the client of the lock by a connection of the pool until "restoreClient", holding the client
+     * lock meanwhile so that the other round trips of the lock keep using their own client.
+     *
+     * @return the client of the lock
+     */
+    private Jedis lendBackgroundClient(Pool<Jedis> pool) {
+        Jedis background = pool.getResource();
+        clientLock.lock();
+        Jedis foreground = jedisClient;
+        jedisClient = background;
+        return foreground;
+    }
+
+    private void restoreClient(Jedis foreground) {
+        Jedis background = jedisClient;
+        jedisClient = foreground;
+        clientLock.unlock();
+        background.close();
+    }
+
+    /**
+     * The operations are retried once with the same token after a connection error, since the first attempt
+     * may have been applied by redis before its reply was lost. The acquire retry reports the lock already
+     * holding the token as acquired, so a lost reply costs one round trip instead of a whole lease.
+     */
+    private long acquireOnce(String token, long leaseTime, boolean waiting) {
+        Object event = LockEvents.beginRoundTrip();
+        lockClient();
+        try {
+            return doTryAcquire(token, leaseTime, waiting);
+        } catch (JedisConnectionException e) {
+            resetConnection();
+            return doReacquire(token, leaseTime);
+        } finally {
+            unlockClient();
+            LockEvents.commitRoundTrip(event, lockName, "acquire");
+        }
+    }
+
+    private void releaseOnce(String token) {
+        Object event = LockEvents.beginRoundTrip();
+        lockClient();
+        try {
+            doRelease(token);
+        } catch (JedisConnectionException e) {
+            resetConnection();
+            doRelease(token);
+        } finally {
+            unlockClient();
+            LockEvents.commitRoundTrip(event, lockName, "release");
+        }
+    }
+
+    private boolean releaseIfContendedOnce(String token) {
+        Object event = LockEvents.beginRoundTrip();
+        lockClient();
+        try {
+            return releaseIfContended(token);
+        } catch (JedisConnectionException e) {
+            resetConnection();
+            return releaseIfContended(token);
+        } finally {
+            unlockClient();
+            LockEvents.commitRoundTrip(event, lockName, "releaseIfContended");
+        }
+    }
+
+    private boolean extendOnce(String token, long leaseTime) {
+        Object event = LockEvents.beginRoundTrip();
+        lockClient();
+        try {
+            return doExtendTo(token, leaseTime);
+        } catch (JedisConnectionException e) {
+            resetConnection();
+            return doExtendTo(token, leaseTime);
+        } finally {
+            unlockClient();
+            LockEvents.commitRoundTrip(event, lockName, "extend");
+        }
+    }
+
+    /**
+     * Adding time is not idempotent, so unlike "extendOnce" the call is not retried.
+     */
+    private boolean extendByOnce(String token, long additionalTime) {
+        Object event = LockEvents.beginRoundTrip();
+        lockClient();
+        try {
+            return doExtend(token, additionalTime);
+        } catch (JedisConnectionException e) {
+            resetConnection();
+            throw e;
+        } finally {
+            unlockClient();
+            LockEvents.commitRoundTrip(event, lockName, "extend");
+        }
+    }
+
+    /**
+     * Drop the connection after a connection error so that the retry runs on a new one. The pending replies
+     * are discarded with the socket, and an interrupted transaction is discarded on the new connection
+     * since jedis refuses any other command until then.
+     */
+    protected void resetConnection() {
+        if (jedisClient == null) {
+            return;
+        }
+
+        Client client = jedisClient.getClient();
+        boolean inMulti = client.isInMulti();
+        jedisClient.disconnect();
+        jedisClient.resetState();
+
+        if (inMulti) {
+            client.discard();
+            try {
+                client.getStatusCodeReply();
+            } catch (JedisDataException e) {
+                // no transaction on the new connection
+            }
+        }
+    }
+
+    /**
+     * Try to acquire the lock once with a lease of "expiredTime" ms.
+     *
+     * @param token the token identifying the owner
+     * @return true if the lock is acquired
+     */
     abstract protected boolean doAcquire(String token);
 
+    /**
+     * Try to acquire the lock once with a lease of "leaseTime" ms instead of "expiredTime", as chosen by the
+     * AdaptiveLeasePolicy, telling how long the current holder keeps the lock when it fails. Locks overriding
+     * it return true from "supportsLeaseTime", other locks acquire with "doAcquire(String)".
+     *
+     * The attempt must succeed when the lock already holds the token, refreshing its lease: an attempt
+     * whose reply was lost is retried with the same token by "doReacquire".
+     *
+     * @param token     the token identifying the owner
+     * @param leaseTime the time to live of the lock in ms
+     * @return ACQUIRED if the lock is acquired, otherwise the remaining time in ms of the current holder
+     * or UNKNOWN_TTL if it is unknown.
+     */
+    protected long doTryAcquire(String token, long leaseTime) {
+        return doAcquire(token) ? ACQUIRED : UNKNOWN_TTL;
+    }
+
+    /**
+     * Try to acquire the lock once, registering the caller as a remote waiter if the attempt fails, so that
+     * a sticky holder releases the lock for it, see "releaseIfContended". Only the blocking acquires of locks
+     * in sticky mode register, locks unable to register ignore "waiting".
+     *
+     * @param token     the token identifying the owner
+     * @param leaseTime the time to live of the lock in ms
+     * @param waiting   whether a failed attempt registers the caller as a waiter
+     * @return see "doTryAcquire(String, long)"
+     */
+    protected long doTryAcquire(String token, long leaseTime, boolean waiting) {
+        return doTryAcquire(token, leaseTime);
+    }
+
+    /**
+     * Retry an attempt whose outcome is unknown after a connection error, see "doTryAcquire(String, long)".
+     * Locks whose "doTryAcquire" fails when the lock already holds the token override it.
+     *
+     * @param token     the token sent by the failed attempt
+     * @param leaseTime the time to live of the lock in ms
+     * @return see "doTryAcquire(String, long)"
+     */
+    protected long doReacquire(String token, long leaseTime) {
+        return doTryAcquire(token, leaseTime);
+    }
+
     /**
      * Releases the already acquired lock
      */
     public void release() {
-        String tokenString = this.token.getToken();
+        Lease lease = this.token.getLease();
 
-        if (tokenString == null){
+        if (lease == null){
             throw new LockException("The lock is not acquired or already released.");
         }
         this.token.clean();
+        endLease(lease);
+
+        String tokenString = lease.getToken();
+        if (isStickyWindowOpen() && (localWaiters.get() > 0 || !releaseIfContendedOnce(tokenString))) {
+            parkLease(lease);
+            return;
+        }
 
-        doRelease(tokenString);
+        releaseOnce(tokenString);
+        wakeUpWaiters();
     }
 
     abstract protected void doRelease(String token);
 
     /**
-     * Extend the living time for an already acquired lock.
+     * Called by a sticky release when no local thread is waiting for the lock: release the lock in redis only
+     * if remote clients are waiting for it. Locks unable to tell keep the lease until the sticky window ends.
+     *
+     * @param token the token identifying the owner
+     * @return true if the lock has been released, false if the lease is kept
+     */
+    protected boolean releaseIfContended(String token) {
+        return false;
+    }
+
+    /**
+     * Extend the living time for an already acquired lock, to "additionalTime" ms after the end of the
+     * current lease according to the local clock.
      *
      * @param additionalTime the additional time to extern
      * @return true if extend success otherwise false.
      */
     public boolean extend(long additionalTime) {
-        String tokenString = this.token.getToken();
-        if (tokenString == null){
+        Lease lease = this.token.getLease();
+        if (lease == null){
+            throw new LockException("The lock is not acquired or already released.");
+        }
+
+        Object event = LockEvents.beginExtend();
+        boolean extended = false;
+        try {
+            long start = System.nanoTime();
+            // the lease is extended to an absolute time to live when the lock supports it, so that the retry
+            // is harmless
+            long leaseTime = toMillisRoundedUp(Math.max(0, lease.getDeadline() - start)) + additionalTime;
+            boolean held = supportsLeaseTime()
+                    ? extendOnce(lease.getToken(), leaseTime)
+                    : extendByOnce(lease.getToken(), additionalTime);
+            if (!held) {
+                return false;
+            }
+
+            extendDeadline(lease, start, leaseTime);
+            extended = true;
+            return true;
+        } finally {
+            LockEvents.commitExtend(event, lockName, additionalTime, extended);
+        }
+    }
+
+    /**
+     * Renew the lease to "leaseTime" ms from now. Unlike "extend", which adds to the remaining lease, the time
+     * to live of a lease renewed periodically stays bounded. The local deadline is reset to "leaseTime" from
+     * the request.
+     *
+     * @param leaseTime the time to live of the lock in ms
+     * @return true if the lock is still held
+     * @throws UnsupportedOperationException if the lock does not "supportsLeaseTime"
+     */
+    public boolean renew(long leaseTime) {
+        Lease lease = this.token.getLease();
+        if (lease == null){
             throw new LockException("The lock is not acquired or already released.");
         }
 
-        return doExtend(tokenString, additionalTime);
+        Object event = LockEvents.beginExtend();
+        boolean renewed = false;
+        try {
+            long start = System.nanoTime();
+            if (!extendOnce(lease.getToken(), leaseTime)) {
+                return false;
+            }
+
+            lease.setDeadline(start + leaseValidityNanos(leaseTime));
+            renewed = true;
+            return true;
+        } finally {
+            LockEvents.commitExtend(event, lockName, leaseTime, renewed);
+        }
+    }
+
+    private void extendDeadline(Lease lease, long start, long leaseTime) {
+        long deadline = start + leaseValidityNanos(leaseTime);
+        if (deadline - lease.getDeadline() > 0) {
+            lease.setDeadline(deadline);
+        }
     }
 
+    /**
+     * Extend the lease of the lock holding the token by "additionalTime" ms.
+     *
+     * @param token          the token identifying the owner
+     * @param additionalTime the time to add to the lease in ms
+     * @return true if the lock holds the token
+     */
     abstract protected boolean doExtend(final String token, long additionalTime);
+
+    /**
+     * Make the lock holding the token live at least "leaseTime" ms from now, a longer remaining time is kept.
+     * The call is retried once after a connection error, so it must be idempotent: setting the time to live
+     * instead of adding to it. Locks overriding it return true from "supportsLeaseTime".
+     *
+     * @param token     the token identifying the owner
+     * @param leaseTime the minimum time to live of the lock in ms
+     * @return true if the lock holds the token
+     */
+    protected boolean doExtendTo(final String token, long leaseTime) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support a lease time");
+    }
 }
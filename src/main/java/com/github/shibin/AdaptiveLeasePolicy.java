@@ -0,0 +1,132 @@
+package com.github.shibin;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Derives the lease time of each acquire from the hold times observed for the same lock name.
+ *
+ * The lease time is a high percentile of the recent hold times plus a margin, within bounds. Until
+ * enough hold times are known the default lease time of the lock ("expiredTime") is used. The locks
+ * using a policy renew their lease automatically when a hold runs past the prediction, so a short
+ * lease only costs extend commands for the unusually long holds, while a crashed holder blocks the
+ * others for a short time only.
+ *
+ * The hold times of at most "maxLocks" names are tracked, the other names keep the default lease time.
+ */
+public class AdaptiveLeasePolicy {
+    public static final double DEFAULT_PERCENTILE =
+            Double.parseDouble(System.getProperty("redis.lock.adaptive.percentile", "0.99"));
+    public static final long DEFAULT_MARGIN_MILLIS = Long.getLong("redis.lock.adaptive.margin", 100);
+    public static final long DEFAULT_MIN_LEASE_MILLIS = Long.getLong("redis.lock.adaptive.min.lease", 100);
+    public static final long DEFAULT_MAX_LEASE_MILLIS = Long.getLong("redis.lock.adaptive.max.lease", 60000);
+    public static final int DEFAULT_MAX_LOCKS = Integer.getInteger("redis.lock.adaptive.max.locks", 10000);
+
+    static final int SAMPLES = 64;
+    static final int MIN_SAMPLES = 8;
+
+    /**
+     * The last SAMPLES hold times of a lock name and the lease time derived from them.
+     */
+    private class HoldTimes {
+        private final long[] samples = new long[SAMPLES];
+        private int count;
+        private int next;
+        private volatile long leaseTime = -1;
+
+        synchronized void record(long holdTime) {
+            samples[next] = holdTime;
+            next = (next + 1) % SAMPLES;
+            if (count < SAMPLES) {
+                count++;
+            }
+
+            if (count >= MIN_SAMPLES) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                long predicted = sorted[Math.min(count - 1, (int) Math.ceil(count * percentile) - 1)];
+                leaseTime = Math.max(minLeaseTime, Math.min(maxLeaseTime, predicted + margin));
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, HoldTimes> holdTimes = new ConcurrentHashMap<String, HoldTimes>();
+    private final double percentile;
+    private final long margin;
+    private final long minLeaseTime;
+    private final long maxLeaseTime;
+    private final int maxLocks;
+
+    public AdaptiveLeasePolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MARGIN_MILLIS, DEFAULT_MIN_LEASE_MILLIS, DEFAULT_MAX_LEASE_MILLIS,
+                DEFAULT_MAX_LOCKS);
+    }
+
+    /**
+     * @param percentile   the percentile of the hold times covered by the lease, e.g. 0.99
+     * @param margin       the ms added to the percentile
+     * @param minLeaseTime the minimum lease time in ms
+     * @param maxLeaseTime the maximum lease time in ms
+     * @param maxLocks     the maximum number of lock names whose hold times are tracked
+     */
+    public AdaptiveLeasePolicy(double percentile, long margin, long minLeaseTime, long maxLeaseTime, int maxLocks) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("The percentile must be in (0, 1]");
+        }
+        if (minLeaseTime <= 0 || minLeaseTime > maxLeaseTime) {
+            throw new IllegalArgumentException("Invalid lease time bounds " + minLeaseTime + ", " + maxLeaseTime);
+        }
+
+        this.percentile = percentile;
+        this.margin = margin;
+        this.minLeaseTime = minLeaseTime;
+        this.maxLeaseTime = maxLeaseTime;
+        this.maxLocks = maxLocks;
+    }
+
+    /**
+     * The lease time for the next acquire of the lock.
+     *
+     * @param lockName         the name of the lock
+     * @param defaultLeaseTime the lease time in ms to use while the hold times are unknown
+     * @return the lease time in ms
+     */
+    public long leaseTime(String lockName, long defaultLeaseTime) {
+        HoldTimes times = holdTimes.get(lockName);
+        if (times == null || times.leaseTime < 0) {
+            return defaultLeaseTime;
+        }
+
+        return times.leaseTime;
+    }
+
+    /**
+     * Record how long the lock has been held.
+     *
+     * @param lockName the name of the lock
+     * @param holdTime the hold time in ms
+     */
+    public void recordHoldTime(String lockName, long holdTime) {
+        HoldTimes times = holdTimes.get(lockName);
+        if (times == null) {
+            if (holdTimes.size() >= maxLocks) {
+                return;
+            }
+            HoldTimes created = new HoldTimes();
+            times = holdTimes.putIfAbsent(lockName, created);
+            if (times == null) {
+                times = created;
+            }
+        }
+
+        times.record(holdTime);
+    }
+
+    /**
+     * Forget the hold times of the lock, e.g. when its workload changes.
+     */
+    public void reset(String lockName) {
+        holdTimes.remove(lockName);
+    }
+}
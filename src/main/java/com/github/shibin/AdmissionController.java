@@ -0,0 +1,205 @@
+package com.github.shibin;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of threads concurrently inside "acquire", per lock name and for all the locks sharing
+ * this controller. Excess callers are rejected immediately instead of polling redis.
+ *
+ * The limit of each lock adapts with AIMD from the acquire latency of that lock only: an acquire done
+ * within "targetLatency" raises the limit by 1/limit (about one per limit's worth of acquires), a slower
+ * or timed out acquire multiplies it by "backoffRatio", at most once per "targetLatency" so that a burst
+ * of slow acquires counts as one congestion signal. A non blocking attempt finding the lock taken says
+ * nothing about the latency and leaves the limit as is. The global limit is a fixed cap, so a hot lock
+ * never sheds the callers of the other locks.
+ *
+ * The state of a lock is kept while its limit is below the maximum, and dropped once the limit has
+ * recovered and no thread is inside "acquire" for that lock, so the memory stays bounded by the number
+ * of busy or congested locks.
+ */
+public class AdmissionController {
+    public static final int DEFAULT_GLOBAL_LIMIT = Integer.getInteger("redis.lock.admission.global.limit", 1000);
+    public static final int DEFAULT_LOCK_LIMIT = Integer.getInteger("redis.lock.admission.lock.limit", 64);
+    public static final long DEFAULT_TARGET_LATENCY_MILLIS = Long.getLong("redis.lock.admission.target.latency", 100);
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    static class Limit {
+        private final int minLimit;
+        private final int maxLimit;
+        private double limit;
+        private int inFlight;
+        private long lastDecrease;
+        private boolean decreased;
+        private boolean retired;
+
+        Limit(int initialLimit, int minLimit, int maxLimit) {
+            this.limit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        synchronized boolean tryEnter() {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void exit() {
+            inFlight--;
+        }
+
+        /**
+         * @param fast           whether the acquire met the latency target
+         * @param backoffRatio   the ratio applied to the limit on a slow acquire
+         * @param windowNanos    the minimum time between two decreases
+         * @param now            the current System.nanoTime()
+         */
+        synchronized void exit(boolean fast, double backoffRatio, long windowNanos, long now) {
+            inFlight--;
+            if (fast) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            } else if (!decreased || now - lastDecrease >= windowNanos) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecrease = now;
+                decreased = true;
+            }
+        }
+
+        synchronized boolean isAtMaximum() {
+            return limit >= maxLimit;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+    }
+
+    private final Limit globalLimit;
+    private final ConcurrentMap<String, Limit> lockLimits = new ConcurrentHashMap<String, Limit>();
+    private final int lockLimit;
+    private final long targetLatencyNanos;
+    private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+    public AdmissionController() {
+        this(DEFAULT_GLOBAL_LIMIT, DEFAULT_LOCK_LIMIT, DEFAULT_TARGET_LATENCY_MILLIS);
+    }
+
+    /**
+     * @param globalLimit   the maximum number of threads inside "acquire" for all the locks
+     * @param lockLimit     the initial and maximum number of threads inside "acquire" for one lock name
+     * @param targetLatency the acquire latency in ms above which the limit of a lock is decreased, and the
+     *                      minimum time between two decreases
+     */
+    public AdmissionController(int globalLimit, int lockLimit, long targetLatency) {
+        this.globalLimit = new Limit(globalLimit, 1, globalLimit);
+        this.lockLimit = lockLimit;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Enter "acquire" for the lock.
+     *
+     * @param lockName the name of the lock
+     * @return false if the caller must be shed
+     */
+    public boolean tryEnter(String lockName) {
+        if (!globalLimit.tryEnter()) {
+            return false;
+        }
+
+        while (true) {
+            Limit limit = lockLimits.get(lockName);
+            if (limit == null) {
+                Limit created = new Limit(lockLimit, 1, lockLimit);
+                limit = lockLimits.putIfAbsent(lockName, created);
+                if (limit == null) {
+                    limit = created;
+                }
+            }
+
+            synchronized (limit) {
+                if (limit.retired) {
+                    continue;
+                }
+                if (limit.tryEnter()) {
+                    return true;
+                }
+            }
+
+            globalLimit.exit();
+            return false;
+        }
+    }
+
+    /**
+     * Leave a blocking "acquire" for the lock, after a successful "tryEnter".
+     *
+     * @param lockName     the name of the lock
+     * @param latencyNanos the time spent in "acquire"
+     * @param acquired     whether the lock has been acquired
+     */
+    public void exit(String lockName, long latencyNanos, boolean acquired) {
+        exit(lockName, latencyNanos, acquired, true);
+    }
+
+    /**
+     * Leave "acquire" for the lock, after a successful "tryEnter".
+     *
+     * @param lockName     the name of the lock
+     * @param latencyNanos the time spent in "acquire"
+     * @param acquired     whether the lock has been acquired
+     * @param blocking     whether the acquire waited for the lock, a non blocking one which did not get
+     *                     the lock leaves the limit as is
+     */
+    public void exit(String lockName, long latencyNanos, boolean acquired, boolean blocking) {
+        Limit limit = lockLimits.get(lockName);
+        if (limit != null) {
+            synchronized (limit) {
+                if (!blocking && !acquired) {
+                    limit.exit();
+                } else {
+                    limit.exit(acquired && latencyNanos <= targetLatencyNanos, backoffRatio, targetLatencyNanos,
+                            System.nanoTime());
+                }
+                if (limit.getInFlight() == 0 && limit.isAtMaximum()) {
+                    limit.retired = true;
+                    lockLimits.remove(lockName, limit);
+                }
+            }
+        }
+
+        globalLimit.exit();
+    }
+
+    public int getGlobalLimit() {
+        return globalLimit.getLimit();
+    }
+
+    public int getGlobalInFlight() {
+        return globalLimit.getInFlight();
+    }
+
+    /**
+     * The current limit of the lock, the initial limit if it has no state.
+     */
+    public int getLockLimit(String lockName) {
+        Limit limit = lockLimits.get(lockName);
+        return limit == null ? lockLimit : limit.getLimit();
+    }
+}
@@ -0,0 +1,207 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Claims the first free lock among a set of interchangeable lock names (slots, partitions...) with one
+ * script call, instead of one round trip per name.
+ *
+ * Each attempt starts from the next offset of a rotation beginning at a random position, so that the
+ * clients do not all compete for the first names. "getAcquiredName" tells which name was claimed.
+ * A failed attempt waits until the earliest lease of the held names ends.
+ *
+ * In a redis cluster the names must hash to the same slot, e.g. "{slots}:0", "{slots}:1"...
+ */
+public class AnyOfRedisLock extends AbstractLock {
+
+    /**
+     * Returns {index, -1} when the name at "index" (1-based) is already held with the token, or acquired,
+     * otherwise {0, ttl} where ttl is the smallest remaining ms of the holders or -2 if none has an expiry.
+     * The names held with the token are looked for first, so that a retry never claims a second name.
+     */
+    static final String LUA_ACQUIRE_ANY_SCRIPT = "" +
+            "local n = #KEYS \n" +
+            "for index = 1, n do \n" +
+            "    if redis.call('get', KEYS[index]) == ARGV[1] then \n" +
+            "        redis.call('pexpire', KEYS[index], ARGV[2]) \n" +
+            "        return {index, -1} \n" +
+            "    end \n" +
+            "end \n" +
+            "local offset = tonumber(ARGV[3]) \n" +
+            "local minTtl = -2 \n" +
+            "for i = 0, n - 1 do \n" +
+            "    local index = (offset + i) % n + 1 \n" +
+            "    if redis.call('set', KEYS[index], ARGV[1], 'NX', 'PX', ARGV[2]) then \n" +
+            "        return {index, -1} \n" +
+            "    end \n" +
+            "    local ttl = redis.call('pttl', KEYS[index]) \n" +
+            "    if ttl >= 0 and (minTtl < 0 or ttl < minTtl) then \n" +
+            "        minTtl = ttl \n" +
+            "    end \n" +
+            "end \n" +
+            "return {0, minTtl} \n";
+
+    private final List<String> lockNames;
+    private final AtomicInteger offset;
+    private final ConcurrentMap<String, String> acquiredNames = new ConcurrentHashMap<String, String>();
+    // the offset of an attempt whose reply may be lost, reused by "doReacquire"
+    private final ConcurrentMap<String, Integer> pendingOffsets = new ConcurrentHashMap<String, Integer>();
+
+    private String acquireSHA;
+    private String releaseSHA;
+    private String extendSHA;
+    private String extendToSHA;
+
+    /**
+     * @param jedisClient jedis client instance
+     * @param lockName    the name of the set, used for the admission control and the profiling only
+     * @param lockNames   the names of the interchangeable locks
+     */
+    public AnyOfRedisLock(Jedis jedisClient, String lockName, List<String> lockNames) {
+        this(jedisClient, lockName, lockNames, DEFAULT_EXPIRED_TIME_MILLIS);
+    }
+
+    public AnyOfRedisLock(Jedis jedisClient, String lockName, List<String> lockNames, long expiredTime) {
+        this(jedisClient, lockName, lockNames, expiredTime, true, DEFAULT_BLOCKING_TIMEOUT_MILLIS,
+                DEFAULT_SLEEP_TIME_MILLIS, true);
+    }
+
+    public AnyOfRedisLock(Jedis jedisClient, String lockName, List<String> lockNames, long expiredTime,
+                          boolean blocking, long blockingTimeout, long sleepTime, boolean threadLocal) {
+        super(jedisClient, lockName, expiredTime, blocking, blockingTimeout, sleepTime, threadLocal);
+
+        if (lockNames.isEmpty()) {
+            throw new IllegalArgumentException("At least one lock name is required");
+        }
+        this.lockNames = Collections.unmodifiableList(new ArrayList<String>(lockNames));
+        this.offset = new AtomicInteger(new Random().nextInt(lockNames.size()));
+    }
+
+    public List<String> getLockNames() {
+        return lockNames;
+    }
+
+    /**
+     * The name claimed by the current owner.
+     *
+     * @return the name, null if the lock is not held
+     */
+    public String getAcquiredName() {
+        String token = getTokenAsString();
+        return token == null ? null : acquiredNames.get(token);
+    }
+
+    private void registerScripts() {
+        acquireSHA = jedisClient.scriptLoad(LUA_ACQUIRE_ANY_SCRIPT);
+        releaseSHA = jedisClient.scriptLoad(RedisLuaLock.LUA_RELEASE_SCRIPT);
+        extendSHA = jedisClient.scriptLoad(RedisLuaLock.LUA_EXTEND_SCRIPT);
+        extendToSHA = jedisClient.scriptLoad(RedisLuaLock.LUA_EXTEND_TO_SCRIPT);
+
+        if (acquireSHA == null || releaseSHA == null || extendSHA == null || extendToSHA == null) {
+            throw new LockException("Failed to register the LUA script");
+        }
+    }
+
+    private int nextOffset() {
+        int next = offset.getAndIncrement() % lockNames.size();
+        return next < 0 ? next + lockNames.size() : next;
+    }
+
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
+    @Override
+    protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
+        return acquireFrom(token, leaseTime, nextOffset());
+    }
+
+    /**
+     * Retry from the offset of the attempt whose reply was lost.
+     */
+    @Override
+    protected long doReacquire(String token, long leaseTime) {
+        Integer pending = pendingOffsets.remove(token);
+        return acquireFrom(token, leaseTime, pending != null ? pending : nextOffset());
+    }
+
+    private long acquireFrom(String token, long leaseTime, int offset) {
+        if (acquireSHA == null) {
+            registerScripts();
+        }
+
+        List<String> args = new ArrayList<String>(3);
+        args.add(token);
+        args.add(String.valueOf(leaseTime));
+        args.add(String.valueOf(offset));
+
+        pendingOffsets.put(token, offset);
+        List result = (List) jedisClient.evalsha(acquireSHA, lockNames, args);
+        pendingOffsets.remove(token);
+        long index = (Long) result.get(0);
+        if (index > 0) {
+            acquiredNames.put(token, lockNames.get((int) index - 1));
+            return ACQUIRED;
+        }
+
+        return (Long) result.get(1);
+    }
+
+    @Override
+    protected void doRelease(String token) {
+        String name = acquiredNames.remove(token);
+        if (name == null) {
+            return;
+        }
+
+        if (releaseSHA == null) {
+            registerScripts();
+        }
+
+        jedisClient.evalsha(releaseSHA, 1, name, token);
+    }
+
+    @Override
+    protected boolean doExtend(final String token, long additionalTime) {
+        String name = acquiredNames.get(token);
+        if (name == null) {
+            return false;
+        }
+
+        if (extendSHA == null) {
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(extendSHA, 1, name, token, String.valueOf(additionalTime));
+        return Long.valueOf(1).equals(result);
+    }
+
+    @Override
+    protected boolean doExtendTo(final String token, long leaseTime) {
+        String name = acquiredNames.get(token);
+        if (name == null) {
+            return false;
+        }
+
+        if (extendToSHA == null) {
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(extendToSHA, 1, name, token, String.valueOf(leaseTime));
+        return Long.valueOf(1).equals(result);
+    }
+}
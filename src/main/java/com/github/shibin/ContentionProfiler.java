@@ -0,0 +1,255 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the most contended lock names with a bounded memory, whatever the number of lock names.
+ *
+ * Each metric keeps the top "capacity" lock names with the space-saving algorithm: a name which is not
+ * tracked replaces the name with the smallest count and inherits that count as its error, so the counts
+ * are over-estimated by at most "error" and any name whose real count exceeds total/capacity is tracked.
+ *
+ * Only the contended acquires are recorded: each failed attempt, then the wait time and the timeout of
+ * the acquire once it ends. The uncontended path costs nothing.
+ *
+ * The lock names are spread over stripes, each one a summary of "capacity / stripes" names with its own
+ * monitor, so that the contended acquires of different locks rarely wait for each other and an eviction
+ * scans a single stripe. The locks record into the default profiler unless "redis.lock.profiler.enabled"
+ * is set to false.
+ */
+public class ContentionProfiler {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("redis.lock.profiler.capacity", 128);
+    public static final int DEFAULT_STRIPES = Integer.getInteger("redis.lock.profiler.stripes", 8);
+    public static final boolean DEFAULT_ENABLED =
+            Boolean.parseBoolean(System.getProperty("redis.lock.profiler.enabled", "true"));
+
+    /**
+     * The minimum number of lock names tracked by a stripe of the constructors choosing the stripes.
+     */
+    private static final int MIN_STRIPE_CAPACITY = 16;
+
+    private static final ContentionProfiler DEFAULT = new ContentionProfiler(DEFAULT_CAPACITY);
+
+    public enum Metric {
+        /**
+         * The number of attempts finding the lock held by someone else.
+         */
+        FAILED_ATTEMPTS,
+        /**
+         * The total time in nanos spent by the contended acquires, successful or not.
+         */
+        WAIT_TIME,
+        /**
+         * The number of acquires giving up after "blockingTimeout".
+         */
+        TIMEOUTS
+    }
+
+    /**
+     * A tracked lock name, its real count is between "count - error" and "count".
+     */
+    public static class Entry {
+        private final String lockName;
+        private final long count;
+        private final long error;
+
+        Entry(String lockName, long count, long error) {
+            this.lockName = lockName;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getLockName() {
+            return lockName;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return lockName + "=" + count + (error > 0 ? "(-" + error + ")" : "");
+        }
+    }
+
+    private static class Counter {
+        private final String lockName;
+        private long count;
+        private long error;
+
+        Counter(String lockName, long count, long error) {
+            this.lockName = lockName;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The space-saving summary of one stripe of one metric.
+     */
+    private static class Summary {
+        private final int capacity;
+        private final Map<String, Counter> counters;
+
+        Summary(int capacity) {
+            this.capacity = capacity;
+            this.counters = new HashMap<String, Counter>(capacity * 2);
+        }
+
+        synchronized void add(String lockName, long weight) {
+            Counter counter = counters.get(lockName);
+            if (counter != null) {
+                counter.count += weight;
+                return;
+            }
+
+            if (counters.size() < capacity) {
+                counters.put(lockName, new Counter(lockName, weight, 0));
+                return;
+            }
+
+            Counter min = null;
+            for (Counter candidate : counters.values()) {
+                if (min == null || candidate.count < min.count) {
+                    min = candidate;
+                }
+            }
+            counters.remove(min.lockName);
+            counters.put(lockName, new Counter(lockName, min.count + weight, min.count));
+        }
+
+        synchronized List<Entry> snapshot() {
+            List<Entry> entries = new ArrayList<Entry>(counters.size());
+            for (Counter counter : counters.values()) {
+                entries.add(new Entry(counter.lockName, counter.count, counter.error));
+            }
+            return entries;
+        }
+
+        synchronized void reset() {
+            counters.clear();
+        }
+    }
+
+    private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.count < b.count ? 1 : (a.count == b.count ? 0 : -1);
+        }
+    };
+
+    private final Summary[] failedAttempts;
+    private final Summary[] waitTime;
+    private final Summary[] timeouts;
+
+    public ContentionProfiler() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of lock names tracked by each metric, striped by "DEFAULT_STRIPES"
+     *                 stripes of at least 16 names
+     */
+    public ContentionProfiler(int capacity) {
+        this(capacity, Math.max(1, Math.min(DEFAULT_STRIPES, capacity / MIN_STRIPE_CAPACITY)));
+    }
+
+    /**
+     * @param capacity the number of lock names tracked by each metric
+     * @param stripes  the number of stripes sharing the capacity
+     */
+    public ContentionProfiler(int capacity, int stripes) {
+        if (stripes <= 0 || capacity < stripes) {
+            throw new IllegalArgumentException("The capacity must be at least the number of stripes");
+        }
+
+        this.failedAttempts = summaries(capacity, stripes);
+        this.waitTime = summaries(capacity, stripes);
+        this.timeouts = summaries(capacity, stripes);
+    }
+
+    private static Summary[] summaries(int capacity, int stripes) {
+        Summary[] summaries = new Summary[stripes];
+        for (int i = 0; i < stripes; i++) {
+            summaries[i] = new Summary((capacity + stripes - 1 - i) / stripes);
+        }
+        return summaries;
+    }
+
+    private static Summary stripeOf(Summary[] summaries, String lockName) {
+        int h = lockName.hashCode();
+        h ^= (h >>> 16);
+        return summaries[(h & 0x7fffffff) % summaries.length];
+    }
+
+    /**
+     * The profiler shared by the locks which enable profiling with it.
+     */
+    public static ContentionProfiler getDefault() {
+        return DEFAULT;
+    }
+
+    public void recordFailedAttempt(String lockName) {
+        stripeOf(failedAttempts, lockName).add(lockName, 1);
+    }
+
+    /**
+     * Record the end of a contended acquire.
+     *
+     * @param lockName  the name of the lock
+     * @param waitNanos the time spent in the acquire
+     * @param timedOut  whether the acquire gave up
+     */
+    public void recordWait(String lockName, long waitNanos, boolean timedOut) {
+        stripeOf(waitTime, lockName).add(lockName, waitNanos);
+        if (timedOut) {
+            stripeOf(timeouts, lockName).add(lockName, 1);
+        }
+    }
+
+    private Summary[] summaries(Metric metric) {
+        switch (metric) {
+            case FAILED_ATTEMPTS:
+                return failedAttempts;
+            case WAIT_TIME:
+                return waitTime;
+            default:
+                return timeouts;
+        }
+    }
+
+    /**
+     * The most contended lock names for the metric, the highest count first.
+     *
+     * @param metric the metric
+     * @param k      the maximum number of entries
+     */
+    public List<Entry> top(Metric metric, int k) {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Summary summary : summaries(metric)) {
+            entries.addAll(summary.snapshot());
+        }
+        Collections.sort(entries, BY_COUNT);
+        return entries.size() > k ? new ArrayList<Entry>(entries.subList(0, k)) : entries;
+    }
+
+    /**
+     * Forget everything recorded so far.
+     */
+    public void reset() {
+        for (Metric metric : Metric.values()) {
+            for (Summary summary : summaries(metric)) {
+                summary.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.github.shibin;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Wakes up the threads waiting for a lock as soon as redis reports a change of the lock key, with
+ * server assisted client side caching (redis 6+), instead of waiting for the next poll.
+ *
+ * The tracker owns three connections: a subscriber of "__redis__:invalidate", and two control connections
+ * enabling in turn 'CLIENT TRACKING ON REDIRECT subscriber BCAST PREFIX key...' for the keys being waited
+ * for. The invalidations are pushed on any write of the keys, including their expiry, so the waiters also
+ * notice leases which are not released, without any change to the release scripts.
+ *
+ * Prefixes can not be removed from a tracking client, so a change of the keys enables the tracking of
+ * all the keys on the idle control connection before switching it off on the other one: the keys stay
+ * tracked during the switch. The changes are applied in batches by a background thread, a batch holding
+ * all the keys tracked or untracked during the previous update, and the waiters of the new keys are woken
+ * up once their tracking is on, since their key may have changed before. Redis rejects overlapping
+ * prefixes, so a key starting with another tracked key, such as "order:12" with "order:1", is covered by
+ * the shorter prefix. A prefix also matches the longer keys, such as "lockName:suffix", their invalidations
+ * are dropped since only the waiters of the exact key are woken up.
+ *
+ * At most "maxTrackedKeys" keys are tracked at once, the waiters of the other keys keep polling, and
+ * a key is no longer tracked once its last waiter is done. If the subscriber connection is lost or the
+ * tracking can not be updated, all the waiters are woken up and the tracker stops, the locks fall back to
+ * polling.
+ */
+public class InvalidationTracker implements Closeable {
+    public static final int DEFAULT_MAX_TRACKED_KEYS = Integer.getInteger("redis.lock.tracking.max.keys", 1000);
+
+    private static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+
+    private final RespConnection[] controls;
+    private final RespConnection subscriber;
+    private final long subscriberId;
+    private final int maxTrackedKeys;
+    private final Map<String, List<AbstractLock>> waiters = new HashMap<String, List<AbstractLock>>();
+    private final Set<String> addedKeys = new LinkedHashSet<String>();
+    private final ExecutorService updater;
+    private boolean updatePending;
+    private long updates;
+    private int activeControl;
+    private volatile boolean open = true;
+
+    public InvalidationTracker(String host, int port) {
+        this(host, port, DEFAULT_MAX_TRACKED_KEYS);
+    }
+
+    /**
+     * @param host           the redis host
+     * @param port           the redis port
+     * @param maxTrackedKeys the maximum number of keys tracked at once
+     */
+    public InvalidationTracker(String host, int port, int maxTrackedKeys) {
+        this.maxTrackedKeys = maxTrackedKeys;
+        this.controls = new RespConnection[]{new RespConnection(host, port), new RespConnection(host, port)};
+        // the subscriber may stay idle for a long time, so it has no read timeout
+        this.subscriber = new RespConnection(host, port, 0, RespConnection.DEFAULT_BUFFER_SIZE);
+
+        try {
+            subscriberId = (Long) subscriber.call(RespConnection.encode(2, "CLIENT", "ID"));
+            subscriber.call(RespConnection.encode(2, "SUBSCRIBE", INVALIDATE_CHANNEL));
+        } catch (RuntimeException e) {
+            controls[0].close();
+            controls[1].close();
+            subscriber.close();
+            throw new LockException("Failed to subscribe to the invalidations, redis 6 or later is required", e);
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readInvalidations();
+            }
+        }, "redis-lock-invalidations");
+        reader.setDaemon(true);
+        reader.start();
+
+        updater = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "redis-lock-tracking");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getMaxTrackedKeys() {
+        return maxTrackedKeys;
+    }
+
+    public synchronized int getTrackedKeyCount() {
+        return waiters.size();
+    }
+
+    /**
+     * The number of batches of changes applied to the tracking.
+     */
+    synchronized long getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * Start tracking the key of the lock until the matching "untrack". The lock is woken up once the
+     * tracking of a new key is on.
+     *
+     * @return false if the key can not be tracked and the lock must keep polling
+     */
+    synchronized boolean track(AbstractLock lock) {
+        if (!open) {
+            return false;
+        }
+
+        String key = lock.getLockName();
+        List<AbstractLock> locks = waiters.get(key);
+        if (locks == null) {
+            if (waiters.size() >= maxTrackedKeys) {
+                return false;
+            }
+
+            locks = new ArrayList<AbstractLock>();
+            waiters.put(key, locks);
+            addedKeys.add(key);
+            scheduleUpdate();
+        }
+        locks.add(lock);
+        return true;
+    }
+
+    synchronized void untrack(AbstractLock lock) {
+        String key = lock.getLockName();
+        List<AbstractLock> locks = waiters.get(key);
+        if (locks == null || !locks.remove(lock) || !locks.isEmpty()) {
+            return;
+        }
+
+        waiters.remove(key);
+        addedKeys.remove(key);
+        if (open) {
+            scheduleUpdate();
+        }
+    }
+
+    private void scheduleUpdate() {
+        if (updatePending) {
+            return;
+        }
+
+        updatePending = true;
+        updater.execute(new Runnable() {
+            public void run() {
+                applyUpdate();
+            }
+        });
+    }
+
+    /**
+     * Apply the changes made since the last update in one batch, then wake up the waiters of the new keys.
+     */
+    private void applyUpdate() {
+        List<String> keys;
+        List<String> added;
+        synchronized (this) {
+            updatePending = false;
+            if (!open) {
+                return;
+            }
+            keys = new ArrayList<String>(waiters.keySet());
+            added = new ArrayList<String>(addedKeys);
+            addedKeys.clear();
+        }
+
+        try {
+            updateTracking(keys);
+        } catch (RuntimeException e) {
+            wakeUpAll();
+            close();
+            return;
+        }
+
+        synchronized (this) {
+            updates++;
+        }
+        for (String key : added) {
+            wakeUp(key);
+        }
+    }
+
+    /**
+     * Enable the tracking of the keys on the idle control connection, then switch off the active one.
+     */
+    private void updateTracking(List<String> keys) {
+        RespConnection active = controls[activeControl];
+        if (keys.isEmpty()) {
+            active.call(RespConnection.encode(3, "CLIENT", "TRACKING", "OFF"));
+            return;
+        }
+
+        List<String> command = new ArrayList<String>();
+        command.add("CLIENT");
+        command.add("TRACKING");
+        command.add("ON");
+        command.add("REDIRECT");
+        command.add(String.valueOf(subscriberId));
+        command.add("BCAST");
+        for (String prefix : prefixesOf(keys)) {
+            command.add("PREFIX");
+            command.add(prefix);
+        }
+        controls[1 - activeControl].call(RespConnection.encode(command.size(),
+                command.toArray(new String[command.size()])));
+        activeControl = 1 - activeControl;
+        active.call(RespConnection.encode(3, "CLIENT", "TRACKING", "OFF"));
+    }
+
+    /**
+     * The shortest keys covering all the keys without overlapping. In the sorted keys, the keys starting
+     * with a prefix follow it.
+     */
+    static List<String> prefixesOf(List<String> keys) {
+        List<String> prefixes = new ArrayList<String>();
+        for (String key : new TreeSet<String>(keys)) {
+            if (prefixes.isEmpty() || !key.startsWith(prefixes.get(prefixes.size() - 1))) {
+                prefixes.add(key);
+            }
+        }
+        return prefixes;
+    }
+
+    private void readInvalidations() {
+        try {
+            while (open) {
+                Object message = subscriber.readReply();
+                if (!(message instanceof List) || ((List) message).size() < 3) {
+                    continue;
+                }
+
+                Object keys = ((List) message).get(2);
+                if (keys instanceof List) {
+                    for (Object key : (List) keys) {
+                        // the prefixes also match longer keys, which have no waiters
+                        wakeUp(SafeEncoder.encode((byte[]) key));
+                    }
+                } else {
+                    // a null key list is sent on FLUSHALL / FLUSHDB
+                    wakeUpAll();
+                }
+            }
+        } catch (RuntimeException e) {
+            // the connection is lost or closed
+        } finally {
+            open = false;
+            wakeUpAll();
+        }
+    }
+
+    private void wakeUp(String key) {
+        List<AbstractLock> locks;
+        synchronized (this) {
+            locks = waiters.get(key);
+            if (locks == null) {
+                return;
+            }
+            locks = new ArrayList<AbstractLock>(locks);
+        }
+
+        for (AbstractLock lock : locks) {
+            lock.wakeUpWaiters();
+        }
+    }
+
+    private void wakeUpAll() {
+        List<AbstractLock> locks = new ArrayList<AbstractLock>();
+        synchronized (this) {
+            for (List<AbstractLock> keyLocks : waiters.values()) {
+                locks.addAll(keyLocks);
+            }
+        }
+
+        for (AbstractLock lock : locks) {
+            lock.wakeUpWaiters();
+        }
+    }
+
+    public void close() {
+        open = false;
+        synchronized (this) {
+            waiters.clear();
+            addedKeys.clear();
+            controls[0].close();
+            controls[1].close();
+        }
+        updater.shutdown();
+        subscriber.close();
+    }
+}
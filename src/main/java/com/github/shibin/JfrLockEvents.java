@@ -0,0 +1,167 @@
+package com.github.shibin;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events of the locks, only loaded by {@link LockEvents} when jdk.jfr is available.
+ *
+ * The thresholds are defaults, they can be changed in the recording settings like those of the JDK events,
+ * e.g. "com.github.shibin.LockAcquire#threshold=0 ms".
+ */
+final class JfrLockEvents {
+
+    @Name("com.github.shibin.LockAcquire")
+    @Label("Lock Acquire")
+    @Category("Redis Lock")
+    @Description("A call to acquire, from the first attempt to the outcome")
+    @Threshold("1 ms")
+    static final class AcquireEvent extends Event {
+        @Label("Lock Name")
+        String lockName;
+
+        @Label("Attempts")
+        int attempts;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("com.github.shibin.LockHold")
+    @Label("Lock Hold")
+    @Category("Redis Lock")
+    @Description("A lease, from its acquire to its release")
+    @Threshold("10 ms")
+    static final class HoldEvent extends Event {
+        @Label("Lock Name")
+        String lockName;
+    }
+
+    @Name("com.github.shibin.LockExtend")
+    @Label("Lock Extend")
+    @Category("Redis Lock")
+    @Threshold("1 ms")
+    static final class ExtendEvent extends Event {
+        @Label("Lock Name")
+        String lockName;
+
+        @Label("Additional Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long additionalTime;
+
+        @Label("Extended")
+        boolean extended;
+    }
+
+    @Name("com.github.shibin.LockRoundTrip")
+    @Label("Lock Round Trip")
+    @Category("Redis Lock")
+    @Description("A lock command sent to redis, including its retry after a connection error")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class RoundTripEvent extends Event {
+        @Label("Lock Name")
+        String lockName;
+
+        @Label("Operation")
+        String operation;
+    }
+
+    /**
+     * Instances only used to query whether the events are enabled without allocating.
+     */
+    private static final AcquireEvent ACQUIRE = new AcquireEvent();
+    private static final HoldEvent HOLD = new HoldEvent();
+    private static final ExtendEvent EXTEND = new ExtendEvent();
+    private static final RoundTripEvent ROUND_TRIP = new RoundTripEvent();
+
+    private JfrLockEvents() {
+    }
+
+    static Object beginAcquire() {
+        if (!ACQUIRE.isEnabled()) {
+            return null;
+        }
+
+        AcquireEvent event = new AcquireEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitAcquire(Object begun, String lockName, int attempts, String outcome) {
+        AcquireEvent event = (AcquireEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.lockName = lockName;
+            event.attempts = attempts;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    static Object beginHold() {
+        if (!HOLD.isEnabled()) {
+            return null;
+        }
+
+        HoldEvent event = new HoldEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitHold(Object begun, String lockName) {
+        HoldEvent event = (HoldEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.lockName = lockName;
+            event.commit();
+        }
+    }
+
+    static Object beginExtend() {
+        if (!EXTEND.isEnabled()) {
+            return null;
+        }
+
+        ExtendEvent event = new ExtendEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitExtend(Object begun, String lockName, long additionalTime, boolean extended) {
+        ExtendEvent event = (ExtendEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.lockName = lockName;
+            event.additionalTime = additionalTime;
+            event.extended = extended;
+            event.commit();
+        }
+    }
+
+    static Object beginRoundTrip() {
+        if (!ROUND_TRIP.isEnabled()) {
+            return null;
+        }
+
+        RoundTripEvent event = new RoundTripEvent();
+        event.begin();
+        return event;
+    }
+
+    static void commitRoundTrip(Object begun, String lockName, String operation) {
+        RoundTripEvent event = (RoundTripEvent) begun;
+        event.end();
+        if (event.shouldCommit()) {
+            event.lockName = lockName;
+            event.operation = operation;
+            event.commit();
+        }
+    }
+}
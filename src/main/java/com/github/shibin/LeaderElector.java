@@ -0,0 +1,199 @@
+package com.github.shibin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Elects one leader among the instances sharing an election name, on top of a RedisLuaLock lease.
+ *
+ * A background thread renews the lease of the leader every third of the lease time. The standby instances
+ * do not poll: each failed attempt tells them the remaining time of the leader's lease and they retry when
+ * it ends, or after a third of the lease time to notice a resignation.
+ *
+ * If the leader crashes or is partitioned, a standby takes over at most "getWorstCaseFailoverTime()" ms after
+ * the last successful renewal, plus one round trip. The leader is told it lost the leadership when its local,
+ * pessimistic, lease ends, which is before any standby can take over.
+ *
+ * The jedis client is used by the background thread only and must not be shared.
+ */
+public class LeaderElector {
+
+    /**
+     * Receives the leadership changes, from the background thread or the shared lock timer.
+     */
+    public interface Listener {
+        void leadershipAcquired();
+
+        void leadershipLost();
+    }
+
+    private final String electionName;
+    private final long leaseTime;
+    private final Listener listener;
+    private final RedisLuaLock lock;
+    private final AtomicBoolean leader = new AtomicBoolean();
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param jedisClient  jedis client instance dedicated to the election
+     * @param electionName the name as the key of the lease
+     * @param leaseTime    the time to live of the lease in ms
+     * @param listener     receives the leadership changes
+     */
+    public LeaderElector(Jedis jedisClient, String electionName, long leaseTime, Listener listener) {
+        this.electionName = electionName;
+        this.leaseTime = leaseTime;
+        this.listener = listener;
+        this.lock = new RedisLuaLock(jedisClient, electionName, leaseTime, true, leaseTime,
+                AbstractLock.DEFAULT_SLEEP_TIME_MILLIS, false);
+        this.lock.setMaxSleepTime(getRenewInterval());
+    }
+
+    public String getElectionName() {
+        return electionName;
+    }
+
+    public long getLeaseTime() {
+        return leaseTime;
+    }
+
+    public boolean isLeader() {
+        return leader.get() && lock.isHeld();
+    }
+
+    /**
+     * The maximum time in ms between the last renewal of a crashed leader and a standby taking over,
+     * excluding the round trip of the winning attempt.
+     */
+    public long getWorstCaseFailoverTime() {
+        return leaseTime + (long) Math.ceil(leaseTime * lock.getClockDriftFactor());
+    }
+
+    private long getRenewInterval() {
+        return Math.max(1, leaseTime / 3);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                elect();
+            }
+        }, "leader-elector-" + electionName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop taking part in the election, resigning the leadership if held.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        thread.interrupt();
+        thread.join();
+
+        if (leader.get() && lock.getTokenAsString() != null) {
+            try {
+                lock.release();
+            } finally {
+                lose();
+            }
+        }
+    }
+
+    private void elect() {
+        while (running) {
+            try {
+                if (!leader.get()) {
+                    if (lock.acquire(true, leaseTime)) {
+                        leader.set(true);
+                        watchLease();
+                        listener.leadershipAcquired();
+                    }
+                } else {
+                    Thread.sleep(getRenewInterval());
+                    renew();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (JedisException e) {
+                // the connection is retried on the next round, the lease watch ends a lost leadership
+                sleepQuietly(getRenewInterval());
+            } catch (RuntimeException e) {
+                // a renewal racing with the end of the lease or a failing listener, step down so that a standby
+                // can take over and keep taking part in the election
+                stepDown();
+                sleepQuietly(getRenewInterval());
+            }
+        }
+    }
+
+    private void stepDown() {
+        try {
+            if (leader.get() && lock.getTokenAsString() != null) {
+                lock.release();
+            }
+        } catch (RuntimeException e) {
+            // the lease ends by itself
+        }
+        try {
+            lose();
+        } catch (RuntimeException e) {
+            // the listener failed again, the leadership is given up anyway
+        }
+    }
+
+    private void renew() {
+        if (!lock.isHeld()) {
+            lose();
+            return;
+        }
+
+        if (lock.renew(leaseTime)) {
+            watchLease();
+        } else {
+            lose();
+        }
+    }
+
+    /**
+     * End the leadership when the local lease ends, even if the background thread is stuck on the network.
+     */
+    private void watchLease() {
+        long delay = TimeUnit.NANOSECONDS.toMillis(lock.remainingLeaseNanos());
+        LockTimer.schedule(new Runnable() {
+            public void run() {
+                if (!lock.isHeld()) {
+                    lose();
+                }
+            }
+        }, delay + 1);
+    }
+
+    private void lose() {
+        if (leader.compareAndSet(true, false)) {
+            lock.dropLease();
+            listener.leadershipLost();
+        }
+    }
+
+    private void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
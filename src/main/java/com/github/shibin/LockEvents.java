@@ -0,0 +1,75 @@
+package com.github.shibin;
+
+/**
+ * Emits the Java Flight Recorder events of the locks, see {@link JfrLockEvents}.
+ *
+ * The events are only referenced when the jdk.jfr module is available, so the locks still run on JVMs
+ * without it. The "begin" methods return null when the event is disabled in the recording, and the
+ * "commit" methods ignore null events, so a disabled event costs a flag check and no allocation.
+ */
+final class LockEvents {
+
+    static final String ACQUIRED = "ACQUIRED";
+    static final String TIMED_OUT = "TIMED_OUT";
+    static final String NOT_ACQUIRED = "NOT_ACQUIRED";
+    static final String ERROR = "ERROR";
+
+    private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+    private LockEvents() {
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    static Object beginAcquire() {
+        return AVAILABLE ? JfrLockEvents.beginAcquire() : null;
+    }
+
+    /**
+     * @param outcome one of ACQUIRED, TIMED_OUT, NOT_ACQUIRED or ERROR
+     */
+    static void commitAcquire(Object event, String lockName, int attempts, String outcome) {
+        if (event != null) {
+            JfrLockEvents.commitAcquire(event, lockName, attempts, outcome);
+        }
+    }
+
+    static Object beginHold() {
+        return AVAILABLE ? JfrLockEvents.beginHold() : null;
+    }
+
+    static void commitHold(Object event, String lockName) {
+        if (event != null) {
+            JfrLockEvents.commitHold(event, lockName);
+        }
+    }
+
+    static Object beginExtend() {
+        return AVAILABLE ? JfrLockEvents.beginExtend() : null;
+    }
+
+    static void commitExtend(Object event, String lockName, long additionalTime, boolean extended) {
+        if (event != null) {
+            JfrLockEvents.commitExtend(event, lockName, additionalTime, extended);
+        }
+    }
+
+    static Object beginRoundTrip() {
+        return AVAILABLE ? JfrLockEvents.beginRoundTrip() : null;
+    }
+
+    static void commitRoundTrip(Object event, String lockName, String operation) {
+        if (event != null) {
+            JfrLockEvents.commitRoundTrip(event, lockName, operation);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.shibin;
+
+/**
+ * The state of a lock as seen by the server at inspection time.
+ */
+public class LockInfo {
+    private final String lockName;
+    private final String token;
+    private final long remainingTime;
+    private final long waiters;
+
+    public LockInfo(String lockName, String token, long remainingTime, long waiters) {
+        this.lockName = lockName;
+        this.token = token;
+        this.remainingTime = remainingTime;
+        this.waiters = waiters;
+    }
+
+    public String getLockName() {
+        return lockName;
+    }
+
+    /**
+     * The token of the holder, null if the lock is free.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isHeld() {
+        return token != null;
+    }
+
+    /**
+     * The remaining time to live in ms, -2 if the lock is free, -1 if the lock never expires.
+     */
+    public long getRemainingTime() {
+        return remainingTime;
+    }
+
+    /**
+     * The number of clients waiting for the lock during the current lease. Only the locks registering their
+     * waiters, like RedisLuaLock in sticky mode, report it, the others report 0.
+     */
+    public long getWaiters() {
+        return waiters;
+    }
+
+    @Override
+    public String toString() {
+        return "LockInfo{lockName='" + lockName + "', token='" + token + "', remainingTime=" + remainingTime +
+                ", waiters=" + waiters + "}";
+    }
+}
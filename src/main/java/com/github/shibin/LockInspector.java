@@ -0,0 +1,110 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Inspects the holder, the remaining time and the waiters of many locks with one script call per batch,
+ * instead of a 'GET' and a 'PTTL' per lock.
+ */
+public class LockInspector {
+    public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("redis.lock.inspect.batch.size", 500);
+
+    /**
+     * KEYS holds pairs of lock key and waiters key, returns token, pttl and number of waiters per pair.
+     */
+    static final String LUA_INSPECT_SCRIPT = "" +
+            "local result = {} \n" +
+            "for i = 1, #KEYS, 2 do \n" +
+            "    result[#result + 1] = redis.call('get', KEYS[i]) \n" +
+            "    result[#result + 1] = redis.call('pttl', KEYS[i]) \n" +
+            "    result[#result + 1] = redis.call('scard', KEYS[i + 1]) \n" +
+            "end \n" +
+            "return result";
+
+    /**
+     * Receives the inspected locks batch by batch.
+     */
+    public interface Handler {
+        void onLockInfo(LockInfo info);
+    }
+
+    private final Jedis jedisClient;
+    private final int batchSize;
+    private String inspectSHA;
+
+    public LockInspector(Jedis jedisClient) {
+        this(jedisClient, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param jedisClient jedis client instance
+     * @param batchSize   the number of locks inspected by one script call
+     */
+    public LockInspector(Jedis jedisClient, int batchSize) {
+        this.jedisClient = jedisClient;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Inspect the locks.
+     *
+     * @param lockNames the names of the locks
+     * @return the state of each lock, in the same order
+     */
+    public List<LockInfo> inspect(Collection<String> lockNames) {
+        final List<LockInfo> infos = new ArrayList<LockInfo>(lockNames.size());
+        inspect(lockNames.iterator(), new Handler() {
+            public void onLockInfo(LockInfo info) {
+                infos.add(info);
+            }
+        });
+        return infos;
+    }
+
+    /**
+     * Inspect a stream of locks, only one batch of names and results is kept in memory at a time.
+     *
+     * @param lockNames the names of the locks
+     * @param handler   receives the state of each lock, in the same order
+     */
+    public void inspect(Iterator<String> lockNames, Handler handler) {
+        List<String> batch = new ArrayList<String>(batchSize);
+        while (lockNames.hasNext()) {
+            batch.add(lockNames.next());
+            if (batch.size() == batchSize) {
+                inspectBatch(batch, handler);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            inspectBatch(batch, handler);
+        }
+    }
+
+    private void inspectBatch(List<String> lockNames, Handler handler) {
+        if (inspectSHA == null) {
+            inspectSHA = jedisClient.scriptLoad(LUA_INSPECT_SCRIPT);
+            if (inspectSHA == null) {
+                throw new LockException("Failed to register the LUA script");
+            }
+        }
+
+        List<String> keys = new ArrayList<String>(lockNames.size() * 2);
+        for (String lockName : lockNames) {
+            keys.add(lockName);
+            keys.add(RedisLuaLock.waitersKey(lockName));
+        }
+
+        List result = (List) jedisClient.evalsha(inspectSHA, keys, new ArrayList<String>());
+        for (int i = 0; i < lockNames.size(); i++) {
+            handler.onLockInfo(new LockInfo(lockNames.get(i), (String) result.get(i * 3),
+                    (Long) result.get(i * 3 + 1), (Long) result.get(i * 3 + 2)));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.shibin;
+
+/**
+ * Thrown by "acquire" when the caller is shed by the admission controller because too many
+ * threads are already waiting for the lock.
+ */
+public class LockRejectedException extends LockException {
+
+    public LockRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.shibin;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared daemon timer for the delayed work of the locks, e.g. releasing a parked sticky lease.
+ *
+ * The timer thread only runs short local tasks. The tasks doing round trips are handed to a small pool of
+ * background threads, so that a slow round trip does not delay the renewals of the other locks.
+ */
+final class LockTimer {
+    static final int DEFAULT_BACKGROUND_THREADS = Integer.getInteger("redis.lock.background.threads", 4);
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            daemonThreads("redis-lock-timer"));
+
+    private static final ThreadPoolExecutor BACKGROUND = new ThreadPoolExecutor(DEFAULT_BACKGROUND_THREADS,
+            DEFAULT_BACKGROUND_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            daemonThreads("redis-lock-background"));
+
+    static {
+        BACKGROUND.allowCoreThreadTimeOut(true);
+    }
+
+    private LockTimer() {
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return EXECUTOR.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule a task doing round trips, it runs on a background thread. Cancelling the future only
+     * prevents a task which has not been handed over yet, the task checks whether it is still needed.
+     */
+    static ScheduledFuture<?> scheduleRoundTrip(final Runnable task, long delayMillis) {
+        return EXECUTOR.schedule(new Runnable() {
+            public void run() {
+                BACKGROUND.execute(task);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.shibin;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * The lua lock of {@link RedisLuaLock} sent over a {@link RespTransport} instead of jedis, either a
+ * {@link RespConnection} or a {@link PipelinedConnection}.
+ *
+ * Each command is the pre-encoded "EVALSHA sha numkeys keys..." prefix followed by the token and the time,
+ * written into the reused direct buffer of the connection, and the integer replies are parsed without
+ * allocating. The prefixes are encoded again when the lock name changes or the scripts are reloaded after
+ * a NOSCRIPT error. The transport may be shared by many locks.
+ *
+ * As it does not use jedis, "getJedisClient" returns null and "setJedisClient" is ignored.
+ */
+public class NioRedisLuaLock extends AbstractLock {
+
+    /**
+     * The encoded prefixes of the commands for one lock name.
+     */
+    private static class Prefixes {
+        private final String lockName;
+        private final byte[] acquire;
+        private final byte[] acquireWaiting;
+        private final byte[] release;
+        private final byte[] extend;
+        private final byte[] extendTo;
+        private final byte[] stickyRelease;
+
+        Prefixes(String lockName, String acquireSHA, String releaseSHA, String extendSHA, String extendToSHA,
+                 String stickyReleaseSHA) {
+            String waitersKey = RedisLuaLock.waitersKey(lockName);
+            this.lockName = lockName;
+            this.acquire = RespConnection.encode(6, "EVALSHA", acquireSHA, "1", lockName);
+            this.acquireWaiting = RespConnection.encode(7, "EVALSHA", acquireSHA, "2", lockName, waitersKey);
+            this.release = RespConnection.encode(5, "EVALSHA", releaseSHA, "1", lockName);
+            this.extend = RespConnection.encode(6, "EVALSHA", extendSHA, "1", lockName);
+            this.extendTo = RespConnection.encode(6, "EVALSHA", extendToSHA, "1", lockName);
+            this.stickyRelease = RespConnection.encode(6, "EVALSHA", stickyReleaseSHA, "2", lockName, waitersKey);
+        }
+    }
+
+    private final RespTransport transport;
+    private volatile Prefixes prefixes;
+
+    public NioRedisLuaLock(RespTransport transport, String lockName) {
+        super(null, lockName);
+        this.transport = transport;
+    }
+
+    public NioRedisLuaLock(RespTransport transport, String lockName, long expiredTime) {
+        super(null, lockName, expiredTime);
+        this.transport = transport;
+    }
+
+    public NioRedisLuaLock(RespTransport transport, String lockName, long expiredTime, boolean blocking,
+                           long blockingTimeout, long sleepTime, boolean threadLocal) {
+        super(null, lockName, expiredTime, blocking, blockingTimeout, sleepTime, threadLocal);
+        this.transport = transport;
+    }
+
+    public RespTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return null, the lock does not use jedis, see "getTransport"
+     */
+    @Override
+    public Jedis getJedisClient() {
+        return null;
+    }
+
+    /**
+     * Ignored, the lock does not use jedis, see "getTransport".
+     */
+    @Override
+    public void setJedisClient(Jedis jedisClient) {
+    }
+
+    /**
+     * The transports are thread-safe, and a PipelinedConnection batches the commands sent concurrently.
+     */
+    @Override
+    protected boolean isClientThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Open a new connection for the retry after a connection error, see {@link RespTransport#reconnect()}.
+     */
+    @Override
+    protected void resetConnection() {
+        transport.reconnect();
+    }
+
+    private String loadScript(String script) {
+        return SafeEncoder.encode((byte[]) transport.call(RespConnection.encode(3, "SCRIPT", "LOAD", script)));
+    }
+
+    private synchronized Prefixes registerScripts() {
+        prefixes = new Prefixes(lockName, loadScript(RedisLuaLock.LUA_ACQUIRE_SCRIPT),
+                loadScript(RedisLuaLock.LUA_RELEASE_SCRIPT), loadScript(RedisLuaLock.LUA_EXTEND_SCRIPT),
+                loadScript(RedisLuaLock.LUA_EXTEND_TO_SCRIPT),
+                loadScript(RedisLuaLock.LUA_STICKY_RELEASE_SCRIPT));
+        return prefixes;
+    }
+
+    private Prefixes getPrefixes() {
+        Prefixes current = prefixes;
+        if (current == null || !current.lockName.equals(lockName)) {
+            current = registerScripts();
+        }
+        return current;
+    }
+
+    private static boolean isNoScript(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().startsWith("NOSCRIPT");
+    }
+
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
+    @Override
+    protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
+        return doTryAcquire(token, leaseTime, false);
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime, boolean waiting) {
+        try {
+            Prefixes current = getPrefixes();
+            return transport.callInteger(waiting ? current.acquireWaiting : current.acquire, token, leaseTime);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            Prefixes current = registerScripts();
+            return transport.callInteger(waiting ? current.acquireWaiting : current.acquire, token, leaseTime);
+        }
+    }
+
+    @Override
+    protected void doRelease(String token) {
+        try {
+            transport.callInteger(getPrefixes().release, token);
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            transport.callInteger(registerScripts().release, token);
+        }
+    }
+
+    @Override
+    protected boolean releaseIfContended(String token) {
+        try {
+            return transport.callInteger(getPrefixes().stickyRelease, token) == 1;
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            return transport.callInteger(registerScripts().stickyRelease, token) == 1;
+        }
+    }
+
+    @Override
+    protected boolean doExtend(final String token, long additionalTime) {
+        try {
+            return transport.callInteger(getPrefixes().extend, token, additionalTime) == 1;
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            return transport.callInteger(registerScripts().extend, token, additionalTime) == 1;
+        }
+    }
+
+    @Override
+    protected boolean doExtendTo(final String token, long leaseTime) {
+        try {
+            return transport.callInteger(getPrefixes().extendTo, token, leaseTime) == 1;
+        } catch (JedisDataException e) {
+            if (!isNoScript(e)) {
+                throw e;
+            }
+            return transport.callInteger(registerScripts().extendTo, token, leaseTime) == 1;
+        }
+    }
+}
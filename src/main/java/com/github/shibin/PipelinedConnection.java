@@ -0,0 +1,272 @@
+package com.github.shibin;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * A {@link RespTransport} multiplexing the commands of many threads onto one {@link RespConnection}.
+ *
+ * The callers queue their commands and wait, a single event loop thread takes everything queued so far,
+ * writes it with one flush and reads the replies back in order, completing each caller with its own
+ * reply. Under concurrency the commands of all the threads share the round trips, so the throughput of a
+ * connection is no longer bounded by one command per round trip.
+ *
+ * An error reply only fails its own command. A connection error fails the commands in flight and stops
+ * the event loop, the next calls fail fast until "reconnect" opens a new connection and restarts the event
+ * loop, the commands queued meanwhile are sent on the new connection.
+ */
+public class PipelinedConnection implements RespTransport, Closeable {
+    public static final int DEFAULT_MAX_BATCH_SIZE = Integer.getInteger("redis.lock.pipeline.max.batch.size", 512);
+
+    private static final int RAW = 0;
+    private static final int TOKEN = 1;
+    private static final int TOKEN_AND_TIME = 2;
+
+    /**
+     * A queued command, completed by the event loop.
+     */
+    private static class Request {
+        private final byte[] prefix;
+        private final String token;
+        private final long time;
+        private final int arguments;
+
+        private boolean done;
+        private Object reply;
+        private long integerReply;
+        private RuntimeException error;
+
+        Request(byte[] prefix, String token, long time, int arguments) {
+            this.prefix = prefix;
+            this.token = token;
+            this.time = time;
+            this.arguments = arguments;
+        }
+
+        void write(RespConnection connection) {
+            connection.writeRaw(prefix);
+            if (arguments != RAW) {
+                connection.writeBulk(token);
+            }
+            if (arguments == TOKEN_AND_TIME) {
+                connection.writeBulk(time);
+            }
+        }
+
+        void read(RespConnection connection) {
+            try {
+                if (arguments == RAW) {
+                    reply = connection.readReply();
+                } else {
+                    integerReply = connection.readInteger();
+                }
+                complete(null);
+            } catch (JedisDataException e) {
+                complete(e);
+            }
+        }
+
+        synchronized void complete(RuntimeException error) {
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void await() {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // the reply still has to be matched, keep waiting for it
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private final RespConnection connection;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final int maxBatchSize;
+    private volatile Thread eventLoop;
+    private volatile boolean broken;
+    private volatile boolean closed;
+
+    private volatile long commands;
+    private volatile long batches;
+
+    public PipelinedConnection(RespConnection connection) {
+        this(connection, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param connection   the connection owned by this instance, it must not be used directly anymore
+     * @param maxBatchSize the maximum number of commands written by one flush
+     */
+    public PipelinedConnection(RespConnection connection, int maxBatchSize) {
+        this.connection = connection;
+        this.maxBatchSize = maxBatchSize;
+        startEventLoop();
+    }
+
+    private void startEventLoop() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "redis-lock-pipeline");
+        thread.setDaemon(true);
+        eventLoop = thread;
+        thread.start();
+    }
+
+    public Object call(byte[] command) {
+        return submit(new Request(command, null, 0, RAW)).reply;
+    }
+
+    public long callInteger(byte[] prefix, String token) {
+        return submit(new Request(prefix, token, 0, TOKEN)).integerReply;
+    }
+
+    public long callInteger(byte[] prefix, String token, long time) {
+        return submit(new Request(prefix, token, time, TOKEN_AND_TIME)).integerReply;
+    }
+
+    private Request submit(Request request) {
+        checkOpen();
+
+        queue.add(request);
+        if ((closed || broken) && queue.remove(request)) {
+            checkOpen();
+        }
+
+        request.await();
+        return request;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new JedisConnectionException("The pipelined connection is closed");
+        }
+        if (broken) {
+            throw new JedisConnectionException("The pipelined connection is broken, it has to be reconnected");
+        }
+    }
+
+    /**
+     * Open a new connection and restart the event loop after a connection error. The commands in flight
+     * were failed by the error, the ones queued since are sent on the new connection.
+     *
+     * Every caller of a failed batch may call it, so it does nothing when the connection was already
+     * reopened since the error.
+     */
+    public synchronized void reconnect() {
+        if (closed) {
+            throw new JedisConnectionException("The pipelined connection is closed");
+        }
+        if (!broken) {
+            return;
+        }
+
+        connection.reconnect();
+        broken = false;
+        startEventLoop();
+    }
+
+    public boolean isConnected() {
+        return !closed && !broken && connection.isConnected();
+    }
+
+    /**
+     * The number of commands sent so far.
+     */
+    public long getCommandCount() {
+        return commands;
+    }
+
+    /**
+     * The number of flushes so far, each one sending a batch of commands.
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        eventLoop.interrupt();
+        if (broken) {
+            // the event loop is already stopped
+            shutdown(new ArrayList<Request>());
+        }
+    }
+
+    private void loop() {
+        List<Request> batch = new ArrayList<Request>(maxBatchSize);
+
+        try {
+            while (!closed) {
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - 1);
+
+                commands += batch.size();
+                batches++;
+                try {
+                    for (Request request : batch) {
+                        request.write(connection);
+                    }
+                    connection.flush();
+                    for (Request request : batch) {
+                        request.read(connection);
+                    }
+                } catch (JedisConnectionException e) {
+                    // stop before failing the batch, so that its callers see that they have to reconnect
+                    broken = true;
+                    failAll(batch, e);
+                    if (closed) {
+                        shutdown(batch);
+                    }
+                    return;
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            closed = true;
+        }
+
+        shutdown(batch);
+    }
+
+    /**
+     * Fail the given commands and the queued ones, then close the connection.
+     */
+    private void shutdown(List<Request> batch) {
+        queue.drainTo(batch);
+        failAll(batch, new JedisConnectionException("The pipelined connection is closed"));
+        connection.close();
+    }
+
+    private static void failAll(List<Request> batch, JedisConnectionException failure) {
+        for (Request request : batch) {
+            if (!request.done) {
+                request.complete(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.shibin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.RedisInputStream;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Sends commands which are unknown to the bundled jedis version (FCALL, FUNCTION, DELEX...)
+ * over the connection of a jedis client.
+ *
+ * The commands are written directly to the socket of the client, so the client must not be
+ * in the middle of a pipeline or a transaction when calling these methods.
+ */
+final class RedisCommands {
+
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
+    private RedisCommands() {
+    }
+
+    /**
+     * Send one command and read its reply.
+     *
+     * @param jedis the client whose connection is used
+     * @param args  the command name followed by its arguments
+     * @return the raw reply: Long, byte[], List or null
+     */
+    static Object call(Jedis jedis, String... args) {
+        return callAll(jedis, args).get(0);
+    }
+
+    /**
+     * Send several commands in one write and read all the replies in order.
+     *
+     * @param jedis    the client whose connection is used
+     * @param commands each entry is the command name followed by its arguments
+     * @return the raw replies in the order of the commands
+     * @throws JedisDataException the first error reply, once all the replies are read
+     */
+    static List<Object> callAll(Jedis jedis, String[]... commands) {
+        Client client = jedis.getClient();
+        client.connect();
+        Socket socket = client.getSocket();
+
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        for (String[] command : commands) {
+            encode(request, command);
+        }
+
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(request.toByteArray());
+            out.flush();
+
+            RedisInputStream in = new RedisInputStream(socket.getInputStream());
+            List<Object> replies = new ArrayList<Object>(commands.length);
+            JedisDataException error = null;
+            for (int i = 0; i < commands.length; i++) {
+                try {
+                    replies.add(Protocol.read(in));
+                } catch (JedisDataException e) {
+                    // keep reading so that the connection stays in sync
+                    if (error == null) {
+                        error = e;
+                    }
+                    replies.add(null);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return replies;
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+    }
+
+    /**
+     * Read the "redis_version" field of INFO server, e.g. {7, 2, 4}.
+     */
+    static int[] serverVersion(Jedis jedis) {
+        String info = jedis.info("server");
+        for (String line : info.split("\r\n")) {
+            if (line.startsWith("redis_version:")) {
+                String[] parts = line.substring("redis_version:".length()).trim().split("\\.");
+                int[] version = new int[3];
+                for (int i = 0; i < version.length && i < parts.length; i++) {
+                    version[i] = Integer.parseInt(parts[i]);
+                }
+                return version;
+            }
+        }
+
+        throw new LockException("Unable to find the redis version in INFO server");
+    }
+
+    /**
+     * Whether the server version is at least major.minor.
+     */
+    static boolean isAtLeast(int[] version, int major, int minor) {
+        return version[0] > major || (version[0] == major && version[1] >= minor);
+    }
+
+    static String asString(Object reply) {
+        return reply == null ? null : SafeEncoder.encode((byte[]) reply);
+    }
+
+    private static void encode(ByteArrayOutputStream out, String[] command) {
+        writeHeader(out, '*', command.length);
+        for (String arg : command) {
+            byte[] bytes = SafeEncoder.encode(arg);
+            writeHeader(out, '$', bytes.length);
+            out.write(bytes, 0, bytes.length);
+            out.write(CRLF, 0, CRLF.length);
+        }
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, char type, int length) {
+        out.write(type);
+        byte[] digits = SafeEncoder.encode(String.valueOf(length));
+        out.write(digits, 0, digits.length);
+        out.write(CRLF, 0, CRLF.length);
+    }
+}
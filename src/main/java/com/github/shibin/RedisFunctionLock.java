@@ -0,0 +1,311 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A shared, distribute lock use a redis functions library (redis 7+).
+ *
+ * All the operations live in one versioned library named "redislock" which is installed with
+ * 'FUNCTION LOAD' and called with 'FCALL'. Functions are persisted and replicated by the server,
+ * so there is no script loading round trip and no NOSCRIPT handling on the hot path.
+ *
+ * The functions taking many keys also serve the bulk operations "acquireAll", "releaseAll" and "getStatus",
+ * one call for a whole set of locks. In a redis cluster their lock names must hash to the same slot.
+ */
+public class RedisFunctionLock extends AbstractLock {
+
+    static final String LIBRARY_NAME = "redislock";
+
+    /**
+     * Bump this whenever LUA_LIBRARY changes, older installed libraries are replaced on first use.
+     */
+    static final long LIBRARY_VERSION = 5;
+
+    static final String LUA_LIBRARY = "" +
+            "#!lua name=" + LIBRARY_NAME + " \n" +
+            "local function version(keys, args) \n" +
+            "    return " + LIBRARY_VERSION + " \n" +
+            "end \n" +
+            "local function acquire(keys, args) \n" +
+            "    if redis.call('set', keys[1], args[1], 'NX', 'PX', args[2]) then \n" +
+            "        return -1 \n" +
+            "    end \n" +
+            "    if redis.call('get', keys[1]) == args[1] then \n" +
+            "        redis.call('pexpire', keys[1], args[2]) \n" +
+            "        return -1 \n" +
+            "    end \n" +
+            "    local ttl = redis.call('pttl', keys[1]) \n" +
+            "    if ttl < 0 then \n" +
+            "        return -2 \n" +
+            "    end \n" +
+            "    return ttl \n" +
+            "end \n" +
+            "local function release(keys, args) \n" +
+            "    local token = redis.call('get', keys[1]) \n" +
+            "    if not token or token ~= args[1] then \n" +
+            "        return 0 \n" +
+            "    end \n" +
+            "    redis.call('del', keys[1]) \n" +
+            "    return 1 \n" +
+            "end \n" +
+            "local function extend(keys, args) \n" +
+            "    local token = redis.call('get', keys[1]) \n" +
+            "    if not token or token ~= args[1] then \n" +
+            "        return 0 \n" +
+            "    end \n" +
+            "    local expiration = redis.call('pttl', keys[1]) \n" +
+            "    if expiration < 0 then \n" +
+            "        return 0 \n" +
+            "    end \n" +
+            "    redis.call('pexpire', keys[1], expiration + args[2]) \n" +
+            "    return 1 \n" +
+            "end \n" +
+            "local function extend_to(keys, args) \n" +
+            "    local token = redis.call('get', keys[1]) \n" +
+            "    if not token or token ~= args[1] then \n" +
+            "        return 0 \n" +
+            "    end \n" +
+            "    local expiration = redis.call('pttl', keys[1]) \n" +
+            "    if expiration < 0 then \n" +
+            "        return 0 \n" +
+            "    end \n" +
+            "    if expiration < tonumber(args[2]) then \n" +
+            "        redis.call('pexpire', keys[1], args[2]) \n" +
+            "    end \n" +
+            "    return 1 \n" +
+            "end \n" +
+            "local function acquire_all(keys, args) \n" +
+            "    for i, key in ipairs(keys) do \n" +
+            "        local token = redis.call('get', key) \n" +
+            "        if token and token ~= args[1] then \n" +
+            "            return 0 \n" +
+            "        end \n" +
+            "    end \n" +
+            "    for i, key in ipairs(keys) do \n" +
+            "        redis.call('set', key, args[1], 'PX', args[2]) \n" +
+            "    end \n" +
+            "    return 1 \n" +
+            "end \n" +
+            "local function release_all(keys, args) \n" +
+            "    local released = 0 \n" +
+            "    for i, key in ipairs(keys) do \n" +
+            "        if redis.call('get', key) == args[1] then \n" +
+            "            redis.call('del', key) \n" +
+            "            released = released + 1 \n" +
+            "        end \n" +
+            "    end \n" +
+            "    return released \n" +
+            "end \n" +
+            "local function status(keys, args) \n" +
+            "    local result = {} \n" +
+            "    for i, key in ipairs(keys) do \n" +
+            "        result[#result + 1] = redis.call('get', key) \n" +
+            "        result[#result + 1] = redis.call('pttl', key) \n" +
+            "    end \n" +
+            "    return result \n" +
+            "end \n" +
+            "redis.register_function{function_name='redislock_version', callback=version, flags={'no-writes'}} \n" +
+            "redis.register_function('redislock_acquire', acquire) \n" +
+            "redis.register_function('redislock_release', release) \n" +
+            "redis.register_function('redislock_extend', extend) \n" +
+            "redis.register_function('redislock_extend_to', extend_to) \n" +
+            "redis.register_function('redislock_acquire_all', acquire_all) \n" +
+            "redis.register_function('redislock_release_all', release_all) \n" +
+            "redis.register_function{function_name='redislock_status', callback=status, flags={'no-writes'}} \n";
+
+    private volatile boolean libraryLoaded;
+
+    public RedisFunctionLock(Jedis jedisClient, String lockName) {
+        super(jedisClient, lockName);
+    }
+
+    public RedisFunctionLock(Jedis jedisClient, String lockName, long expiredTime) {
+        super(jedisClient, lockName, expiredTime);
+    }
+
+    public RedisFunctionLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking) {
+        super(jedisClient, lockName, expiredTime, blocking);
+    }
+
+    public RedisFunctionLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking,
+                             long blockingTimeout) {
+        super(jedisClient, lockName, expiredTime, blocking, blockingTimeout);
+    }
+
+    public RedisFunctionLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking,
+                             long blockingTimeout, long sleepTime) {
+        super(jedisClient, lockName, expiredTime, blocking, blockingTimeout, sleepTime);
+    }
+
+    public RedisFunctionLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking,
+                             long blockingTimeout, long sleepTime, boolean threadLocal) {
+        super(jedisClient, lockName, expiredTime, blocking, blockingTimeout, sleepTime, threadLocal);
+    }
+
+    /**
+     * Install the library unless the same or a newer version is already on the server.
+     * A newer version is kept as is, the functions stay compatible with older clients.
+     */
+    private void loadLibrary() {
+        long installedVersion;
+        try {
+            installedVersion = (Long) RedisCommands.call(jedisClient, "FCALL_RO", "redislock_version", "0");
+        } catch (JedisDataException e) {
+            if (!isFunctionMissing(e)) {
+                throw new LockException("Redis functions are not supported, redis 7 or later is required", e);
+            }
+            installedVersion = 0;
+        }
+
+        if (installedVersion < LIBRARY_VERSION) {
+            RedisCommands.call(jedisClient, "FUNCTION", "LOAD", "REPLACE", LUA_LIBRARY);
+        }
+
+        libraryLoaded = true;
+    }
+
+    private static boolean isFunctionMissing(JedisDataException e) {
+        return e.getMessage() != null && e.getMessage().contains("Function not found");
+    }
+
+    private Object fcall(String function, String... keyAndArgs) {
+        return fcall(function, 1, keyAndArgs);
+    }
+
+    private Object fcall(String function, List<String> keys, String... args) {
+        String[] keysAndArgs = new String[keys.size() + args.length];
+        keys.toArray(keysAndArgs);
+        System.arraycopy(args, 0, keysAndArgs, keys.size(), args.length);
+        return fcall(function, keys.size(), keysAndArgs);
+    }
+
+    /**
+     * Call a function of the library, the library is (re)installed if it is missing on the server,
+     * for example after a 'FUNCTION FLUSH'.
+     *
+     * @param numKeys     the number of keys at the beginning of "keysAndArgs"
+     * @param keysAndArgs the keys followed by the arguments
+     */
+    private Object fcall(String function, int numKeys, String... keysAndArgs) {
+        if (!libraryLoaded) {
+            loadLibrary();
+        }
+
+        String[] command = new String[keysAndArgs.length + 3];
+        command[0] = "FCALL";
+        command[1] = function;
+        command[2] = String.valueOf(numKeys);
+        System.arraycopy(keysAndArgs, 0, command, 3, keysAndArgs.length);
+
+        try {
+            return RedisCommands.call(jedisClient, command);
+        } catch (JedisDataException e) {
+            if (!isFunctionMissing(e)) {
+                throw e;
+            }
+            loadLibrary();
+            return RedisCommands.call(jedisClient, command);
+        }
+    }
+
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
+    @Override
+    protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
+        return (Long) fcall("redislock_acquire", lockName, token, String.valueOf(leaseTime));
+    }
+
+    @Override
+    protected void doRelease(String token) {
+        fcall("redislock_release", lockName, token);
+    }
+
+    @Override
+    protected boolean doExtend(final String token, long additionalTime) {
+        Object result = fcall("redislock_extend", lockName, token, String.valueOf(additionalTime));
+        return Long.valueOf(1).equals(result);
+    }
+
+    @Override
+    protected boolean doExtendTo(final String token, long leaseTime) {
+        Object result = fcall("redislock_extend_to", lockName, token, String.valueOf(leaseTime));
+        return Long.valueOf(1).equals(result);
+    }
+
+    /**
+     * Query the remaining time to live of the lock in ms, whoever holds it.
+     *
+     * @return the remaining ms, -2 if the lock is not held, -1 if the lock has no expiry
+     */
+    public long getRemainingTime() {
+        List status = (List) fcall("redislock_status", lockName);
+        return (Long) status.get(1);
+    }
+
+    /**
+     * Acquire all the locks at once for "token", or none of them if any is held with another token. The locks
+     * already holding the token get the new lease too. The locks acquired this way are not held by this
+     * instance, they are released with "releaseAll" or when their lease ends.
+     *
+     * @param lockNames the names of the locks
+     * @param token     the token identifying the owner
+     * @param leaseTime the time to live of the locks in ms
+     * @return true if all the locks are acquired
+     */
+    public boolean acquireAll(List<String> lockNames, String token, long leaseTime) {
+        if (lockNames.isEmpty()) {
+            return true;
+        }
+
+        return Long.valueOf(1).equals(fcall("redislock_acquire_all", lockNames, token, String.valueOf(leaseTime)));
+    }
+
+    /**
+     * Release the locks holding "token", the other locks are left alone.
+     *
+     * @param lockNames the names of the locks
+     * @param token     the token identifying the owner
+     * @return the number of locks released
+     */
+    public int releaseAll(List<String> lockNames, String token) {
+        if (lockNames.isEmpty()) {
+            return 0;
+        }
+
+        return ((Long) fcall("redislock_release_all", lockNames, token)).intValue();
+    }
+
+    /**
+     * Query the holder and the remaining time of many locks with one call.
+     *
+     * @param lockNames the names of the locks
+     * @return the state of each lock, in the same order, without waiters
+     */
+    public List<LockInfo> getStatus(List<String> lockNames) {
+        List<LockInfo> infos = new ArrayList<LockInfo>(lockNames.size());
+        if (lockNames.isEmpty()) {
+            return infos;
+        }
+
+        List status = (List) fcall("redislock_status", lockNames);
+        for (int i = 0; i < lockNames.size(); i++) {
+            byte[] token = (byte[]) status.get(2 * i);
+            infos.add(new LockInfo(lockNames.get(i), token == null ? null : SafeEncoder.encode(token),
+                    (Long) status.get(2 * i + 1), 0));
+        }
+        return infos;
+    }
+}
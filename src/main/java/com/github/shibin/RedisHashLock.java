@@ -0,0 +1,190 @@
+package com.github.shibin;
+
+import java.security.SecureRandom;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * A shared, distribute lock stored as a field of a redis hash, with a per-field expiry (redis 7.4+).
+ *
+ * The locks of a namespace are spread over a fixed number of hashes named "namespace:bucket", so millions
+ * of short-lived locks cost a few top-level keys instead of one key each. The tokens are 22 characters
+ * carrying 132 random bits instead of 36 for a UUID, the saving is multiplied by the number of held locks.
+ */
+public class RedisHashLock extends AbstractLock {
+    public static final int DEFAULT_BUCKETS = Integer.getInteger("redis.lock.hash.buckets", 64);
+
+    private static final char[] TOKEN_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final int TOKEN_LENGTH = 22;
+    private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+
+    /**
+     * Returns -1 when acquired, or already held with the token ARGV[2], otherwise the remaining ms of
+     * the current holder or -2 if it has no expiry.
+     */
+    static final String LUA_ACQUIRE_SCRIPT = "" +
+            "if redis.call('hsetnx', KEYS[1], ARGV[1], ARGV[2]) == 1 \n" +
+            "        or redis.call('hget', KEYS[1], ARGV[1]) == ARGV[2] then \n" +
+            "    redis.call('hpexpire', KEYS[1], ARGV[3], 'FIELDS', 1, ARGV[1]) \n" +
+            "    return -1 \n" +
+            "end \n" +
+            "local ttl = redis.call('hpttl', KEYS[1], 'FIELDS', 1, ARGV[1])[1] \n" +
+            "if ttl < 0 then \n" +
+            "    return -2 \n" +
+            "end \n" +
+            "return ttl";
+
+    static final String LUA_RELEASE_SCRIPT = "" +
+            "if redis.call('hget', KEYS[1], ARGV[1]) ~= ARGV[2] then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "redis.call('hdel', KEYS[1], ARGV[1]) \n" +
+            "return 1";
+
+    /**
+     * Adds ARGV[3] ms to the lease of the field, see {@link RedisLuaLock#LUA_EXTEND_SCRIPT}.
+     */
+    static final String LUA_EXTEND_SCRIPT = "" +
+            "if redis.call('hget', KEYS[1], ARGV[1]) ~= ARGV[2] then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "local expiration = redis.call('hpttl', KEYS[1], 'FIELDS', 1, ARGV[1])[1] \n" +
+            "if expiration < 0 then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "redis.call('hpexpire', KEYS[1], expiration + ARGV[3], 'FIELDS', 1, ARGV[1]) \n" +
+            "return 1";
+
+    /**
+     * Makes the field live at least ARGV[3] ms from now, see {@link RedisLuaLock#LUA_EXTEND_TO_SCRIPT}.
+     */
+    static final String LUA_EXTEND_TO_SCRIPT = "" +
+            "if redis.call('hget', KEYS[1], ARGV[1]) ~= ARGV[2] then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "local expiration = redis.call('hpttl', KEYS[1], 'FIELDS', 1, ARGV[1])[1] \n" +
+            "if expiration < 0 then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "if expiration < tonumber(ARGV[3]) then \n" +
+            "    redis.call('hpexpire', KEYS[1], ARGV[3], 'FIELDS', 1, ARGV[1]) \n" +
+            "end \n" +
+            "return 1";
+
+    private final String namespace;
+    private final int buckets;
+    private String acquireSHA;
+    private String releaseSHA;
+    private String extendSHA;
+    private String extendToSHA;
+
+    public RedisHashLock(Jedis jedisClient, String namespace, String lockName) {
+        this(jedisClient, namespace, lockName, DEFAULT_EXPIRED_TIME_MILLIS);
+    }
+
+    public RedisHashLock(Jedis jedisClient, String namespace, String lockName, long expiredTime) {
+        this(jedisClient, namespace, lockName, expiredTime, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param jedisClient jedis client instance
+     * @param namespace   the prefix of the hashes holding the locks
+     * @param lockName    the name as the field of the lock
+     * @param expiredTime indicate the max life time for the lock
+     * @param buckets     the number of hashes of the namespace, every client must use the same value
+     */
+    public RedisHashLock(Jedis jedisClient, String namespace, String lockName, long expiredTime, int buckets) {
+        super(jedisClient, lockName, expiredTime);
+        this.namespace = namespace;
+        this.buckets = buckets;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * The hash holding the lock.
+     */
+    public String getHashKey() {
+        return namespace + ":" + ((lockName.hashCode() & 0x7fffffff) % buckets);
+    }
+
+    /**
+     * The tokens must be as hard to guess as a UUID, each character takes 6 bits of a secure random byte.
+     */
+    @Override
+    protected String newToken() {
+        byte[] bytes = new byte[TOKEN_LENGTH];
+        TOKEN_RANDOM.nextBytes(bytes);
+        char[] token = new char[TOKEN_LENGTH];
+        for (int i = 0; i < token.length; i++) {
+            token[i] = TOKEN_ALPHABET[bytes[i] & 0x3f];
+        }
+        return new String(token);
+    }
+
+    private void registerScripts() {
+        acquireSHA = jedisClient.scriptLoad(LUA_ACQUIRE_SCRIPT);
+        releaseSHA = jedisClient.scriptLoad(LUA_RELEASE_SCRIPT);
+        extendSHA = jedisClient.scriptLoad(LUA_EXTEND_SCRIPT);
+        extendToSHA = jedisClient.scriptLoad(LUA_EXTEND_TO_SCRIPT);
+
+        if (acquireSHA == null || releaseSHA == null || extendSHA == null || extendToSHA == null){
+            throw new LockException("Failed to register the LUA script");
+        }
+    }
+
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
+    @Override
+    protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
+        if (acquireSHA == null) {
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(acquireSHA, 1, getHashKey(), lockName, token,
+                String.valueOf(leaseTime));
+        return (Long) result;
+    }
+
+    @Override
+    protected void doRelease(String token) {
+        if (releaseSHA == null){
+            registerScripts();
+        }
+
+        jedisClient.evalsha(releaseSHA, 1, getHashKey(), lockName, token);
+    }
+
+    @Override
+    protected boolean doExtend(final String token, long additionalTime) {
+        if (extendSHA == null){
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(extendSHA, 1, getHashKey(), lockName, token,
+                String.valueOf(additionalTime));
+        return Long.valueOf(1).equals(result);
+    }
+
+    @Override
+    protected boolean doExtendTo(final String token, long leaseTime) {
+        if (extendToSHA == null){
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(extendToSHA, 1, getHashKey(), lockName, token,
+                String.valueOf(leaseTime));
+        return Long.valueOf(1).equals(result);
+    }
+}
@@ -38,14 +38,57 @@ public class RedisLock extends AbstractLock{
         super(jedisClient, lockName, expiredTime, blocking, blockingTimeout, sleepTime, threadLocal);
     }
 
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
     @Override
     protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
         if (jedisClient.setnx(lockName, token) == 1) {
-            jedisClient.pexpire(lockName, expiredTime);
-            return true;
+            jedisClient.pexpire(lockName, leaseTime);
+            return ACQUIRED;
         }
 
-        return false;
+        // the holder failed between 'setnx' and 'pexpire' and its retry failed too, without an expiry the
+        // lock would never be released. A holder still between the two commands sets its own expiry next.
+        // The lock is watched, so that a lock released and acquired again meanwhile is left alone.
+        jedisClient.watch(lockName);
+        if (jedisClient.pttl(lockName) == -1) {
+            Transaction t = jedisClient.multi();
+            t.pexpire(lockName, leaseTime);
+            t.exec();
+        } else {
+            jedisClient.unwatch();
+        }
+        return UNKNOWN_TTL;
+    }
+
+    /**
+     * The attempt may have stopped between 'setnx' and 'pexpire', the lock then holds the token without
+     * an expiry. Set the lease again if the lock holds the token.
+     */
+    @Override
+    protected long doReacquire(String token, long leaseTime) {
+        jedisClient.watch(lockName);
+        if (!token.equals(jedisClient.get(lockName))) {
+            jedisClient.unwatch();
+            return doTryAcquire(token, leaseTime);
+        }
+
+        Transaction t = jedisClient.multi();
+        t.pexpire(lockName, leaseTime);
+        List response = t.exec();
+        if (response == null || response.isEmpty()) {
+            return doTryAcquire(token, leaseTime);
+        }
+
+        return ACQUIRED;
     }
 
 
@@ -70,6 +113,28 @@ public class RedisLock extends AbstractLock{
 
     @Override
     protected boolean doExtend(final String token, long additionalTime){
+        jedisClient.watch(lockName);
+        String currentToken = jedisClient.get(lockName);
+        if (!token.equals(currentToken)) {
+            jedisClient.unwatch();
+            return false;
+        }
+
+        long expiration = jedisClient.pttl(lockName);
+        if (expiration < 0) {
+            jedisClient.unwatch();
+            return false;
+        }
+
+        Transaction t = jedisClient.multi();
+        t.pexpire(lockName, expiration + additionalTime);
+        List response = t.exec();
+
+        return response != null && !response.isEmpty() && ((Long) response.get(0) == 1);
+    }
+
+    @Override
+    protected boolean doExtendTo(final String token, long leaseTime){
         jedisClient.watch(lockName);
         String currentToken = jedisClient.get(lockName);
         if (currentToken == null){
@@ -85,7 +150,8 @@ public class RedisLock extends AbstractLock{
             }
 
             Transaction t = jedisClient.multi();
-            t.pexpire(lockName, expiration + additionalTime);
+            // a retry after a lost reply must not extend the lease twice
+            t.pexpire(lockName, Math.max(expiration, leaseTime));
             List response = t.exec();
 
             return (!response.isEmpty()) && ((Long)response.get(0) == 1);
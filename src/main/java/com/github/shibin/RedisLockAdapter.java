@@ -0,0 +1,257 @@
+package com.github.shibin;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * Adapts a redis lock to {@link java.util.concurrent.locks.Lock}.
+ *
+ * The conditions are backed by redis lists: "await" releases the lock and blocks on 'BLPOP',
+ * "signal" and "signalAll" push wake tokens for the registered waiters, so waiters on other nodes
+ * are woken up by a push instead of polling. The blocking pops need their own connections, they are
+ * borrowed from the given pool.
+ *
+ * A condition is named after the lock and its creation order, the nodes sharing a condition must
+ * create the conditions of the lock in the same order. Like any condition, "await" may return
+ * spuriously, for example for a wake token left by a waiter which timed out. The timed waits have
+ * the one second resolution of 'BLPOP'.
+ */
+public class RedisLockAdapter implements Lock {
+
+    /**
+     * Time to live of the wake tokens not consumed by any waiter.
+     */
+    static final long SIGNAL_EXPIRED_TIME_MILLIS = 60000;
+
+    /**
+     * Time to live of the waiter counts, refreshed by the waiters every third of it, so that the count of
+     * a waiter which died without cancelling its wait does not outlive the other waiters.
+     */
+    static final long WAITERS_EXPIRED_TIME_MILLIS = 60000;
+
+    static final String LUA_WAIT_SCRIPT = "" +
+            "redis.call('incr', KEYS[1]) \n" +
+            "redis.call('pexpire', KEYS[1], ARGV[1]) \n" +
+            "return 1";
+
+    static final String LUA_SIGNAL_SCRIPT = "" +
+            "local waiters = tonumber(redis.call('get', KEYS[2]) or '0') \n" +
+            "local count = math.min(waiters, tonumber(ARGV[1])) \n" +
+            "if count <= 0 then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "redis.call('decrby', KEYS[2], count) \n" +
+            "for i = 1, count do \n" +
+            "    redis.call('rpush', KEYS[1], '1') \n" +
+            "end \n" +
+            "redis.call('pexpire', KEYS[1], ARGV[2]) \n" +
+            "return count";
+
+    static final String LUA_CANCEL_WAIT_SCRIPT = "" +
+            "local waiters = tonumber(redis.call('get', KEYS[2]) or '0') \n" +
+            "if waiters > 0 then \n" +
+            "    redis.call('decr', KEYS[2]) \n" +
+            "    return 1 \n" +
+            "end \n" +
+            "redis.call('lpop', KEYS[1]) \n" +
+            "return 0";
+
+    private final AbstractLock lock;
+    private final Pool<Jedis> blockingPool;
+    private final AtomicInteger conditions = new AtomicInteger();
+
+    /**
+     * @param lock         the redis lock
+     * @param blockingPool the pool of connections used by the conditions
+     */
+    public RedisLockAdapter(AbstractLock lock, Pool<Jedis> blockingPool) {
+        this.lock = lock;
+        this.blockingPool = blockingPool;
+    }
+
+    public AbstractLock getLock() {
+        return lock;
+    }
+
+    public void lock() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                lockInterruptibly();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void lockInterruptibly() throws InterruptedException {
+        while (!lock.acquire(true, lock.getBlockingTimeout())) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    public boolean tryLock() {
+        try {
+            return lock.acquire(false, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        return lock.acquire(true, unit.toMillis(time));
+    }
+
+    public void unlock() {
+        lock.release();
+    }
+
+    public Condition newCondition() {
+        return new RedisCondition(lock.getLockName() + ":condition:" + conditions.getAndIncrement());
+    }
+
+    private class RedisCondition implements Condition {
+        private final String listKey;
+        private final String waitersKey;
+
+        RedisCondition(String name) {
+            this.listKey = name;
+            this.waitersKey = name + ":waiters";
+        }
+
+        public void await() throws InterruptedException {
+            awaitNanos(0, true);
+        }
+
+        public void awaitUninterruptibly() {
+            try {
+                awaitNanos(0, false);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            if (nanosTimeout <= 0) {
+                checkHeld();
+                return nanosTimeout;
+            }
+            return awaitNanos(nanosTimeout, true);
+        }
+
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            return awaitNanos(unit.toNanos(time)) > 0;
+        }
+
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            long millis = deadline.getTime() - System.currentTimeMillis();
+            return awaitNanos(TimeUnit.MILLISECONDS.toNanos(millis)) > 0;
+        }
+
+        public void signal() {
+            signal(1);
+        }
+
+        public void signalAll() {
+            signal(Integer.MAX_VALUE);
+        }
+
+        private void checkHeld() {
+            if (lock.getTokenAsString() == null) {
+                throw new IllegalMonitorStateException("The lock " + lock.getLockName() + " is not held");
+            }
+        }
+
+        private void signal(int count) {
+            checkHeld();
+            Jedis jedis = blockingPool.getResource();
+            try {
+                jedis.eval(LUA_SIGNAL_SCRIPT, Arrays.asList(listKey, waitersKey),
+                        Arrays.asList(String.valueOf(count), String.valueOf(SIGNAL_EXPIRED_TIME_MILLIS)));
+            } finally {
+                jedis.close();
+            }
+        }
+
+        /**
+         * @param nanosTimeout  the maximum time to wait, 0 to wait until signalled
+         * @param interruptible whether an interrupt ends the wait
+         * @return the remaining nanos, a value less than or equal to 0 when timed out
+         */
+        private long awaitNanos(long nanosTimeout, boolean interruptible) throws InterruptedException {
+            checkHeld();
+            long deadline = System.nanoTime() + nanosTimeout;
+
+            Jedis jedis = blockingPool.getResource();
+            boolean registered = false;
+            boolean signalled = false;
+            boolean interrupted = false;
+            try {
+                jedis.eval(LUA_WAIT_SCRIPT, Collections.singletonList(waitersKey),
+                        Collections.singletonList(String.valueOf(WAITERS_EXPIRED_TIME_MILLIS)));
+                registered = true;
+                lock.release();
+
+                // pop by slices of one second, the resolution of BLPOP, to notice the interrupts
+                long refreshInterval = TimeUnit.MILLISECONDS.toNanos(WAITERS_EXPIRED_TIME_MILLIS / 3);
+                long refreshed = System.nanoTime();
+                while (nanosTimeout == 0 || deadline - System.nanoTime() > 0) {
+                    if (System.nanoTime() - refreshed > refreshInterval) {
+                        jedis.pexpire(waitersKey, WAITERS_EXPIRED_TIME_MILLIS);
+                        refreshed = System.nanoTime();
+                    }
+
+                    List<String> popped = jedis.blpop(1, listKey);
+                    if (popped != null && !popped.isEmpty()) {
+                        signalled = true;
+                        break;
+                    }
+
+                    if (Thread.interrupted()) {
+                        interrupted = true;
+                        if (interruptible) {
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                if (registered && !signalled) {
+                    try {
+                        jedis.eval(LUA_CANCEL_WAIT_SCRIPT, Arrays.asList(listKey, waitersKey),
+                                Collections.<String>emptyList());
+                    } catch (RuntimeException e) {
+                        // the count of this waiter ends with its time to live
+                    }
+                }
+                jedis.close();
+                RedisLockAdapter.this.lock();
+            }
+
+            if (interrupted) {
+                if (interruptible) {
+                    throw new InterruptedException();
+                }
+                Thread.currentThread().interrupt();
+            }
+
+            return deadline - System.nanoTime();
+        }
+    }
+}
@@ -1,20 +1,89 @@
 package com.github.shibin;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import redis.clients.jedis.Jedis;
 
 /**
  * A shared, distribute lock use lua script.
  */
 public class RedisLuaLock extends AbstractLock {
+    public static final int DEFAULT_REPLICAS = Integer.getInteger("redis.lock.replicas", 0);
+    public static final long DEFAULT_REPLICATION_TIMEOUT_MILLIS = Long.getLong("redis.lock.replication.timeout", 50);
+
+    /**
+     * Replication statistics of the acquires and extends waiting for replicas.
+     */
+    public static class ReplicationStats {
+        private final long waits;
+        private final long degraded;
+        private final long waitNanos;
+        private final long maxWaitNanos;
+
+        ReplicationStats(long waits, long degraded, long waitNanos, long maxWaitNanos) {
+            this.waits = waits;
+            this.degraded = degraded;
+            this.waitNanos = waitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        public long getWaits() {
+            return waits;
+        }
+
+        /**
+         * The number of waits which ended before enough replicas acknowledged the write.
+         */
+        public long getDegraded() {
+            return degraded;
+        }
+
+        /**
+         * The total time of the round trips including the wait for the replicas.
+         */
+        public long getWaitTime(TimeUnit unit) {
+            return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMaxWaitTime(TimeUnit unit) {
+            return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
 
+    /**
+     * Returns -1 when acquired, otherwise the remaining ms of the current holder or -2 if it has no expiry.
+     * The lock already holding ARGV[1] counts as acquired, with a new lease, so that an attempt can be
+     * retried after its reply is lost.
+     * The waiters set KEYS[2] is only passed by the waiting attempts of sticky locks: a failed one registers
+     * its token until the current lease ends, a successful one removes it.
+     */
     static final String LUA_ACQUIRE_SCRIPT = "" +
-            "if redis.call('setnx', KEYS[1], ARGV[1]) == 1 then \n" +
+            "if redis.call('setnx', KEYS[1], ARGV[1]) == 1 or redis.call('get', KEYS[1]) == ARGV[1] then \n" +
             "   if ARGV[2] ~= '' then \n" +
             "       redis.call('pexpire', KEYS[1], ARGV[2]) \n" +
             "   end \n" +
-            "   return 1 \n" +
+            "   if KEYS[2] then \n" +
+            "       redis.call('srem', KEYS[2], ARGV[1]) \n" +
+            "   end \n" +
+            "   return -1 \n" +
+            "end \n" +
+            "local ttl = redis.call('pttl', KEYS[1]) \n" +
+            "if KEYS[2] then \n" +
+            "   redis.call('sadd', KEYS[2], ARGV[1]) \n" +
+            "   if ttl < 0 then \n" +
+            "       redis.call('pexpire', KEYS[2], ARGV[2] ~= '' and ARGV[2] or 1000) \n" +
+            "   else \n" +
+            "       redis.call('pexpire', KEYS[2], ttl + 1) \n" +
+            "   end \n" +
+            "end \n" +
+            "if ttl < 0 then \n" +
+            "   return -2 \n" +
             "end \n" +
-            "return 0";
+            "return ttl";
 
     static final String LUA_RELEASE_SCRIPT = "\n" +
             "local token = redis.call('get', KEYS[1]) \n" +
@@ -24,24 +93,67 @@ public class RedisLuaLock extends AbstractLock {
             "redis.call('del', KEYS[1]) \n" +
             "return 1";
 
+    /**
+     * Adds ARGV[2] ms to the lease of the lock holding ARGV[1].
+     */
     static final String LUA_EXTEND_SCRIPT = "" +
             "local token = redis.call('get', KEYS[1]) \n" +
-            "    if not token or token ~= ARGV[1] then \n" +
-            "        return 0 \n" +
+            "if not token or token ~= ARGV[1] then \n" +
+            "    return 0 \n" +
             "end \n" +
-            "local expiration = redis.call('pttl', KEYS[1]) \n " +
-            "    if not expiration then \n" +
-            "        expiration = 0 \n" +
+            "local expiration = redis.call('pttl', KEYS[1]) \n" +
+            "if expiration < 0 then \n" +
+            "    return 0 \n" +
             "end \n" +
-            "    if expiration < 0 then \n" +
-            "        return 0 \n" +
+            "redis.call('pexpire', KEYS[1], expiration + ARGV[2]) \n" +
+            "return 1";
+
+    /**
+     * Makes the lock holding ARGV[1] live at least ARGV[2] ms from now, so that it can be retried after
+     * its reply is lost without extending the lease twice.
+     */
+    static final String LUA_EXTEND_TO_SCRIPT = "" +
+            "local token = redis.call('get', KEYS[1]) \n" +
+            "if not token or token ~= ARGV[1] then \n" +
+            "    return 0 \n" +
             "end \n" +
-            "    redis.call('pexpire', KEYS[1], expiration + ARGV[2]) \n" +
-            "        return 1";
+            "local expiration = redis.call('pttl', KEYS[1]) \n" +
+            "if expiration < 0 then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "if expiration < tonumber(ARGV[2]) then \n" +
+            "    redis.call('pexpire', KEYS[1], ARGV[2]) \n" +
+            "end \n" +
+            "return 1";
+
+    /**
+     * Releases the lock only if the waiters set KEYS[2] is not empty, returns 1 if the lock is not held anymore.
+     */
+    static final String LUA_STICKY_RELEASE_SCRIPT = "" +
+            "local token = redis.call('get', KEYS[1]) \n" +
+            "if not token or token ~= ARGV[1] then \n" +
+            "    return 1 \n" +
+            "end \n" +
+            "if redis.call('exists', KEYS[2]) == 0 then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "redis.call('del', KEYS[1]) \n" +
+            "return 1";
 
     private String acquireSHA;
     private String releaseSHA;
     private String extendSHA;
+    private String extendToSHA;
+    private String stickyReleaseSHA;
+
+    private int replicas = DEFAULT_REPLICAS;
+    private long replicationTimeout = DEFAULT_REPLICATION_TIMEOUT_MILLIS;
+    private volatile long ackedReplicas = -1;
+    private final ConcurrentMap<String, Long> leaseAckedReplicas = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong replicationWaits = new AtomicLong();
+    private final AtomicLong degradedWaits = new AtomicLong();
+    private final AtomicLong replicationWaitNanos = new AtomicLong();
+    private final AtomicLong maxReplicationWaitNanos = new AtomicLong();
 
     public RedisLuaLock(Jedis jedisClient, String lockName) {
         super(jedisClient, lockName);
@@ -69,27 +181,190 @@ public class RedisLuaLock extends AbstractLock {
         super(jedisClient, lockName, expiredTime, blocking, blockingTimeout, sleepTime, threadLocal);
     }
 
+    /**
+     * The set of tokens of the clients waiting for the lock during the current lease, only registered by
+     * the blocking acquires of locks in sticky mode.
+     */
+    public String getWaitersKey() {
+        return waitersKey(lockName);
+    }
+
+    /**
+     * The hash tag keeps the waiters set in the slot of the lock key on a redis cluster.
+     */
+    static String waitersKey(String lockName) {
+        return "{" + lockName + "}:waiters";
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    public long getReplicationTimeout() {
+        return replicationTimeout;
+    }
+
+    /**
+     * Make the acquires and the extends wait for their write to reach replicas, with a 'WAIT' sent in
+     * the same pipeline. A lock written on the primary only is lost if the primary fails over before
+     * replicating it, waiting narrows that window for the price of the replication latency.
+     *
+     * When "timeout" expires first, the operation still succeeds and the wait is counted as degraded,
+     * see "isLeaseDegraded" for the lease of the caller and "getReplicationStats".
+     *
+     * @param replicas the number of replicas to wait for, 0 to not wait. Defaults to DEFAULT_REPLICAS.
+     * @param timeout  the maximum time in ms to wait for the replicas, the latency budget.
+     *                 Defaults to DEFAULT_REPLICATION_TIMEOUT_MILLIS.
+     */
+    public void setDurability(int replicas, long timeout) {
+        this.replicas = replicas;
+        this.replicationTimeout = timeout;
+    }
+
+    /**
+     * The number of replicas which acknowledged the last acquire or extend waiting for replicas, of any
+     * lease of the lock. The holders check their own lease with "getLeaseAckedReplicas".
+     *
+     * @return the number of replicas, -1 if no operation waited yet
+     */
+    public long getAckedReplicas() {
+        return ackedReplicas;
+    }
+
+    /**
+     * The fewest replicas which acknowledged a write of the lease of the caller: its acquire, its extends
+     * and its renewals.
+     *
+     * @return the number of replicas, -1 if the lock is not held or its writes did not wait for replicas
+     */
+    public long getLeaseAckedReplicas() {
+        String token = getTokenAsString();
+        Long acked = token == null ? null : leaseAckedReplicas.get(token);
+        return acked == null ? -1 : acked;
+    }
+
+    /**
+     * Whether a write of the lease of the caller reached fewer replicas than "getReplicas" within the
+     * replication timeout, so that the lease may be lost by a failover.
+     */
+    public boolean isLeaseDegraded() {
+        long acked = getLeaseAckedReplicas();
+        return acked >= 0 && acked < replicas;
+    }
+
+    /**
+     * The number of leases this lock keeps the acknowledged replicas of.
+     */
+    int getTrackedLeases() {
+        return leaseAckedReplicas.size();
+    }
+
+    public ReplicationStats getReplicationStats() {
+        return new ReplicationStats(replicationWaits.get(), degradedWaits.get(), replicationWaitNanos.get(),
+                maxReplicationWaitNanos.get());
+    }
+
+    public void resetReplicationStats() {
+        replicationWaits.set(0);
+        degradedWaits.set(0);
+        replicationWaitNanos.set(0);
+        maxReplicationWaitNanos.set(0);
+    }
+
+    /**
+     * Run the acquire or the extend of the lease of "token" followed by 'WAIT replicas timeout' in one round
+     * trip, and record the acknowledged replicas on the lease when the script applied the write: an acquire
+     * starts the record of the lease, an extend keeps the fewest replicas.
+     *
+     * @return the reply of the script
+     */
+    private Object evalshaAndWait(String token, boolean acquire, String... evalsha) {
+        long start = System.nanoTime();
+        List<Object> replies = RedisCommands.callAll(jedisClient, evalsha,
+                new String[]{"WAIT", String.valueOf(replicas), String.valueOf(replicationTimeout)});
+        long elapsed = System.nanoTime() - start;
+
+        long acked = (Long) replies.get(1);
+        ackedReplicas = acked;
+        if (acquire && Long.valueOf(ACQUIRED).equals(replies.get(0))) {
+            leaseAckedReplicas.put(token, acked);
+        } else if (!acquire && Long.valueOf(1).equals(replies.get(0))) {
+            Long previous = leaseAckedReplicas.putIfAbsent(token, acked);
+            while (previous != null && previous > acked && !leaseAckedReplicas.replace(token, previous, acked)) {
+                previous = leaseAckedReplicas.get(token);
+            }
+        }
+        replicationWaits.incrementAndGet();
+        if (acked < replicas) {
+            degradedWaits.incrementAndGet();
+        }
+        replicationWaitNanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = maxReplicationWaitNanos.get())) {
+            if (maxReplicationWaitNanos.compareAndSet(max, elapsed)) {
+                break;
+            }
+        }
+
+        return replies.get(0);
+    }
+
     private void registerScripts() {
         acquireSHA = jedisClient.scriptLoad(LUA_ACQUIRE_SCRIPT);
         releaseSHA = jedisClient.scriptLoad(LUA_RELEASE_SCRIPT);
         extendSHA = jedisClient.scriptLoad(LUA_EXTEND_SCRIPT);
+        extendToSHA = jedisClient.scriptLoad(LUA_EXTEND_TO_SCRIPT);
+        stickyReleaseSHA = jedisClient.scriptLoad(LUA_STICKY_RELEASE_SCRIPT);
 
-        if (acquireSHA == null || releaseSHA == null || extendSHA == null){
+        if (acquireSHA == null || releaseSHA == null || extendSHA == null || extendToSHA == null
+                || stickyReleaseSHA == null){
             throw new LockException("Failed to register the LUA script");
         }
     }
 
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
     @Override
     protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
+        return doTryAcquire(token, leaseTime, false);
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime, boolean waiting) {
         if (acquireSHA == null) {
             registerScripts();
         }
 
-        Object result = jedisClient.evalsha(acquireSHA, 1, lockName, token, String.valueOf(expiredTime));
-        return result != null;
+        if (replicas > 0) {
+            return (Long) evalshaAndWait(token, true, waiting
+                    ? new String[]{"EVALSHA", acquireSHA, "2", lockName, getWaitersKey(), token, String.valueOf(leaseTime)}
+                    : new String[]{"EVALSHA", acquireSHA, "1", lockName, token, String.valueOf(leaseTime)});
+        }
+
+        Object result = waiting
+                ? jedisClient.evalsha(acquireSHA, 2, lockName, getWaitersKey(), token, String.valueOf(leaseTime))
+                : jedisClient.evalsha(acquireSHA, 1, lockName, token, String.valueOf(leaseTime));
+        return (Long) result;
     }
 
 
+    /**
+     * The retry of an attempt whose reply was lost waits for the replicas like the attempt, so that the
+     * lease it confirms is as durable.
+     */
+    @Override
+    protected long doReacquire(String token, long leaseTime) {
+        return doTryAcquire(token, leaseTime, false);
+    }
+
     @Override
     protected void doRelease(String token) {
         if (releaseSHA == null){
@@ -97,6 +372,26 @@ public class RedisLuaLock extends AbstractLock {
         }
 
         Object result = jedisClient.evalsha(releaseSHA, 1, lockName, token);
+        leaseAckedReplicas.remove(token);
+    }
+
+    @Override
+    protected boolean releaseIfContended(String token) {
+        if (stickyReleaseSHA == null){
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(stickyReleaseSHA, 2, lockName, getWaitersKey(), token);
+        if (Long.valueOf(1).equals(result)) {
+            leaseAckedReplicas.remove(token);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void leaseLost(String token) {
+        leaseAckedReplicas.remove(token);
     }
 
     @Override
@@ -105,7 +400,25 @@ public class RedisLuaLock extends AbstractLock {
             registerScripts();
         }
 
-        Object result = jedisClient.evalsha(extendSHA, 1, lockName, token, String.valueOf(additionalTime));
-        return result != null;
+        return extend(extendSHA, token, additionalTime);
+    }
+
+    @Override
+    protected boolean doExtendTo(final String token, long leaseTime) {
+        if (extendToSHA == null){
+            registerScripts();
+        }
+
+        return extend(extendToSHA, token, leaseTime);
+    }
+
+    private boolean extend(String sha, String token, long time) {
+        if (replicas > 0) {
+            return Long.valueOf(1).equals(evalshaAndWait(token, false, "EVALSHA", sha, "1", lockName, token,
+                    String.valueOf(time)));
+        }
+
+        Object result = jedisClient.evalsha(sha, 1, lockName, token, String.valueOf(time));
+        return Long.valueOf(1).equals(result);
     }
 }
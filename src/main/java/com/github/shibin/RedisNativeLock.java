@@ -0,0 +1,154 @@
+package com.github.shibin;
+
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * A shared, distribute lock which spends a single round trip per operation without MULTI/EXEC.
+ *
+ * Acquire is one 'SET key token NX PX ttl', so the key can never be left without a time to live,
+ * pipelined with a 'PTTL' telling a failed attempt how long the current holder keeps the lock.
+ * Release uses 'DELEX key IFEQ token' on servers supporting it (redis 8.4+). On older servers,
+ * and for extend which has no native compare-and-expire command, the scripts of
+ * {@link RedisLuaLock} are used instead.
+ */
+public class RedisNativeLock extends AbstractLock {
+
+    private Boolean compareAndDelete;
+    private String acquireSHA;
+    private String releaseSHA;
+    private String extendSHA;
+    private String extendToSHA;
+
+    public RedisNativeLock(Jedis jedisClient, String lockName) {
+        super(jedisClient, lockName);
+    }
+
+    public RedisNativeLock(Jedis jedisClient, String lockName, long expiredTime) {
+        super(jedisClient, lockName, expiredTime);
+    }
+
+    public RedisNativeLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking) {
+        super(jedisClient, lockName, expiredTime, blocking);
+    }
+
+    public RedisNativeLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking,
+                           long blockingTimeout) {
+        super(jedisClient, lockName, expiredTime, blocking, blockingTimeout);
+    }
+
+    public RedisNativeLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking,
+                           long blockingTimeout, long sleepTime) {
+        super(jedisClient, lockName, expiredTime, blocking, blockingTimeout, sleepTime);
+    }
+
+    public RedisNativeLock(Jedis jedisClient, String lockName, long expiredTime, boolean blocking,
+                           long blockingTimeout, long sleepTime, boolean threadLocal) {
+        super(jedisClient, lockName, expiredTime, blocking, blockingTimeout, sleepTime, threadLocal);
+    }
+
+    private boolean supportsCompareAndDelete() {
+        if (compareAndDelete == null) {
+            compareAndDelete = RedisCommands.isAtLeast(RedisCommands.serverVersion(jedisClient), 8, 4);
+        }
+
+        return compareAndDelete;
+    }
+
+    private void registerScripts() {
+        acquireSHA = jedisClient.scriptLoad(RedisLuaLock.LUA_ACQUIRE_SCRIPT);
+        releaseSHA = jedisClient.scriptLoad(RedisLuaLock.LUA_RELEASE_SCRIPT);
+        extendSHA = jedisClient.scriptLoad(RedisLuaLock.LUA_EXTEND_SCRIPT);
+        extendToSHA = jedisClient.scriptLoad(RedisLuaLock.LUA_EXTEND_TO_SCRIPT);
+
+        if (acquireSHA == null || releaseSHA == null || extendSHA == null || extendToSHA == null){
+            throw new LockException("Failed to register the LUA script");
+        }
+    }
+
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
+    @Override
+    protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
+        if (leaseTime > Integer.MAX_VALUE) {
+            // jedis only takes an int expiry
+            List<Object> replies = RedisCommands.callAll(jedisClient,
+                    new String[]{"SET", lockName, token, "NX", "PX", String.valueOf(leaseTime)},
+                    new String[]{"PTTL", lockName});
+            return toResult(replies.get(0) != null, (Long) replies.get(1));
+        }
+
+        Pipeline pipeline = jedisClient.pipelined();
+        Response<String> acquired = pipeline.set(lockName, token, "NX", "PX", (int) leaseTime);
+        Response<Long> ttl = pipeline.pttl(lockName);
+        pipeline.sync();
+
+        return toResult("OK".equals(acquired.get()), ttl.get());
+    }
+
+    private static long toResult(boolean acquired, long ttl) {
+        if (acquired) {
+            return ACQUIRED;
+        }
+
+        return ttl < 0 ? UNKNOWN_TTL : ttl;
+    }
+
+    /**
+     * 'SET NX' fails when the lock already holds the token, the retry uses the acquire script of
+     * {@link RedisLuaLock} which renews the lease in that case.
+     */
+    @Override
+    protected long doReacquire(String token, long leaseTime) {
+        if (acquireSHA == null) {
+            registerScripts();
+        }
+
+        return (Long) jedisClient.evalsha(acquireSHA, 1, lockName, token, String.valueOf(leaseTime));
+    }
+
+    @Override
+    protected void doRelease(String token) {
+        if (supportsCompareAndDelete()) {
+            RedisCommands.call(jedisClient, "DELEX", lockName, "IFEQ", token);
+            return;
+        }
+
+        if (releaseSHA == null) {
+            registerScripts();
+        }
+
+        jedisClient.evalsha(releaseSHA, 1, lockName, token);
+    }
+
+    @Override
+    protected boolean doExtend(final String token, long additionalTime) {
+        if (extendSHA == null) {
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(extendSHA, 1, lockName, token, String.valueOf(additionalTime));
+        return Long.valueOf(1).equals(result);
+    }
+
+    @Override
+    protected boolean doExtendTo(final String token, long leaseTime) {
+        if (extendToSHA == null) {
+            registerScripts();
+        }
+
+        Object result = jedisClient.evalsha(extendToSHA, 1, lockName, token, String.valueOf(leaseTime));
+        return Long.valueOf(1).equals(result);
+    }
+}
@@ -0,0 +1,417 @@
+package com.github.shibin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A lean RESP connection over an NIO channel for the lock commands.
+ *
+ * The commands are encoded into a reused direct buffer, fixed parts can be pre-encoded once with
+ * "encode" and copied as is, and the integer replies are parsed without allocating. Only the generic
+ * "readReply" allocates, for the replies which are not on the hot path.
+ *
+ * The low level write and read methods are not thread-safe, the callers synchronize on the connection.
+ * The RespTransport methods do so and can be called from any thread.
+ *
+ * After a connection error or a timeout the replies still pending can not be matched anymore, so the
+ * RespTransport methods drop the connection and the next call opens a new one.
+ */
+public class RespConnection implements RespTransport, Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
+    private final String host;
+    private final int port;
+    private final ByteBuffer out;
+    private final ByteBuffer in;
+    private final byte[] digits = new byte[20];
+    private final int timeout;
+    private SocketChannel channel;
+    private Selector selector;
+    private SelectionKey selectionKey;
+    private volatile boolean broken;
+    private volatile boolean closed;
+
+    public RespConnection(String host, int port) {
+        this(host, port, Protocol.DEFAULT_TIMEOUT, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param host       the redis host
+     * @param port       the redis port
+     * @param timeout    the connect and read timeout in ms
+     * @param bufferSize the size of each of the read and write buffers
+     */
+    public RespConnection(String host, int port, int timeout, int bufferSize) {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.out = ByteBuffer.allocateDirect(bufferSize);
+        this.in = ByteBuffer.allocateDirect(bufferSize);
+        connect();
+    }
+
+    private void connect() {
+        out.clear();
+        in.clear();
+        in.limit(0);
+
+        try {
+            channel = SocketChannel.open();
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(new InetSocketAddress(host, port), timeout);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            selectionKey = channel.register(selector, 0);
+        } catch (IOException e) {
+            disconnect();
+            throw new JedisConnectionException(e);
+        }
+        broken = false;
+    }
+
+    /**
+     * Close the socket, the next call of a RespTransport method opens a new one.
+     */
+    private void disconnect() {
+        broken = true;
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // the connection is dropped anyway
+        }
+    }
+
+    private void ensureConnected() {
+        if (closed) {
+            throw new JedisConnectionException("The connection is closed");
+        }
+        if (broken) {
+            connect();
+        }
+    }
+
+    public boolean isConnected() {
+        return !broken && !closed && channel.isConnected();
+    }
+
+    /**
+     * Drop the connection and open a new one, the replies still pending are lost.
+     */
+    public synchronized void reconnect() {
+        disconnect();
+        ensureConnected();
+    }
+
+    public void close() {
+        closed = true;
+        disconnect();
+    }
+
+    public synchronized Object call(byte[] command) {
+        ensureConnected();
+        try {
+            writeRaw(command);
+            flush();
+            return readReply();
+        } catch (JedisConnectionException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    public synchronized long callInteger(byte[] prefix, String token) {
+        ensureConnected();
+        try {
+            writeRaw(prefix);
+            writeBulk(token);
+            flush();
+            return readInteger();
+        } catch (JedisConnectionException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    public synchronized long callInteger(byte[] prefix, String token, long time) {
+        ensureConnected();
+        try {
+            writeRaw(prefix);
+            writeBulk(token);
+            writeBulk(time);
+            flush();
+            return readInteger();
+        } catch (JedisConnectionException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Encode a command or the beginning of a command, e.g. "EVALSHA sha 1 key" of an EVALSHA with
+     * "argc" arguments in total, to be copied with "writeRaw".
+     */
+    public static byte[] encode(int argc, String... args) {
+        StringBuilder builder = new StringBuilder();
+        builder.append('*').append(argc).append("\r\n");
+        for (String arg : args) {
+            builder.append('$').append(SafeEncoder.encode(arg).length).append("\r\n").append(arg).append("\r\n");
+        }
+        return SafeEncoder.encode(builder.toString());
+    }
+
+    public void writeRaw(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!out.hasRemaining()) {
+                flushBuffer();
+            }
+            int length = Math.min(out.remaining(), bytes.length - offset);
+            out.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    public void writeArrayHeader(int argc) {
+        writeHeader('*', argc);
+    }
+
+    public void writeBulk(byte[] bytes) {
+        writeHeader('$', bytes.length);
+        writeRaw(bytes);
+        writeRaw(CRLF);
+    }
+
+    /**
+     * Write a bulk string, without allocating when it is ASCII.
+     */
+    public void writeBulk(CharSequence value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) > 0x7f) {
+                writeBulk(SafeEncoder.encode(value.toString()));
+                return;
+            }
+        }
+
+        writeHeader('$', length);
+        for (int i = 0; i < length; i++) {
+            if (!out.hasRemaining()) {
+                flushBuffer();
+            }
+            out.put((byte) value.charAt(i));
+        }
+        writeRaw(CRLF);
+    }
+
+    public void writeBulk(long value) {
+        writeHeader('$', formatLong(value));
+        writeDigits(formatLong(value));
+        writeRaw(CRLF);
+    }
+
+    /**
+     * Send everything written so far.
+     */
+    public void flush() {
+        flushBuffer();
+    }
+
+    /**
+     * Read an integer reply without allocating.
+     *
+     * @throws JedisDataException if the reply is an error
+     */
+    public long readInteger() {
+        byte type = readByte();
+        if (type == ':') {
+            return readLong();
+        }
+
+        throw unexpectedReply(type);
+    }
+
+    /**
+     * Read any reply: Long, byte[] for bulk and status replies, List of replies or null.
+     *
+     * @throws JedisDataException if the reply is an error
+     */
+    public Object readReply() {
+        byte type = readByte();
+        switch (type) {
+            case ':':
+                return readLong();
+            case '+':
+                return readLine();
+            case '$': {
+                int length = (int) readLong();
+                if (length < 0) {
+                    return null;
+                }
+                byte[] bulk = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bulk[i] = readByte();
+                }
+                readByte();
+                readByte();
+                return bulk;
+            }
+            case '*': {
+                int length = (int) readLong();
+                if (length < 0) {
+                    return null;
+                }
+                List<Object> list = new ArrayList<Object>(length);
+                for (int i = 0; i < length; i++) {
+                    list.add(readReply());
+                }
+                return list;
+            }
+            default:
+                throw unexpectedReply(type);
+        }
+    }
+
+    private JedisDataException unexpectedReply(byte type) {
+        if (type == '-') {
+            return new JedisDataException(SafeEncoder.encode(readLine()));
+        }
+        return new JedisDataException("Unexpected reply type " + (char) type);
+    }
+
+    private void writeHeader(char type, long value) {
+        int length = formatLong(value);
+        if (out.remaining() < length + 3) {
+            flushBuffer();
+        }
+        out.put((byte) type);
+        writeDigits(length);
+        out.put(CRLF);
+    }
+
+    /**
+     * Format the value at the end of "digits", returns the number of bytes.
+     */
+    private int formatLong(long value) {
+        boolean negative = value < 0;
+        int position = digits.length;
+        do {
+            long digit = value % 10;
+            digits[--position] = (byte) ('0' + (negative ? -digit : digit));
+            value /= 10;
+        } while (value != 0);
+
+        if (negative) {
+            digits[--position] = '-';
+        }
+        return digits.length - position;
+    }
+
+    private void writeDigits(int length) {
+        if (out.remaining() < length) {
+            flushBuffer();
+        }
+        out.put(digits, digits.length - length, length);
+    }
+
+    private long readLong() {
+        long value = 0;
+        boolean negative = false;
+        while (true) {
+            byte b = readByte();
+            if (b == '-') {
+                negative = true;
+            } else if (b == '\r') {
+                readByte();
+                return negative ? -value : value;
+            } else {
+                value = value * 10 + (b - '0');
+            }
+        }
+    }
+
+    private byte[] readLine() {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            byte b = readByte();
+            if (b == '\r') {
+                readByte();
+                return SafeEncoder.encode(line.toString());
+            }
+            line.append((char) b);
+        }
+    }
+
+    private byte readByte() {
+        if (!in.hasRemaining()) {
+            fillBuffer();
+        }
+        return in.get();
+    }
+
+    private void fillBuffer() {
+        try {
+            in.compact();
+            try {
+                while (in.position() == 0) {
+                    int read = channel.read(in);
+                    if (read < 0) {
+                        throw new JedisConnectionException("Unexpected end of stream.");
+                    }
+                    if (read == 0) {
+                        await(SelectionKey.OP_READ);
+                    }
+                }
+            } finally {
+                in.flip();
+            }
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+    }
+
+    private void flushBuffer() {
+        try {
+            out.flip();
+            try {
+                while (out.hasRemaining()) {
+                    if (channel.write(out) == 0) {
+                        await(SelectionKey.OP_WRITE);
+                    }
+                }
+            } finally {
+                out.clear();
+            }
+        } catch (IOException e) {
+            throw new JedisConnectionException(e);
+        }
+    }
+
+    private void await(int operation) throws IOException {
+        selectionKey.interestOps(operation);
+        int ready = selector.select(timeout);
+        selector.selectedKeys().clear();
+        if (ready == 0) {
+            throw new JedisConnectionException("Timed out after " + timeout + " ms");
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.shibin;
+
+/**
+ * Sends pre-encoded lock commands and returns their replies, see {@link RespConnection}.
+ */
+public interface RespTransport {
+
+    /**
+     * Send a complete pre-encoded command.
+     *
+     * @return the reply: Long, byte[], List or null
+     */
+    Object call(byte[] command);
+
+    /**
+     * Send a pre-encoded command prefix completed by the token.
+     *
+     * @return the integer reply
+     */
+    long callInteger(byte[] prefix, String token);
+
+    /**
+     * Send a pre-encoded command prefix completed by the token and a time.
+     *
+     * @return the integer reply
+     */
+    long callInteger(byte[] prefix, String token, long time);
+
+    /**
+     * Drop the connection after a connection error and open a new one, the replies still pending are lost.
+     */
+    void reconnect();
+}
@@ -0,0 +1,323 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.Hashing;
+import redis.clients.util.Pool;
+
+/**
+ * Routes each lock name to one of several independent redis instances by consistent hashing, so that the
+ * lock throughput scales with the number of instances. Each instance is placed on the ring with virtual
+ * nodes, adding or removing one only remaps about 1/N of the lock names.
+ *
+ * A lock is bound to its shard when it is created. Remapping a name while it is held, by changing the
+ * shards or by skipping an unhealthy shard, lets a second client acquire it on another shard until the
+ * lease on the former shard ends. That is why unhealthy shards are only reported by default, see
+ * "setSkipUnhealthyShards".
+ *
+ * The locks of a shard added with a single connection take turns on it, one round trip at a time; the
+ * locks of a shard added with a pool borrow a connection for each round trip and run in parallel.
+ */
+public class ShardedLockService {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+    public static final int DEFAULT_FAILURE_THRESHOLD = Integer.getInteger("redis.lock.shard.failure.threshold", 3);
+    public static final long DEFAULT_RECOVERY_TIME_MILLIS = Long.getLong("redis.lock.shard.recovery.time", 5000);
+
+    /**
+     * A redis instance of the ring with its health.
+     */
+    public class Shard {
+        private final String name;
+        private final Jedis jedisClient;
+        private final Pool<Jedis> pool;
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong failures = new AtomicLong();
+        private volatile long lastFailure;
+
+        Shard(String name, Jedis jedisClient, Pool<Jedis> pool) {
+            this.name = name;
+            this.jedisClient = jedisClient;
+            this.pool = pool;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The connection shared by the locks of the shard, null for a shard added with a pool.
+         */
+        public Jedis getJedisClient() {
+            return jedisClient;
+        }
+
+        /**
+         * The pool of the shard, null for a shard added with a single connection.
+         */
+        public Pool<Jedis> getPool() {
+            return pool;
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * A shard is unhealthy after "failureThreshold" consecutive connection failures, until a
+         * command succeeds again.
+         */
+        public boolean isHealthy() {
+            return consecutiveFailures.get() < failureThreshold;
+        }
+
+        /**
+         * Whether the shard may be routed to: healthy, or unhealthy for long enough to be tried again.
+         */
+        boolean isAvailable() {
+            return isHealthy() || System.nanoTime() - lastFailure > TimeUnit.MILLISECONDS.toNanos(recoveryTime);
+        }
+
+        void succeeded() {
+            consecutiveFailures.set(0);
+        }
+
+        void failed() {
+            failures.incrementAndGet();
+            consecutiveFailures.incrementAndGet();
+            lastFailure = System.nanoTime();
+        }
+    }
+
+    private final int virtualNodes;
+    private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+    private volatile TreeMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long recoveryTime = DEFAULT_RECOVERY_TIME_MILLIS;
+    private boolean skipUnhealthyShards;
+
+    /**
+     * Create the service without shards, see "addShard".
+     */
+    public ShardedLockService() {
+        this(Collections.<Jedis>emptyList());
+    }
+
+    /**
+     * Create the service with a shard per client, named "host:port".
+     *
+     * @param jedisClients the clients of the independent redis instances
+     */
+    public ShardedLockService(List<Jedis> jedisClients) {
+        this(jedisClients, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardedLockService(List<Jedis> jedisClients, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        for (Jedis jedisClient : jedisClients) {
+            addShard(jedisClient.getClient().getHost() + ":" + jedisClient.getClient().getPort(), jedisClient);
+        }
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    /**
+     * @param recoveryTime the time in ms after which an unhealthy shard is routed to again, to check it
+     */
+    public void setRecoveryTime(long recoveryTime) {
+        this.recoveryTime = recoveryTime;
+    }
+
+    public boolean isSkipUnhealthyShards() {
+        return skipUnhealthyShards;
+    }
+
+    /**
+     * Route the locks of an unhealthy shard to the next shard of the ring, trading the mutual exclusion of the
+     * locks held on the failed shard for availability.
+     *
+     * @param skipUnhealthyShards defaults to false
+     */
+    public void setSkipUnhealthyShards(boolean skipUnhealthyShards) {
+        this.skipUnhealthyShards = skipUnhealthyShards;
+    }
+
+    /**
+     * Add a redis instance, the names stay stable when the shards are added in any order.
+     *
+     * @param name        the unique name of the shard, it determines its place on the ring
+     * @param jedisClient the client of the redis instance, shared by its locks one round trip at a time
+     */
+    public void addShard(String name, Jedis jedisClient) {
+        addShard(new Shard(name, jedisClient, null));
+    }
+
+    /**
+     * Add a redis instance, the names stay stable when the shards are added in any order.
+     *
+     * @param name the unique name of the shard, it determines its place on the ring
+     * @param pool the pool of connections to the redis instance, borrowed for each round trip
+     */
+    public void addShard(String name, Pool<Jedis> pool) {
+        addShard(new Shard(name, null, pool));
+    }
+
+    private synchronized void addShard(Shard shard) {
+        if (shards.containsKey(shard.getName())) {
+            throw new IllegalArgumentException("The shard " + shard.getName() + " already exists");
+        }
+
+        shards.put(shard.getName(), shard);
+        rebuildRing();
+    }
+
+    public synchronized void removeShard(String name) {
+        if (shards.remove(name) != null) {
+            rebuildRing();
+        }
+    }
+
+    public synchronized List<Shard> getShards() {
+        return Collections.unmodifiableList(new ArrayList<Shard>(shards.values()));
+    }
+
+    private void rebuildRing() {
+        TreeMap<Long, Shard> newRing = new TreeMap<Long, Shard>();
+        for (Shard shard : shards.values()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                newRing.put(Hashing.MURMUR_HASH.hash(shard.getName() + "-NODE-" + i), shard);
+            }
+        }
+        ring = newRing;
+    }
+
+    /**
+     * The shard owning a lock name.
+     */
+    public Shard getShard(String lockName) {
+        TreeMap<Long, Shard> current = ring;
+        if (current.isEmpty()) {
+            throw new LockException("There is no redis shard");
+        }
+
+        SortedMap<Long, Shard> tail = current.tailMap(Hashing.MURMUR_HASH.hash(lockName));
+        Shard owner = tail.isEmpty() ? current.firstEntry().getValue() : tail.get(tail.firstKey());
+        if (!skipUnhealthyShards || owner.isAvailable()) {
+            return owner;
+        }
+
+        for (Shard shard : tail.values()) {
+            if (shard.isAvailable()) {
+                return shard;
+            }
+        }
+        for (Shard shard : current.values()) {
+            if (shard.isAvailable()) {
+                return shard;
+            }
+        }
+        return owner;
+    }
+
+    public AbstractLock newLock(String lockName) {
+        return newLock(lockName, AbstractLock.DEFAULT_EXPIRED_TIME_MILLIS);
+    }
+
+    /**
+     * Create a lock on the shard owning its name, the health of the shard is updated by the lock operations.
+     *
+     * @param lockName    the name as the key of lock
+     * @param expiredTime indicate the max life time for the lock
+     */
+    public AbstractLock newLock(String lockName, long expiredTime) {
+        return new ShardLock(getShard(lockName), lockName, expiredTime);
+    }
+
+    private static class ShardLock extends SharedConnectionLuaLock {
+        private final Shard shard;
+
+        ShardLock(Shard shard, String lockName, long expiredTime) {
+            super(shard.getJedisClient(), shard.getPool(), lockName, expiredTime);
+            this.shard = shard;
+        }
+
+        @Override
+        protected long doTryAcquire(String token, long leaseTime, boolean waiting) {
+            try {
+                long result = super.doTryAcquire(token, leaseTime, waiting);
+                shard.succeeded();
+                return result;
+            } catch (JedisConnectionException e) {
+                shard.failed();
+                throw e;
+            }
+        }
+
+        @Override
+        protected void doRelease(String token) {
+            try {
+                super.doRelease(token);
+                shard.succeeded();
+            } catch (JedisConnectionException e) {
+                shard.failed();
+                throw e;
+            }
+        }
+
+        @Override
+        protected boolean releaseIfContended(String token) {
+            try {
+                boolean result = super.releaseIfContended(token);
+                shard.succeeded();
+                return result;
+            } catch (JedisConnectionException e) {
+                shard.failed();
+                throw e;
+            }
+        }
+
+        @Override
+        protected boolean doExtend(String token, long additionalTime) {
+            try {
+                boolean result = super.doExtend(token, additionalTime);
+                shard.succeeded();
+                return result;
+            } catch (JedisConnectionException e) {
+                shard.failed();
+                throw e;
+            }
+        }
+
+        @Override
+        protected boolean doExtendTo(String token, long leaseTime) {
+            try {
+                boolean result = super.doExtendTo(token, leaseTime);
+                shard.succeeded();
+                return result;
+            } catch (JedisConnectionException e) {
+                shard.failed();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.shibin;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * A RedisLuaLock among many locks sharing their connections. A jedis connection runs one command at a
+ * time, so the locks built on a single connection take turns on it, holding the monitor of the connection
+ * for each round trip, and the locks built on a pool borrow a connection for each round trip.
+ */
+class SharedConnectionLuaLock extends RedisLuaLock {
+    private final Pool<Jedis> pool;
+    private final Object monitor;
+
+    /**
+     * @param jedisClient the connection shared with the other locks, null to borrow from the pool
+     * @param pool        the pool of connections, used when "jedisClient" is null
+     * @param lockName    the name as the key of lock
+     * @param expiredTime indicate the max life time for the lock
+     */
+    SharedConnectionLuaLock(Jedis jedisClient, Pool<Jedis> pool, String lockName, long expiredTime) {
+        super(jedisClient, lockName, expiredTime);
+        this.pool = jedisClient == null ? pool : null;
+        this.monitor = jedisClient != null ? jedisClient : new Object();
+    }
+
+    /**
+     * @return whether a connection was borrowed, false for a nested call already holding one
+     */
+    private boolean borrow() {
+        if (pool == null || jedisClient != null) {
+            return false;
+        }
+        jedisClient = pool.getResource();
+        return true;
+    }
+
+    /**
+     * Return the borrowed connection, a broken one is destroyed by the pool.
+     */
+    private void giveBack(boolean borrowed) {
+        if (borrowed) {
+            Jedis client = jedisClient;
+            jedisClient = null;
+            client.close();
+        }
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime, boolean waiting) {
+        synchronized (monitor) {
+            boolean borrowed = borrow();
+            try {
+                return super.doTryAcquire(token, leaseTime, waiting);
+            } finally {
+                giveBack(borrowed);
+            }
+        }
+    }
+
+    @Override
+    protected void doRelease(String token) {
+        synchronized (monitor) {
+            boolean borrowed = borrow();
+            try {
+                super.doRelease(token);
+            } finally {
+                giveBack(borrowed);
+            }
+        }
+    }
+
+    @Override
+    protected boolean releaseIfContended(String token) {
+        synchronized (monitor) {
+            boolean borrowed = borrow();
+            try {
+                return super.releaseIfContended(token);
+            } finally {
+                giveBack(borrowed);
+            }
+        }
+    }
+
+    @Override
+    protected boolean doExtend(String token, long additionalTime) {
+        synchronized (monitor) {
+            boolean borrowed = borrow();
+            try {
+                return super.doExtend(token, additionalTime);
+            } finally {
+                giveBack(borrowed);
+            }
+        }
+    }
+
+    @Override
+    protected boolean doExtendTo(String token, long leaseTime) {
+        synchronized (monitor) {
+            boolean borrowed = borrow();
+            try {
+                return super.doExtendTo(token, leaseTime);
+            } finally {
+                giveBack(borrowed);
+            }
+        }
+    }
+
+    @Override
+    protected void resetConnection() {
+        synchronized (monitor) {
+            super.resetConnection();
+        }
+    }
+}
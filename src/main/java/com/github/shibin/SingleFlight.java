@@ -0,0 +1,249 @@
+package com.github.shibin;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.Pool;
+
+/**
+ * Computes a value once across the cluster when it is missing: one caller computes it under a lock,
+ * the concurrent callers wait for the result instead of polling the lock and reading it again.
+ *
+ * The value is stored in the key itself with a time to live of "resultTtl", a hit costs one round
+ * trip. On a miss, the same script either makes the caller the winner, holding "key:lock", or counts
+ * it in "key:waiters". The winner stores the value, releases the lock and pushes one copy of the value
+ * per waiter to "key:notify" in one script, so every waiter gets the value from its BLPOP. A caller is
+ * counted once however many times it waits, and a new winner clears the copies left by the last round.
+ *
+ * When the computation fails, the waiters are woken up to compete for the lock again. When the winner
+ * dies, its lock expires after "lockTime" and a waiter takes over.
+ *
+ * The scripts are loaded once and run with 'EVALSHA', and loaded again after a NOSCRIPT error.
+ *
+ * In a redis cluster the keys must hash to the same slot, use a hash tag such as "{user:42}".
+ */
+public class SingleFlight {
+    public static final long DEFAULT_LOCK_TIME_MILLIS = Long.getLong("redis.lock.single.flight.lock.time", 10000);
+    public static final long DEFAULT_RESULT_TTL_MILLIS = Long.getLong("redis.lock.single.flight.result.ttl", 60000);
+    public static final long DEFAULT_WAIT_TIMEOUT_MILLIS = Long.getLong("redis.lock.single.flight.wait.timeout", 10000);
+
+    /**
+     * Returns {1, value} on a hit, {2} when the caller becomes the winner, dropping the copies of the last
+     * value left in the notify list, otherwise returns {0, ttl} where ttl is the remaining ms of the winner's lock. A waiter
+     * is counted when ARGV[3] is '1', or when its count expired.
+     */
+    static final String LUA_ACQUIRE_SCRIPT = "" +
+            "local value = redis.call('get', KEYS[1]) \n" +
+            "if value then \n" +
+            "    return {1, value} \n" +
+            "end \n" +
+            "if redis.call('set', KEYS[2], ARGV[1], 'NX', 'PX', ARGV[2]) then \n" +
+            "    local head = redis.call('lindex', KEYS[4], 0) \n" +
+            "    if head and string.sub(head, 1, 1) == 'v' then \n" +
+            "        redis.call('del', KEYS[4]) \n" +
+            "    end \n" +
+            "    return {2} \n" +
+            "end \n" +
+            "local ttl = redis.call('pttl', KEYS[2]) \n" +
+            "if ARGV[3] == '1' or redis.call('exists', KEYS[3]) == 0 then \n" +
+            "    redis.call('incr', KEYS[3]) \n" +
+            "end \n" +
+            "redis.call('pexpire', KEYS[3], ARGV[2]) \n" +
+            "return {0, ttl} \n";
+
+    /**
+     * Stores the value, releases the lock if still owned and pushes the value to every waiter, replacing
+     * the copies left unused in the notify list.
+     */
+    static final String LUA_PUBLISH_SCRIPT = "" +
+            "redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3]) \n" +
+            "if redis.call('get', KEYS[2]) == ARGV[1] then \n" +
+            "    redis.call('del', KEYS[2]) \n" +
+            "end \n" +
+            "local waiters = tonumber(redis.call('get', KEYS[3]) or '0') \n" +
+            "redis.call('del', KEYS[3]) \n" +
+            "redis.call('del', KEYS[4]) \n" +
+            "for i = 1, waiters do \n" +
+            "    redis.call('rpush', KEYS[4], 'v' .. ARGV[2]) \n" +
+            "end \n" +
+            "if waiters > 0 then \n" +
+            "    redis.call('pexpire', KEYS[4], ARGV[3]) \n" +
+            "end \n" +
+            "return waiters \n";
+
+    /**
+     * Releases the lock if still owned and wakes up the waiters so that they compete again, replacing the
+     * copies left unused in the notify list.
+     */
+    static final String LUA_ABORT_SCRIPT = "" +
+            "if redis.call('get', KEYS[2]) ~= ARGV[1] then \n" +
+            "    return 0 \n" +
+            "end \n" +
+            "redis.call('del', KEYS[2]) \n" +
+            "local waiters = tonumber(redis.call('get', KEYS[3]) or '0') \n" +
+            "redis.call('del', KEYS[3]) \n" +
+            "redis.call('del', KEYS[4]) \n" +
+            "for i = 1, waiters do \n" +
+            "    redis.call('rpush', KEYS[4], 'f') \n" +
+            "end \n" +
+            "if waiters > 0 then \n" +
+            "    redis.call('pexpire', KEYS[4], ARGV[2]) \n" +
+            "end \n" +
+            "return waiters \n";
+
+    private static final String[] SCRIPTS = {LUA_ACQUIRE_SCRIPT, LUA_PUBLISH_SCRIPT, LUA_ABORT_SCRIPT};
+    private static final int ACQUIRE = 0;
+    private static final int PUBLISH = 1;
+    private static final int ABORT = 2;
+
+    private static final long HIT = 1;
+    private static final long WINNER = 2;
+
+    /**
+     * Computes the missing value.
+     */
+    public interface Computation {
+        String compute() throws Exception;
+    }
+
+    private final Pool<Jedis> pool;
+    private final long lockTime;
+    private final long resultTtl;
+    private final long waitTimeout;
+    private volatile String[] scriptSHAs;
+
+    public SingleFlight(Pool<Jedis> pool) {
+        this(pool, DEFAULT_LOCK_TIME_MILLIS, DEFAULT_RESULT_TTL_MILLIS, DEFAULT_WAIT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param pool        the pool of connections, the waiters hold one while blocked
+     * @param lockTime    the maximum time in ms of a computation before another caller takes over
+     * @param resultTtl   the time to live in ms of the computed value
+     * @param waitTimeout the maximum time in ms a caller waits for the value of another one
+     */
+    public SingleFlight(Pool<Jedis> pool, long lockTime, long resultTtl, long waitTimeout) {
+        this.pool = pool;
+        this.lockTime = lockTime;
+        this.resultTtl = resultTtl;
+        this.waitTimeout = waitTimeout;
+    }
+
+    private static List<String> keys(String key) {
+        return Arrays.asList(key, key + ":lock", key + ":waiters", key + ":notify");
+    }
+
+    /**
+     * Get the value of the key, computing it if it is missing and nobody is computing it.
+     *
+     * @param key         the key holding the value
+     * @param computation computes the value when this caller wins
+     * @return the value
+     * @throws LockException if the computation fails or no value is available within "waitTimeout"
+     */
+    public String get(String key, Computation computation) {
+        List<String> keys = keys(key);
+        String token = UUID.randomUUID().toString();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+        boolean counted = false;
+
+        while (true) {
+            Jedis jedis = pool.getResource();
+            try {
+                List reply = (List) evalsha(jedis, ACQUIRE, keys,
+                        Arrays.asList(token, String.valueOf(lockTime), counted ? "0" : "1"));
+                long type = (Long) reply.get(0);
+                if (type == HIT) {
+                    return (String) reply.get(1);
+                }
+                if (type == WINNER) {
+                    break;
+                }
+                counted = true;
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new LockException("Timed out waiting for the value of " + key);
+                }
+
+                // wait until the lock of the winner expires at most, then compete for it again
+                long wait = Math.min(Math.max((Long) reply.get(1), 1), remaining);
+                List<String> popped = jedis.blpop((int) Math.max(1, (wait + 999) / 1000), keys.get(3));
+                if (popped != null && !popped.isEmpty()) {
+                    if (popped.get(1).startsWith("v")) {
+                        return popped.get(1).substring(1);
+                    }
+                    // the computation failed and the counts were dropped, compete again as a new waiter
+                    counted = false;
+                }
+            } finally {
+                jedis.close();
+            }
+        }
+
+        return compute(keys, token, computation);
+    }
+
+    private String compute(List<String> keys, String token, Computation computation) {
+        String value;
+        try {
+            value = computation.compute();
+        } catch (Exception e) {
+            abort(keys, token);
+            throw new LockException("Failed to compute the value of " + keys.get(0), e);
+        } catch (Error e) {
+            abort(keys, token);
+            throw e;
+        }
+
+        Jedis jedis = pool.getResource();
+        try {
+            evalsha(jedis, PUBLISH, keys, Arrays.asList(token, value, String.valueOf(resultTtl)));
+        } finally {
+            jedis.close();
+        }
+        return value;
+    }
+
+    private void abort(List<String> keys, String token) {
+        Jedis jedis = pool.getResource();
+        try {
+            evalsha(jedis, ABORT, keys, Arrays.asList(token, String.valueOf(resultTtl)));
+        } finally {
+            jedis.close();
+        }
+    }
+
+    private Object evalsha(Jedis jedis, int script, List<String> keys, List<String> args) {
+        String[] shas = scriptSHAs;
+        if (shas == null) {
+            shas = registerScripts(jedis);
+        }
+
+        try {
+            return jedis.evalsha(shas[script], keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            // the scripts were flushed, e.g. by a restart of redis
+            return jedis.evalsha(registerScripts(jedis)[script], keys, args);
+        }
+    }
+
+    private String[] registerScripts(Jedis jedis) {
+        String[] shas = new String[SCRIPTS.length];
+        for (int i = 0; i < SCRIPTS.length; i++) {
+            shas[i] = jedis.scriptLoad(SCRIPTS[i]);
+            if (shas[i] == null) {
+                throw new LockException("Failed to register the LUA script");
+            }
+        }
+        scriptSHAs = shas;
+        return shas;
+    }
+}
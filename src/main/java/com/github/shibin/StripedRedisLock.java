@@ -0,0 +1,266 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.Pool;
+
+/**
+ * Maps an unbounded set of logical keys onto a fixed number of redis locks named "lockName:0" to
+ * "lockName:(stripes - 1)". The number of redis keys and of lock instances stays bounded whatever
+ * the number of keys, at the price of false sharing between keys hashed onto the same stripe.
+ *
+ * The stripes are not reentrant: a thread holding the stripe of a key must not acquire another key of
+ * the same stripe with "acquire", use "acquireAll" which takes every distinct stripe once, in a
+ * consistent order so that two callers never deadlock.
+ *
+ * A jedis connection runs one command at a time: the stripes built on a single connection take turns on
+ * it, the stripes built on a pool borrow a connection for each round trip and run in parallel.
+ */
+public class StripedRedisLock {
+
+    /**
+     * Contention statistics of one stripe, used to tune the number of stripes.
+     */
+    public static class StripeStats {
+        private final int stripe;
+        private final long acquisitions;
+        private final long failedAttempts;
+        private final long timeouts;
+        private final long waitNanos;
+
+        StripeStats(int stripe, long acquisitions, long failedAttempts, long timeouts, long waitNanos) {
+            this.stripe = stripe;
+            this.acquisitions = acquisitions;
+            this.failedAttempts = failedAttempts;
+            this.timeouts = timeouts;
+            this.waitNanos = waitNanos;
+        }
+
+        public int getStripe() {
+            return stripe;
+        }
+
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        /**
+         * The number of attempts which found the stripe held by another client.
+         */
+        public long getFailedAttempts() {
+            return failedAttempts;
+        }
+
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public long getWaitTime(TimeUnit unit) {
+            return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final String lockName;
+    private final AbstractLock[] stripes;
+    private final AtomicLongArray acquisitions;
+    private final AtomicLongArray failedAttempts;
+    private final AtomicLongArray timeouts;
+    private final AtomicLongArray waitNanos;
+
+    public StripedRedisLock(Jedis jedisClient, String lockName, int stripes) {
+        this(jedisClient, lockName, stripes, AbstractLock.DEFAULT_EXPIRED_TIME_MILLIS);
+    }
+
+    /**
+     * @param jedisClient jedis client instance, shared by the stripes one round trip at a time
+     * @param lockName    the prefix of the names of the stripes
+     * @param stripes     the number of redis locks
+     * @param expiredTime indicate the max life time for the stripes
+     */
+    public StripedRedisLock(Jedis jedisClient, String lockName, int stripes, long expiredTime) {
+        this(jedisClient, null, lockName, stripes, expiredTime);
+    }
+
+    public StripedRedisLock(Pool<Jedis> pool, String lockName, int stripes) {
+        this(pool, lockName, stripes, AbstractLock.DEFAULT_EXPIRED_TIME_MILLIS);
+    }
+
+    /**
+     * @param pool        the pool of the connections borrowed by the stripes for each round trip
+     * @param lockName    the prefix of the names of the stripes
+     * @param stripes     the number of redis locks
+     * @param expiredTime indicate the max life time for the stripes
+     */
+    public StripedRedisLock(Pool<Jedis> pool, String lockName, int stripes, long expiredTime) {
+        this(null, pool, lockName, stripes, expiredTime);
+    }
+
+    private StripedRedisLock(Jedis jedisClient, Pool<Jedis> pool, String lockName, int stripes, long expiredTime) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("The number of stripes must be positive");
+        }
+
+        this.lockName = lockName;
+        this.stripes = new AbstractLock[stripes];
+        this.acquisitions = new AtomicLongArray(stripes);
+        this.failedAttempts = new AtomicLongArray(stripes);
+        this.timeouts = new AtomicLongArray(stripes);
+        this.waitNanos = new AtomicLongArray(stripes);
+
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(jedisClient, pool, lockName + ":" + i, expiredTime, i);
+        }
+    }
+
+    /**
+     * A stripe counting its failed attempts.
+     */
+    private class Stripe extends SharedConnectionLuaLock {
+        private final int stripe;
+
+        Stripe(Jedis jedisClient, Pool<Jedis> pool, String lockName, long expiredTime, int stripe) {
+            super(jedisClient, pool, lockName, expiredTime);
+            this.stripe = stripe;
+        }
+
+        @Override
+        protected long doTryAcquire(String token, long leaseTime, boolean waiting) {
+            long result = super.doTryAcquire(token, leaseTime, waiting);
+            if (result != ACQUIRED) {
+                failedAttempts.incrementAndGet(stripe);
+            }
+            return result;
+        }
+    }
+
+    public String getLockName() {
+        return lockName;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * The stripe of a logical key.
+     */
+    public int stripeOf(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & 0x7fffffff) % stripes.length;
+    }
+
+    /**
+     * The lock guarding a logical key, e.g. to change its settings or to extend it.
+     */
+    public AbstractLock getLock(Object key) {
+        return stripes[stripeOf(key)];
+    }
+
+    public AbstractLock getStripe(int stripe) {
+        return stripes[stripe];
+    }
+
+    /**
+     * Acquire the stripe of a logical key.
+     *
+     * @return true if the lock is acquired, false if not blocking or timeout
+     * @throws InterruptedException in case thread interrupt
+     */
+    public boolean acquire(Object key) throws InterruptedException {
+        return acquireStripe(stripeOf(key));
+    }
+
+    public void release(Object key) {
+        stripes[stripeOf(key)].release();
+    }
+
+    /**
+     * Acquire the stripes of all the keys, each distinct stripe once and in ascending order.
+     * Either all the stripes are acquired or none.
+     *
+     * @return true if all the stripes are acquired
+     * @throws InterruptedException in case thread interrupt
+     */
+    public boolean acquireAll(Collection<?> keys) throws InterruptedException {
+        List<Integer> acquired = new ArrayList<Integer>();
+        boolean success = false;
+        try {
+            for (int stripe : stripesOf(keys)) {
+                if (!acquireStripe(stripe)) {
+                    return false;
+                }
+                acquired.add(stripe);
+            }
+            success = true;
+            return true;
+        } finally {
+            if (!success) {
+                for (int i = acquired.size() - 1; i >= 0; i--) {
+                    stripes[acquired.get(i)].release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the stripes acquired by "acquireAll".
+     */
+    public void releaseAll(Collection<?> keys) {
+        List<Integer> ordered = new ArrayList<Integer>(stripesOf(keys));
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            stripes[ordered.get(i)].release();
+        }
+    }
+
+    public StripeStats getStats(int stripe) {
+        return new StripeStats(stripe, acquisitions.get(stripe), failedAttempts.get(stripe), timeouts.get(stripe),
+                waitNanos.get(stripe));
+    }
+
+    public List<StripeStats> getStats() {
+        List<StripeStats> stats = new ArrayList<StripeStats>(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            stats.add(getStats(i));
+        }
+        return stats;
+    }
+
+    public void resetStats() {
+        for (int i = 0; i < stripes.length; i++) {
+            acquisitions.set(i, 0);
+            failedAttempts.set(i, 0);
+            timeouts.set(i, 0);
+            waitNanos.set(i, 0);
+        }
+    }
+
+    private TreeSet<Integer> stripesOf(Collection<?> keys) {
+        TreeSet<Integer> ordered = new TreeSet<Integer>();
+        for (Object key : keys) {
+            ordered.add(stripeOf(key));
+        }
+        return ordered;
+    }
+
+    private boolean acquireStripe(int stripe) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean result = stripes[stripe].acquire();
+        waitNanos.addAndGet(stripe, System.nanoTime() - start);
+
+        if (result) {
+            acquisitions.incrementAndGet(stripe);
+        } else {
+            timeouts.incrementAndGet(stripe);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.shibin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * The lease time follows the observed hold times and long holds are renewed automatically.
+ */
+public class AdaptiveLeaseTest {
+
+    private InMemoryLock.Store store;
+    private AdaptiveLeasePolicy policy;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new InMemoryLock.Store();
+        policy = new AdaptiveLeasePolicy(0.9, 20, 50, 5000, 100);
+    }
+
+    @Test
+    public void leaseTimeFromHoldTimes() throws Exception {
+        assertEquals(1000, policy.leaseTime("lock", 1000));
+
+        for (int i = 1; i < AdaptiveLeasePolicy.MIN_SAMPLES; i++) {
+            policy.recordHoldTime("lock", 100);
+        }
+        assertEquals(1000, policy.leaseTime("lock", 1000));
+
+        policy.recordHoldTime("lock", 100);
+        assertEquals(120, policy.leaseTime("lock", 1000));
+
+        for (int i = 0; i < AdaptiveLeasePolicy.SAMPLES; i++) {
+            policy.recordHoldTime("lock", i < AdaptiveLeasePolicy.SAMPLES / 2 ? 1 : 10000);
+        }
+        assertEquals(5000, policy.leaseTime("lock", 1000));
+
+        for (int i = 0; i < AdaptiveLeasePolicy.SAMPLES; i++) {
+            policy.recordHoldTime("lock", 1);
+        }
+        assertEquals(50, policy.leaseTime("lock", 1000));
+        assertEquals(1000, policy.leaseTime("other", 1000));
+    }
+
+    @Test
+    public void acquireWithThePredictedLease() throws Exception {
+        for (int i = 0; i < AdaptiveLeasePolicy.MIN_SAMPLES; i++) {
+            policy.recordHoldTime("adaptiveLock", 180);
+        }
+
+        InMemoryLock lock = new InMemoryLock(store, "adaptiveLock", 10000);
+        lock.setAdaptiveLeasePolicy(policy);
+        assertTrue(lock.acquire());
+
+        long remaining = TimeUnit.NANOSECONDS.toMillis(lock.remainingLeaseNanos());
+        assertTrue("remaining " + remaining, remaining <= 200 && remaining > 100);
+        lock.release();
+    }
+
+    @Test
+    public void renewLongHolds() throws Exception {
+        InMemoryLock holder = new InMemoryLock(store, "renewedLock", 50);
+        holder.setAdaptiveLeasePolicy(policy);
+        assertTrue(holder.acquire());
+
+        Thread.sleep(300);
+        assertTrue(holder.isHeld());
+        assertEquals(holder.getTokenAsString(), store.get("renewedLock"));
+
+        InMemoryLock other = new InMemoryLock(store, "renewedLock", 50);
+        other.setBlocking(false);
+        assertFalse(other.acquire());
+
+        holder.release();
+        assertNull(store.get("renewedLock"));
+
+        Thread.sleep(100);
+        assertNull(store.get("renewedLock"));
+    }
+
+    @Test
+    public void renewalsAreSerializedWithTheOtherCommands() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        InMemoryLock holder = new InMemoryLock(store, "serializedLock", 30) {
+            @Override
+            protected boolean doExtendTo(String token, long leaseTime) {
+                if (inFlight.incrementAndGet() > 1) {
+                    overlaps.incrementAndGet();
+                }
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                return super.doExtendTo(token, leaseTime);
+            }
+        };
+        holder.setAdaptiveLeasePolicy(policy);
+        assertTrue(holder.acquire());
+
+        long end = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < end) {
+            assertTrue(holder.extend(0));
+        }
+        holder.release();
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void locksIgnoringTheLeaseTimeAreRejected() throws Exception {
+        AbstractLock lock = new AbstractLock(null, "fixedLock") {
+            @Override
+            protected boolean doAcquire(String token) {
+                return true;
+            }
+
+            @Override
+            protected void doRelease(String token) {
+            }
+
+            @Override
+            protected boolean doExtend(String token, long additionalTime) {
+                return true;
+            }
+        };
+        lock.setAdaptiveLeasePolicy(policy);
+    }
+
+    @Test
+    public void withoutPolicyTheLeaseIsNotRenewed() throws Exception {
+        InMemoryLock holder = new InMemoryLock(store, "staticLock", 50);
+        assertTrue(holder.acquire());
+
+        Thread.sleep(100);
+        assertFalse(holder.isHeld());
+        assertNull(store.get("staticLock"));
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.shibin;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void shedCallersAboveTheLockLimit() throws Exception {
+        AdmissionController controller = new AdmissionController(100, 2, 100);
+
+        assertTrue(controller.tryEnter("lock"));
+        assertTrue(controller.tryEnter("lock"));
+        assertFalse(controller.tryEnter("lock"));
+        assertTrue(controller.tryEnter("otherLock"));
+        assertEquals(3, controller.getGlobalInFlight());
+    }
+
+    @Test
+    public void shedCallersAboveTheGlobalLimit() throws Exception {
+        AdmissionController controller = new AdmissionController(2, 10, 100);
+
+        assertTrue(controller.tryEnter("lock1"));
+        assertTrue(controller.tryEnter("lock2"));
+        assertFalse(controller.tryEnter("lock3"));
+    }
+
+    @Test
+    public void decreaseOnSlowAcquireAndRecoverOnFastAcquire() throws Exception {
+        AdmissionController controller = new AdmissionController(10, 10, 100);
+        long slow = TimeUnit.MILLISECONDS.toNanos(500);
+        long fast = TimeUnit.MILLISECONDS.toNanos(1);
+
+        assertTrue(controller.tryEnter("lock"));
+        controller.exit("lock", slow, true);
+        int decreased = controller.getLockLimit("lock");
+        assertEquals(9, decreased);
+        assertEquals(10, controller.getGlobalLimit());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(controller.tryEnter("lock"));
+            controller.exit("lock", fast, true);
+        }
+        assertTrue(controller.getLockLimit("lock") > decreased);
+    }
+
+    @Test
+    public void decreaseOncePerWindow() throws Exception {
+        AdmissionController controller = new AdmissionController(100, 10, 100);
+        long slow = TimeUnit.MILLISECONDS.toNanos(500);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(controller.tryEnter("lock"));
+            controller.exit("lock", slow, false);
+        }
+        assertEquals(9, controller.getLockLimit("lock"));
+
+        Thread.sleep(150);
+        assertTrue(controller.tryEnter("lock"));
+        controller.exit("lock", slow, false);
+        assertEquals(8, controller.getLockLimit("lock"));
+    }
+
+    @Test
+    public void hotLockDoesNotShedTheOtherLocks() throws Exception {
+        AdmissionController controller = new AdmissionController(10, 10, 1);
+        long slow = TimeUnit.MILLISECONDS.toNanos(500);
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(controller.tryEnter("hotLock"));
+            controller.exit("hotLock", slow, false);
+            Thread.sleep(2);
+        }
+        assertEquals(1, controller.getLockLimit("hotLock"));
+        assertEquals(10, controller.getGlobalLimit());
+
+        for (int i = 0; i < 9; i++) {
+            assertTrue(controller.tryEnter("otherLock"));
+        }
+        assertEquals(9, controller.getGlobalInFlight());
+    }
+
+    @Test
+    public void nonBlockingMissLeavesTheLimit() throws Exception {
+        AdmissionController controller = new AdmissionController(100, 10, 100);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(controller.tryEnter("lock"));
+            controller.exit("lock", TimeUnit.MILLISECONDS.toNanos(500), false, false);
+        }
+        assertEquals(10, controller.getLockLimit("lock"));
+    }
+
+    @Test
+    public void lowerLimitIsKeptWhileIdle() throws Exception {
+        AdmissionController controller = new AdmissionController(100, 10, 100);
+        assertTrue(controller.tryEnter("lock"));
+        controller.exit("lock", TimeUnit.MILLISECONDS.toNanos(500), true);
+        assertEquals(0, controller.getGlobalInFlight());
+        assertEquals(9, controller.getLockLimit("lock"));
+
+        // recovered, so nothing is left to remember
+        for (int i = 0; i < 20; i++) {
+            assertTrue(controller.tryEnter("lock"));
+            controller.exit("lock", TimeUnit.MILLISECONDS.toNanos(1), true);
+        }
+        assertEquals(10, controller.getLockLimit("lock"));
+    }
+
+    @Test
+    public void lockRejectsWaitersAboveTheLimit() throws Exception {
+        InMemoryLock.Store store = new InMemoryLock.Store();
+        AdmissionController controller = new AdmissionController(100, 1, 100);
+
+        InMemoryLock holder = new InMemoryLock(store, "hotLock", 1000);
+        assertTrue(holder.acquire());
+
+        final InMemoryLock lock = new InMemoryLock(store, "hotLock", 1000);
+        lock.setAdmissionController(controller);
+        lock.setBlockingTimeout(500);
+
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final AtomicInteger rejected = new AtomicInteger();
+        Thread waiter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    waiting.countDown();
+                    lock.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        waiter.start();
+        waiting.await();
+        Thread.sleep(50);
+
+        try {
+            lock.acquire();
+        } catch (LockRejectedException e) {
+            rejected.incrementAndGet();
+        }
+        waiter.join();
+
+        assertEquals(1, rejected.get());
+        assertEquals(0, controller.getGlobalInFlight());
+    }
+}
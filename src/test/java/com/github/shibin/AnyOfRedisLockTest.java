@@ -0,0 +1,125 @@
+package com.github.shibin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Claims slots from a FakeRedisServer running the acquire-any script.
+ */
+public class AnyOfRedisLockTest {
+
+    private static final List<String> SLOTS = Arrays.asList("{slots}:0", "{slots}:1", "{slots}:2");
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        server.close();
+    }
+
+    private AnyOfRedisLock newLock() {
+        return new AnyOfRedisLock(jedis, "slots", SLOTS, 10000, false, 0, 10, false);
+    }
+
+    @Test
+    public void claimEverySlotOnce() throws Exception {
+        Set<String> claimed = new HashSet<String>();
+        for (int i = 0; i < SLOTS.size(); i++) {
+            AnyOfRedisLock lock = newLock();
+            assertTrue(lock.acquire());
+            assertTrue(claimed.add(lock.getAcquiredName()));
+            assertEquals(lock.getTokenAsString(), server.get(lock.getAcquiredName()));
+        }
+
+        assertFalse(newLock().acquire());
+        assertEquals(new HashSet<String>(SLOTS), claimed);
+    }
+
+    @Test
+    public void releaseTheClaimedSlot() throws Exception {
+        AnyOfRedisLock[] locks = new AnyOfRedisLock[SLOTS.size()];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = newLock();
+            assertTrue(locks[i].acquire());
+        }
+
+        String released = locks[1].getAcquiredName();
+        locks[1].release();
+        assertNull(locks[1].getAcquiredName());
+        assertNull(server.get(released));
+
+        AnyOfRedisLock lock = newLock();
+        assertTrue(lock.acquire());
+        assertEquals(released, lock.getAcquiredName());
+        assertTrue(lock.extend(1000));
+        assertTrue(server.pttl(released) > 10000);
+    }
+
+    @Test
+    public void waitForTheEarliestLease() throws Exception {
+        for (int i = 0; i < SLOTS.size(); i++) {
+            AnyOfRedisLock holder = new AnyOfRedisLock(jedis, "slots", SLOTS, i == 0 ? 100 : 10000);
+            holder.setBlocking(false);
+            assertTrue(holder.acquire());
+        }
+
+        AnyOfRedisLock waiter = new AnyOfRedisLock(jedis, "slots", SLOTS, 10000, true, 2000, 1000, false);
+        long start = System.currentTimeMillis();
+        assertTrue(waiter.acquire());
+        assertTrue(System.currentTimeMillis() - start < 900);
+    }
+
+    @Test
+    public void keepTheNameAlreadyHeldWithTheToken() throws Exception {
+        jedis.set("{slots}:2", "token");
+
+        List result = (List) jedis.eval(AnyOfRedisLock.LUA_ACQUIRE_ANY_SCRIPT, SLOTS,
+                Arrays.asList("token", "10000", "0"));
+        assertEquals(Long.valueOf(3), result.get(0));
+        assertNull(server.get("{slots}:0"));
+        assertTrue(server.pttl("{slots}:2") > 0);
+    }
+
+    @Test
+    public void reacquireAfterALostReplyKeepsOneSlot() throws Exception {
+        FaultProxy proxy = new FaultProxy("127.0.0.1", server.getPort());
+        Jedis proxied = new Jedis("127.0.0.1", proxy.getPort(), 200);
+        try {
+            AnyOfRedisLock lock = new AnyOfRedisLock(proxied, "slots", SLOTS, 10000, false, 0, 10, false);
+            assertTrue(lock.acquire());
+            lock.release();
+
+            proxy.dropReplies(1);
+            assertTrue(lock.acquire());
+            int held = 0;
+            for (String slot : SLOTS) {
+                if (lock.getTokenAsString().equals(server.get(slot))) {
+                    held++;
+                }
+            }
+            assertEquals(1, held);
+            assertEquals(lock.getTokenAsString(), server.get(lock.getAcquiredName()));
+            lock.release();
+        } finally {
+            proxied.close();
+            proxy.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.shibin;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * The renewals run on a connection of the background pool while the application blocks the client of the
+ * lock, against a FakeRedisServer.
+ */
+public class BackgroundPoolTest {
+
+    private static final long LEASE_TIME = 150;
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+    private JedisPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+        pool = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        pool.close();
+        server.close();
+    }
+
+    @Test
+    public void renewalsDoNotWaitForTheSharedClient() throws Exception {
+        RedisLuaLock lock = new RedisLuaLock(jedis, "backgroundLock", LEASE_TIME, false);
+        lock.setAdaptiveLeasePolicy(new AdaptiveLeasePolicy(0.9, 20, 50, 5000, 100));
+        lock.setBackgroundPool(pool);
+        assertTrue(lock.acquire());
+
+        // the application keeps the shared connection busy for several lease times
+        jedis.blpop(1, "queue");
+
+        assertTrue(lock.isHeld());
+        assertEquals(lock.getTokenAsString(), server.get("backgroundLock"));
+        lock.release();
+        assertNull(server.get("backgroundLock"));
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.shibin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the space-saving summaries of ContentionProfiler and the recording from the acquire path.
+ */
+public class ContentionProfilerTest {
+
+    private ContentionProfiler profiler;
+
+    @Before
+    public void setUp() throws Exception {
+        profiler = new ContentionProfiler(4);
+    }
+
+    @Test
+    public void keepHeavyHittersAmongManyNames() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            profiler.recordFailedAttempt("hot");
+            if (i % 2 == 0) {
+                profiler.recordFailedAttempt("warm");
+            }
+            profiler.recordFailedAttempt("cold:" + i);
+        }
+
+        List<ContentionProfiler.Entry> top = profiler.top(ContentionProfiler.Metric.FAILED_ATTEMPTS, 2);
+        assertEquals(2, top.size());
+        assertEquals("hot", top.get(0).getLockName());
+        assertTrue(top.get(0).getCount() - top.get(0).getError() <= 10000);
+        assertTrue(top.get(0).getCount() >= 10000);
+        assertEquals("warm", top.get(1).getLockName());
+        assertTrue(top.get(1).getCount() >= 5000);
+    }
+
+    @Test
+    public void keepHeavyHittersAcrossStripes() throws Exception {
+        ContentionProfiler striped = new ContentionProfiler(64, 4);
+        for (int i = 0; i < 10000; i++) {
+            striped.recordFailedAttempt("hot");
+            if (i % 2 == 0) {
+                striped.recordFailedAttempt("warm");
+            }
+            striped.recordFailedAttempt("cold:" + i);
+        }
+
+        List<ContentionProfiler.Entry> top = striped.top(ContentionProfiler.Metric.FAILED_ATTEMPTS, 2);
+        assertEquals("hot", top.get(0).getLockName());
+        assertTrue(top.get(0).getCount() >= 10000);
+        assertEquals("warm", top.get(1).getLockName());
+        assertTrue(top.get(1).getCount() >= 5000);
+        assertEquals(64, striped.top(ContentionProfiler.Metric.FAILED_ATTEMPTS, 100).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityBelowTheStripes() throws Exception {
+        new ContentionProfiler(2, 4);
+    }
+
+    @Test
+    public void enabledByDefault() throws Exception {
+        InMemoryLock lock = new InMemoryLock(new InMemoryLock.Store(), "lock", 10000);
+        assertSame(ContentionProfiler.getDefault(), lock.getContentionProfiler());
+    }
+
+    @Test
+    public void reset() throws Exception {
+        profiler.recordFailedAttempt("lock");
+        profiler.recordWait("lock", 1000, true);
+        profiler.reset();
+
+        assertTrue(profiler.top(ContentionProfiler.Metric.FAILED_ATTEMPTS, 10).isEmpty());
+        assertTrue(profiler.top(ContentionProfiler.Metric.WAIT_TIME, 10).isEmpty());
+        assertTrue(profiler.top(ContentionProfiler.Metric.TIMEOUTS, 10).isEmpty());
+    }
+
+    @Test
+    public void recordContendedAcquires() throws Exception {
+        InMemoryLock.Store store = new InMemoryLock.Store();
+        InMemoryLock holder = new InMemoryLock(store, "profiledLock", 10000);
+        holder.setContentionProfiler(profiler);
+        assertTrue(holder.acquire());
+        assertTrue(profiler.top(ContentionProfiler.Metric.FAILED_ATTEMPTS, 10).isEmpty());
+
+        InMemoryLock waiter = new InMemoryLock(store, "profiledLock", 10000);
+        waiter.setContentionProfiler(profiler);
+        waiter.setMaxSleepTime(10);
+        waiter.setBlockingTimeout(50);
+        assertFalse(waiter.acquire());
+
+        ContentionProfiler.Entry failed = profiler.top(ContentionProfiler.Metric.FAILED_ATTEMPTS, 1).get(0);
+        assertEquals("profiledLock", failed.getLockName());
+        assertEquals(waiter.acquireCalls.get(), failed.getCount());
+        assertTrue(profiler.top(ContentionProfiler.Metric.WAIT_TIME, 1).get(0).getCount() >= 40000000L);
+        assertEquals(1, profiler.top(ContentionProfiler.Metric.TIMEOUTS, 1).get(0).getCount());
+    }
+}
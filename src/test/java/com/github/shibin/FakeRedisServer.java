@@ -0,0 +1,966 @@
+package com.github.shibin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaInteger;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * A redis stand-in speaking RESP2 over TCP, with the commands used by the locks of this package.
+ *
+ * The lua scripts and function libraries are run as is by a lua interpreter (luaj), so the tests exercise
+ * the real scripts. Like redis, every command and script is applied atomically, here under the monitor
+ * of the server.
+ */
+public class FakeRedisServer {
+
+    private static class Entry {
+        private Object value;
+        private long expireAt;
+        private final Map<String, Long> fieldExpireAt = new HashMap<String, Long>();
+    }
+
+    /**
+     * The state of one client connection.
+     */
+    private static class Session {
+        private long id;
+        private OutputStream out;
+        private Map<String, Long> watched;
+        private List<List<String>> queued;
+        private long redirect;
+        private List<String> trackedPrefixes;
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Map<String, Long> versions = new HashMap<String, Long>();
+    private final Map<String, String> scripts = new HashMap<String, String>();
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final List<Session> sessions = new ArrayList<Session>();
+    private long nextSessionId;
+    private long commands;
+    private int replicas;
+    private String version = "8.4.0";
+    private final Lua lua = new Lua();
+
+    public FakeRedisServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "fake-redis-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized long getCommandCount() {
+        return commands;
+    }
+
+    /**
+     * The number of replicas acknowledging the writes, answered to 'WAIT'.
+     */
+    public synchronized void setReplicas(int replicas) {
+        this.replicas = replicas;
+        notifyAll();
+    }
+
+    /**
+     * The version reported by 'INFO server', defaults to 8.4.0.
+     */
+    public synchronized void setVersion(String version) {
+        this.version = version;
+    }
+
+    public synchronized String get(String key) {
+        Entry entry = lookup(key);
+        return entry == null ? null : (String) entry.value;
+    }
+
+    public synchronized long pttl(String key) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return -2;
+        }
+        return entry.expireAt == 0 ? -1 : entry.expireAt - System.currentTimeMillis();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+
+            Thread handler = new Thread(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            }, "fake-redis-connection");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        Session session = new Session();
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            session.out = out;
+            register(session);
+            while (true) {
+                List<String> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                Object reply = execute(session, command);
+                synchronized (out) {
+                    writeReply(out, reply);
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+                if ("QUIT".equalsIgnoreCase(command.get(0))) {
+                    synchronized (out) {
+                        out.flush();
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client or a proxy closed the connection
+        } finally {
+            unregister(session);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+
+        int argc = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<String>(argc);
+        for (int i = 0; i < argc; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                read += n;
+            }
+            in.read();
+            in.read();
+            command.add(SafeEncoder.encode(bytes));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                return null;
+            }
+            line.append((char) b);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    /**
+     * A reply: Long, String for bulk strings, Status, Error, List or null.
+     */
+    private static class Status {
+        private final String message;
+
+        Status(String message) {
+            this.message = message;
+        }
+    }
+
+    private static class Error {
+        private final String message;
+
+        Error(String message) {
+            this.message = message;
+        }
+    }
+
+    private static final Status OK = new Status("OK");
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        appendReply(builder, reply);
+        out.write(SafeEncoder.encode(builder.toString()));
+    }
+
+    private static void appendReply(StringBuilder builder, Object reply) {
+        if (reply == null) {
+            builder.append("$-1\r\n");
+        } else if (reply instanceof Long) {
+            builder.append(':').append(reply).append("\r\n");
+        } else if (reply instanceof Status) {
+            builder.append('+').append(((Status) reply).message).append("\r\n");
+        } else if (reply instanceof Error) {
+            builder.append('-').append(((Error) reply).message).append("\r\n");
+        } else if (reply instanceof NullArray) {
+            builder.append("*-1\r\n");
+        } else if (reply instanceof String) {
+            builder.append('$').append(SafeEncoder.encode((String) reply).length).append("\r\n")
+                    .append(reply).append("\r\n");
+        } else {
+            List list = (List) reply;
+            builder.append('*').append(list.size()).append("\r\n");
+            for (Object item : list) {
+                appendReply(builder, item);
+            }
+        }
+    }
+
+    private synchronized Object execute(Session session, List<String> command) {
+        commands++;
+        String name = command.get(0).toUpperCase();
+
+        if (session.queued != null && !"EXEC".equals(name) && !"DISCARD".equals(name)) {
+            session.queued.add(command);
+            return new Status("QUEUED");
+        }
+
+        if ("WATCH".equals(name)) {
+            if (session.watched == null) {
+                session.watched = new HashMap<String, Long>();
+            }
+            for (String key : command.subList(1, command.size())) {
+                lookup(key);
+                session.watched.put(key, version(key));
+            }
+            return OK;
+        } else if ("UNWATCH".equals(name)) {
+            session.watched = null;
+            return OK;
+        } else if ("MULTI".equals(name)) {
+            session.queued = new ArrayList<List<String>>();
+            return OK;
+        } else if ("DISCARD".equals(name)) {
+            session.queued = null;
+            session.watched = null;
+            return OK;
+        } else if ("EXEC".equals(name)) {
+            return exec(session);
+        } else if ("CLIENT".equals(name) && "ID".equalsIgnoreCase(command.get(1))) {
+            return session.id;
+        } else if ("CLIENT".equals(name) && "TRACKING".equalsIgnoreCase(command.get(1))) {
+            return tracking(session, command);
+        } else if ("SUBSCRIBE".equals(name)) {
+            return Arrays.<Object>asList("subscribe", command.get(1), 1L);
+        }
+
+        return apply(command);
+    }
+
+    private Object exec(Session session) {
+        List<List<String>> queued = session.queued;
+        Map<String, Long> watched = session.watched;
+        session.queued = null;
+        session.watched = null;
+        if (queued == null) {
+            return new Error("ERR EXEC without MULTI");
+        }
+
+        if (watched != null) {
+            for (Map.Entry<String, Long> watch : watched.entrySet()) {
+                lookup(watch.getKey());
+                if (!version(watch.getKey()).equals(watch.getValue())) {
+                    return new NullArray();
+                }
+            }
+        }
+
+        List<Object> replies = new ArrayList<Object>(queued.size());
+        for (List<String> command : queued) {
+            replies.add(apply(command));
+        }
+        return replies;
+    }
+
+    /**
+     * An aborted EXEC.
+     */
+    private static class NullArray extends ArrayList<Object> {
+    }
+
+    private Object apply(List<String> command) {
+        String name = command.get(0).toUpperCase();
+        if ("PING".equals(name)) {
+            return new Status("PONG");
+        } else if ("QUIT".equals(name)) {
+            return OK;
+        } else if ("INFO".equals(name)) {
+            return "# Server\r\nredis_version:" + version + "\r\n";
+        } else if ("GET".equals(name)) {
+            return value(command.get(1));
+        } else if ("EXISTS".equals(name)) {
+            return lookup(command.get(1)) == null ? 0L : 1L;
+        } else if ("SETNX".equals(name)) {
+            return setnx(command.get(1), command.get(2)) ? 1L : 0L;
+        } else if ("DEL".equals(name)) {
+            return delete(command.get(1)) ? 1L : 0L;
+        } else if ("DELEX".equals(name)) {
+            if (!command.get(3).equals(value(command.get(1)))) {
+                return 0L;
+            }
+            return delete(command.get(1)) ? 1L : 0L;
+        } else if ("PEXPIRE".equals(name)) {
+            return pexpire(command.get(1), Long.parseLong(command.get(2))) ? 1L : 0L;
+        } else if ("PTTL".equals(name)) {
+            return pttl(command.get(1));
+        } else if ("SCRIPT".equals(name) && "LOAD".equalsIgnoreCase(command.get(1))) {
+            String sha = sha1(command.get(2));
+            scripts.put(sha, command.get(2));
+            return sha;
+        } else if ("SCRIPT".equals(name) && "FLUSH".equalsIgnoreCase(command.get(1))) {
+            scripts.clear();
+            return OK;
+        } else if ("SET".equals(name)) {
+            return set(command) ? OK : null;
+        } else if ("INCR".equals(name)) {
+            return incrBy(command.get(1), 1);
+        } else if ("DECR".equals(name)) {
+            return incrBy(command.get(1), -1);
+        } else if ("DECRBY".equals(name)) {
+            return incrBy(command.get(1), -Long.parseLong(command.get(2)));
+        } else if ("RPUSH".equals(name)) {
+            for (String value : command.subList(2, command.size())) {
+                rpush(command.get(1), value);
+            }
+            return (long) listOf(command.get(1)).size();
+        } else if ("LPOP".equals(name)) {
+            List<String> list = listOf(command.get(1));
+            if (list.isEmpty()) {
+                return null;
+            }
+            String value = list.remove(0);
+            touch(command.get(1));
+            return value;
+        } else if ("LLEN".equals(name)) {
+            return (long) listOf(command.get(1)).size();
+        } else if ("LINDEX".equals(name)) {
+            List<String> list = listOf(command.get(1));
+            int index = Integer.parseInt(command.get(2));
+            if (index < 0) {
+                index += list.size();
+            }
+            return index >= 0 && index < list.size() ? list.get(index) : null;
+        } else if ("BLPOP".equals(name)) {
+            return blpop(command.subList(1, command.size() - 1), Long.parseLong(command.get(command.size() - 1)));
+        } else if ("SADD".equals(name)) {
+            touch(command.get(1));
+            return setOf(command.get(1), true).add(command.get(2)) ? 1L : 0L;
+        } else if ("SREM".equals(name)) {
+            touch(command.get(1));
+            return setOf(command.get(1), false).remove(command.get(2)) ? 1L : 0L;
+        } else if ("SCARD".equals(name)) {
+            return (long) setOf(command.get(1), false).size();
+        } else if ("HSETNX".equals(name)) {
+            Map<String, String> hash = hashOf(command.get(1), true);
+            if (hashField(command.get(1), command.get(2)) != null) {
+                return 0L;
+            }
+            hash.put(command.get(2), command.get(3));
+            touch(command.get(1));
+            return 1L;
+        } else if ("HGET".equals(name)) {
+            return hashField(command.get(1), command.get(2));
+        } else if ("HDEL".equals(name)) {
+            boolean deleted = hashField(command.get(1), command.get(2)) != null;
+            Entry entry = lookup(command.get(1));
+            if (deleted) {
+                hashOf(command.get(1), false).remove(command.get(2));
+                entry.fieldExpireAt.remove(command.get(2));
+                touch(command.get(1));
+            }
+            return deleted ? 1L : 0L;
+        } else if ("HPEXPIRE".equals(name)) {
+            // HPEXPIRE key ms FIELDS 1 field
+            String field = command.get(5);
+            if (hashField(command.get(1), field) == null) {
+                return Arrays.<Object>asList(-2L);
+            }
+            lookup(command.get(1)).fieldExpireAt.put(field,
+                    System.currentTimeMillis() + Long.parseLong(command.get(2)));
+            touch(command.get(1));
+            return Arrays.<Object>asList(1L);
+        } else if ("HPTTL".equals(name)) {
+            // HPTTL key FIELDS 1 field
+            String field = command.get(4);
+            if (hashField(command.get(1), field) == null) {
+                return Arrays.<Object>asList(-2L);
+            }
+            Long expireAt = lookup(command.get(1)).fieldExpireAt.get(field);
+            return Arrays.<Object>asList(expireAt == null ? -1L : expireAt - System.currentTimeMillis());
+        } else if ("WAIT".equals(name)) {
+            return waitReplicas(Integer.parseInt(command.get(1)), Long.parseLong(command.get(2)));
+        } else if ("EVAL".equals(name)) {
+            int numKeys = Integer.parseInt(command.get(2));
+            return lua.eval(command.get(1), command.subList(3, 3 + numKeys), command.subList(3 + numKeys, command.size()));
+        } else if ("EVALSHA".equals(name)) {
+            String script = scripts.get(command.get(1));
+            if (script == null) {
+                return new Error("NOSCRIPT No matching script. Please use EVAL.");
+            }
+            int numKeys = Integer.parseInt(command.get(2));
+            return lua.eval(script, command.subList(3, 3 + numKeys), command.subList(3 + numKeys, command.size()));
+        } else if ("FUNCTION".equals(name) && "LOAD".equalsIgnoreCase(command.get(1))) {
+            boolean replace = "REPLACE".equalsIgnoreCase(command.get(2));
+            return lua.loadLibrary(command.get(command.size() - 1), replace);
+        } else if ("FUNCTION".equals(name) && "FLUSH".equalsIgnoreCase(command.get(1))) {
+            lua.flushLibraries();
+            return OK;
+        } else if ("FCALL".equals(name) || "FCALL_RO".equals(name)) {
+            int numKeys = Integer.parseInt(command.get(2));
+            return lua.fcall(command.get(1), command.subList(3, 3 + numKeys),
+                    command.subList(3 + numKeys, command.size()));
+        }
+
+        return new Error("ERR unknown command '" + command.get(0) + "'");
+    }
+
+    /**
+     * Runs the lua scripts and function libraries with luaj, "redis.call" going through "apply".
+     * Like redis, lua numbers are truncated to integers, false is a null reply and tables are arrays
+     * unless they hold an "ok" or "err" field.
+     */
+    private class Lua {
+        private final Globals globals = JsePlatform.standardGlobals();
+        private final Map<String, LuaValue> chunks = new HashMap<String, LuaValue>();
+        private final Map<String, String> libraries = new HashMap<String, String>();
+        private final Map<String, LuaValue> functions = new HashMap<String, LuaValue>();
+        private final Map<String, String> functionLibraries = new HashMap<String, String>();
+        private Map<String, LuaValue> registering;
+
+        Lua() {
+            LuaTable redis = new LuaTable();
+            redis.set("call", new VarArgFunction() {
+                @Override
+                public Varargs invoke(Varargs args) {
+                    Object reply = apply(toCommand(args));
+                    if (reply instanceof Error) {
+                        throw new LuaError(((Error) reply).message);
+                    }
+                    return toLua(reply);
+                }
+            });
+            redis.set("pcall", new VarArgFunction() {
+                @Override
+                public Varargs invoke(Varargs args) {
+                    return toLua(apply(toCommand(args)));
+                }
+            });
+            redis.set("register_function", new VarArgFunction() {
+                @Override
+                public Varargs invoke(Varargs args) {
+                    if (registering == null) {
+                        throw new LuaError("register_function can only be called on FUNCTION LOAD");
+                    }
+                    if (args.arg1().istable()) {
+                        registering.put(args.arg1().get("function_name").tojstring(), args.arg1().get("callback"));
+                    } else {
+                        registering.put(args.arg1().tojstring(), args.arg(2));
+                    }
+                    return NONE;
+                }
+            });
+            globals.set("redis", redis);
+        }
+
+        Object eval(String script, List<String> keys, List<String> args) {
+            LuaValue chunk = chunks.get(script);
+            try {
+                if (chunk == null) {
+                    chunk = globals.load(script, "script");
+                    chunks.put(script, chunk);
+                }
+                globals.set("KEYS", toTable(keys));
+                globals.set("ARGV", toTable(args));
+                return fromLua(chunk.call());
+            } catch (LuaError e) {
+                return new Error("ERR Error running script: " + e.getMessage());
+            }
+        }
+
+        Object loadLibrary(String code, boolean replace) {
+            String header = code.substring(0, code.indexOf('\n'));
+            String library = header.substring(header.indexOf("name=") + "name=".length()).trim();
+            if (libraries.containsKey(library) && !replace) {
+                return new Error("ERR Library '" + library + "' already exists");
+            }
+
+            registering = new HashMap<String, LuaValue>();
+            try {
+                // the shebang line is not lua
+                globals.load(code.substring(header.length()), library).call();
+            } catch (LuaError e) {
+                return new Error("ERR Error registering functions: " + e.getMessage());
+            } finally {
+                Map<String, LuaValue> registered = registering;
+                registering = null;
+                if (registered != null) {
+                    dropLibrary(library);
+                    for (Map.Entry<String, LuaValue> function : registered.entrySet()) {
+                        functions.put(function.getKey(), function.getValue());
+                        functionLibraries.put(function.getKey(), library);
+                    }
+                }
+            }
+            libraries.put(library, code);
+            return library;
+        }
+
+        private void dropLibrary(String library) {
+            for (Iterator<Map.Entry<String, String>> it = functionLibraries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, String> function = it.next();
+                if (function.getValue().equals(library)) {
+                    functions.remove(function.getKey());
+                    it.remove();
+                }
+            }
+        }
+
+        void flushLibraries() {
+            libraries.clear();
+            functions.clear();
+            functionLibraries.clear();
+        }
+
+        Object fcall(String function, List<String> keys, List<String> args) {
+            LuaValue callback = functions.get(function);
+            if (callback == null) {
+                return new Error("ERR Function not found");
+            }
+            try {
+                return fromLua(callback.call(toTable(keys), toTable(args)));
+            } catch (LuaError e) {
+                return new Error("ERR Error running function: " + e.getMessage());
+            }
+        }
+
+        private List<String> toCommand(Varargs args) {
+            List<String> command = new ArrayList<String>(args.narg());
+            for (int i = 1; i <= args.narg(); i++) {
+                LuaValue arg = args.arg(i);
+                if (arg.type() == LuaValue.TNUMBER && arg.todouble() == arg.tolong()) {
+                    command.add(String.valueOf(arg.tolong()));
+                } else {
+                    command.add(arg.tojstring());
+                }
+            }
+            return command;
+        }
+
+        private LuaTable toTable(List<String> values) {
+            LuaTable table = new LuaTable();
+            for (int i = 0; i < values.size(); i++) {
+                table.set(i + 1, LuaValue.valueOf(values.get(i)));
+            }
+            return table;
+        }
+
+        private LuaValue toLua(Object reply) {
+            if (reply == null || reply instanceof NullArray) {
+                return LuaValue.FALSE;
+            } else if (reply instanceof Long) {
+                return LuaInteger.valueOf((Long) reply);
+            } else if (reply instanceof String) {
+                return LuaValue.valueOf((String) reply);
+            } else if (reply instanceof Status) {
+                LuaTable table = new LuaTable();
+                table.set("ok", ((Status) reply).message);
+                return table;
+            } else if (reply instanceof Error) {
+                LuaTable table = new LuaTable();
+                table.set("err", ((Error) reply).message);
+                return table;
+            }
+
+            LuaTable table = new LuaTable();
+            List list = (List) reply;
+            for (int i = 0; i < list.size(); i++) {
+                table.set(i + 1, toLua(list.get(i)));
+            }
+            return table;
+        }
+
+        private Object fromLua(LuaValue value) {
+            if (value.isnil() || (value.isboolean() && !value.toboolean())) {
+                return null;
+            } else if (value.isboolean()) {
+                return 1L;
+            } else if (value.type() == LuaValue.TNUMBER) {
+                return value.tolong();
+            } else if (value.isstring()) {
+                return value.tojstring();
+            } else if (!value.get("ok").isnil()) {
+                return new Status(value.get("ok").tojstring());
+            } else if (!value.get("err").isnil()) {
+                return new Error(value.get("err").tojstring());
+            }
+
+            List<Object> list = new ArrayList<Object>();
+            for (int i = 1; !value.get(i).isnil(); i++) {
+                list.add(fromLua(value.get(i)));
+            }
+            return list;
+        }
+    }
+
+    /**
+     * SET key value [NX] [PX ms]
+     */
+    private boolean set(List<String> command) {
+        String key = command.get(1);
+        boolean nx = false;
+        long px = 0;
+        for (int i = 3; i < command.size(); i++) {
+            if ("NX".equalsIgnoreCase(command.get(i))) {
+                nx = true;
+            } else if ("PX".equalsIgnoreCase(command.get(i))) {
+                px = Long.parseLong(command.get(++i));
+            }
+        }
+
+        if (nx && lookup(key) != null) {
+            return false;
+        }
+        Entry entry = new Entry();
+        entry.value = command.get(2);
+        entries.put(key, entry);
+        touch(key);
+        if (px > 0) {
+            pexpire(key, px);
+        }
+        return true;
+    }
+
+    private long incrBy(String key, long increment) {
+        Object value = value(key);
+        long incremented = (value == null ? 0 : Long.parseLong((String) value)) + increment;
+        Entry entry = lookup(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        entry.value = String.valueOf(incremented);
+        touch(key);
+        return incremented;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> listOf(String key) {
+        Entry entry = lookup(key);
+        return entry == null ? new LinkedList<String>() : (List<String>) entry.value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void rpush(String key, String value) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.value = new LinkedList<String>();
+            entries.put(key, entry);
+        }
+        // not through listOf, a lookup drops the empty list created above
+        ((List<String>) entry.value).add(value);
+        touch(key);
+        notifyAll();
+    }
+
+    private Object blpop(List<String> keys, long timeoutSeconds) {
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000;
+        while (true) {
+            for (String key : keys) {
+                List<String> list = listOf(key);
+                if (!list.isEmpty()) {
+                    String value = list.remove(0);
+                    touch(key);
+                    return Arrays.<Object>asList(key, value);
+                }
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (timeoutSeconds > 0 && remaining <= 0) {
+                return new NullArray();
+            }
+            try {
+                wait(timeoutSeconds > 0 ? remaining : 0);
+            } catch (InterruptedException e) {
+                return new NullArray();
+            }
+        }
+    }
+
+    private long waitReplicas(int numReplicas, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (replicas < numReplicas) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (timeout > 0 && remaining <= 0) {
+                break;
+            }
+            try {
+                wait(timeout > 0 ? remaining : 0);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * The live entry of the key, expired entries are removed like redis does on access.
+     */
+    private Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expireAt != 0 && entry.expireAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            touch(key);
+            return null;
+        }
+        if (entry != null && entry.value instanceof Collection && ((Collection) entry.value).isEmpty()) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private Object value(String key) {
+        Entry entry = lookup(key);
+        return entry == null ? null : entry.value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> setOf(String key, boolean create) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.value = new HashSet<String>();
+            if (create) {
+                entries.put(key, entry);
+            }
+        }
+        return (Set<String>) entry.value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, String> hashOf(String key, boolean create) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            entry = new Entry();
+            entry.value = new HashMap<String, String>();
+            if (create) {
+                entries.put(key, entry);
+            }
+        }
+        return (Map<String, String>) entry.value;
+    }
+
+    /**
+     * The value of a live hash field, expired fields are removed on access.
+     */
+    private String hashField(String key, String field) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return null;
+        }
+        Long expireAt = entry.fieldExpireAt.get(field);
+        if (expireAt != null && expireAt <= System.currentTimeMillis()) {
+            hashOf(key, false).remove(field);
+            entry.fieldExpireAt.remove(field);
+            touch(key);
+            return null;
+        }
+        return hashOf(key, false).get(field);
+    }
+
+    private boolean setnx(String key, String value) {
+        if (lookup(key) != null) {
+            return false;
+        }
+        Entry entry = new Entry();
+        entry.value = value;
+        entries.put(key, entry);
+        touch(key);
+        return true;
+    }
+
+    private boolean delete(String key) {
+        boolean deleted = lookup(key) != null;
+        entries.remove(key);
+        touch(key);
+        return deleted;
+    }
+
+    private boolean pexpire(String key, long ttl) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return false;
+        }
+        entry.expireAt = System.currentTimeMillis() + ttl;
+        touch(key);
+        return true;
+    }
+
+    private void touch(String key) {
+        versions.put(key, version(key) + 1);
+        invalidate(key);
+    }
+
+    private synchronized void register(Session session) {
+        session.id = ++nextSessionId;
+        sessions.add(session);
+    }
+
+    private synchronized void unregister(Session session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * 'CLIENT TRACKING ON REDIRECT id BCAST PREFIX p...' and 'CLIENT TRACKING OFF', rejecting overlapping
+     * prefixes like redis.
+     */
+    private Object tracking(Session session, List<String> command) {
+        if ("OFF".equalsIgnoreCase(command.get(2))) {
+            session.trackedPrefixes = null;
+            return OK;
+        }
+
+        List<String> prefixes = new ArrayList<String>();
+        for (int i = 3; i < command.size(); i++) {
+            if ("REDIRECT".equalsIgnoreCase(command.get(i))) {
+                session.redirect = Long.parseLong(command.get(++i));
+            } else if ("PREFIX".equalsIgnoreCase(command.get(i))) {
+                prefixes.add(command.get(++i));
+            }
+        }
+        for (String prefix : prefixes) {
+            for (String other : prefixes) {
+                if (prefix != other && other.startsWith(prefix)) {
+                    return new Error("ERR Prefix '" + other + "' overlaps with another provided prefix '" + prefix
+                            + "'. Prefixes for a single client must not overlap.");
+                }
+            }
+        }
+        session.trackedPrefixes = prefixes;
+        return OK;
+    }
+
+    /**
+     * Push the invalidation of the key to the redirect sessions of the tracking sessions.
+     */
+    private void invalidate(String key) {
+        for (Session tracking : sessions) {
+            if (tracking.trackedPrefixes == null || !matchesAny(key, tracking.trackedPrefixes)) {
+                continue;
+            }
+            for (Session target : sessions) {
+                if (target.id == tracking.redirect) {
+                    push(target, Arrays.<Object>asList("message", "__redis__:invalidate",
+                            Arrays.<Object>asList(key)));
+                }
+            }
+        }
+    }
+
+    private static boolean matchesAny(String key, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void push(Session session, Object message) {
+        synchronized (session.out) {
+            try {
+                writeReply(session.out, message);
+                session.out.flush();
+            } catch (IOException e) {
+                // the subscriber is gone
+            }
+        }
+    }
+
+    private Long version(String key) {
+        Long version = versions.get(key);
+        return version == null ? 0L : version;
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(SafeEncoder.encode(script));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
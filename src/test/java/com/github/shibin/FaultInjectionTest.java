@@ -0,0 +1,293 @@
+package com.github.shibin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs concurrent lock clients through a FaultProxy in front of a FakeRedisServer and logs, for each
+ * fault schedule and lock implementation, the overlaps of the critical sections and the acquire latencies.
+ *
+ * Mutual exclusion must hold under network faults, the clients must make progress and the lock must never
+ * be left without an expiry. A holder pausing longer than the expired time, like a long GC pause, is
+ * expected to overlap with the next holder and is only logged.
+ * The duration of each run can be changed with -Dredis.lock.fault.duration=ms.
+ */
+public class FaultInjectionTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(FaultInjectionTest.class);
+
+    private static final long DURATION = Long.getLong("redis.lock.fault.duration", 300);
+    private static final int CLIENTS = 8;
+    private static final long EXPIRED_TIME = 200;
+    private static final int SOCKET_TIMEOUT = 100;
+    private static final String LOCK_NAME = "fault:lock";
+
+    private interface LockFactory {
+        AbstractLock create(Jedis jedis);
+    }
+
+    private static final LockFactory REDIS_LOCK = new LockFactory() {
+        public AbstractLock create(Jedis jedis) {
+            return new RedisLock(jedis, LOCK_NAME, EXPIRED_TIME, true, 300, 5, false);
+        }
+
+        public String toString() {
+            return "RedisLock";
+        }
+    };
+
+    private static final LockFactory REDIS_LUA_LOCK = new LockFactory() {
+        public AbstractLock create(Jedis jedis) {
+            return new RedisLuaLock(jedis, LOCK_NAME, EXPIRED_TIME, true, 300, 5, false);
+        }
+
+        public String toString() {
+            return "RedisLuaLock";
+        }
+    };
+
+    /**
+     * A fault schedule.
+     */
+    private static class Schedule {
+        private final String name;
+        private long maxDelay;
+        private double dropProbability;
+        private double resetProbability;
+        private long partitionEvery;
+        private long partitionLength;
+        private double holderPauseProbability;
+
+        Schedule(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class Report {
+        private final AtomicInteger acquired = new AtomicInteger();
+        private final AtomicInteger timeouts = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+        private final AtomicInteger violations = new AtomicInteger();
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        private boolean leftWithoutExpiry;
+
+        private long percentile(List<Long> sorted, double percentile) {
+            if (sorted.isEmpty()) {
+                return 0;
+            }
+            return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * percentile)));
+        }
+
+        String format(String lock, String schedule) {
+            List<Long> sorted = new ArrayList<Long>(latencies);
+            Collections.sort(sorted);
+            return String.format("%-12s %-14s acquired=%5d timeouts=%4d errors=%4d overlaps=%3d "
+                            + "p50=%4dms p99=%4dms max=%4dms%s", lock, schedule, acquired.get(), timeouts.get(),
+                    errors.get(), violations.get(), percentile(sorted, 0.5), percentile(sorted, 0.99),
+                    sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1),
+                    leftWithoutExpiry ? " LOCK LEFT WITHOUT EXPIRY" : "");
+        }
+    }
+
+    private FakeRedisServer server;
+    private FaultProxy proxy;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        proxy = new FaultProxy("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        proxy.close();
+        server.close();
+    }
+
+    private Report run(final LockFactory factory, final Schedule schedule) throws Exception {
+        final Report report = new Report();
+        final AtomicInteger holders = new AtomicInteger();
+        final long deadline = System.currentTimeMillis() + DURATION;
+
+        proxy.setMaxDelay(schedule.maxDelay);
+        proxy.setDropProbability(schedule.dropProbability);
+        proxy.setResetProbability(schedule.resetProbability);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < CLIENTS; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random();
+                    Jedis jedis = new Jedis("127.0.0.1", proxy.getPort(), SOCKET_TIMEOUT);
+                    AbstractLock lock = factory.create(jedis);
+
+                    while (System.currentTimeMillis() < deadline) {
+                        long start = System.nanoTime();
+                        boolean acquired;
+                        try {
+                            acquired = lock.acquire();
+                        } catch (JedisException e) {
+                            report.errors.incrementAndGet();
+                            jedis = reconnect(jedis, lock);
+                            continue;
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        report.latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+                        if (!acquired) {
+                            report.timeouts.incrementAndGet();
+                            continue;
+                        }
+
+                        report.acquired.incrementAndGet();
+                        if (holders.incrementAndGet() > 1) {
+                            report.violations.incrementAndGet();
+                        }
+                        try {
+                            boolean pause = random.nextDouble() < schedule.holderPauseProbability;
+                            Thread.sleep(pause ? EXPIRED_TIME * 2 : 1);
+                        } catch (InterruptedException e) {
+                            return;
+                        } finally {
+                            holders.decrementAndGet();
+                        }
+
+                        try {
+                            lock.release();
+                        } catch (JedisException e) {
+                            report.errors.incrementAndGet();
+                            jedis = reconnect(jedis, lock);
+                        }
+                    }
+                    jedis.close();
+                }
+            }));
+        }
+
+        Thread partitions = null;
+        if (schedule.partitionEvery > 0) {
+            partitions = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            Thread.sleep(schedule.partitionEvery);
+                            proxy.pause(schedule.partitionLength);
+                        }
+                    } catch (InterruptedException e) {
+                        // done
+                    }
+                }
+            });
+            partitions.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (partitions != null) {
+            partitions.interrupt();
+            partitions.join();
+        }
+
+        // a key left without expiry must be repaired by the next attempt
+        Jedis direct = new Jedis("127.0.0.1", server.getPort());
+        try {
+            factory.create(direct).acquire(false, 0);
+        } finally {
+            direct.close();
+        }
+        report.leftWithoutExpiry = server.pttl(LOCK_NAME) == -1;
+        logger.info(report.format(factory.toString(), schedule.name));
+        return report;
+    }
+
+    private static Jedis reconnect(Jedis jedis, AbstractLock lock) {
+        try {
+            jedis.close();
+        } catch (JedisException e) {
+            // already broken
+        }
+        Jedis reconnected = new Jedis("127.0.0.1", jedis.getClient().getPort(), SOCKET_TIMEOUT);
+        lock.setJedisClient(reconnected);
+        return reconnected;
+    }
+
+    private void assertMutualExclusion(Schedule schedule) throws Exception {
+        for (LockFactory factory : new LockFactory[]{REDIS_LOCK, REDIS_LUA_LOCK}) {
+            Report report = run(factory, schedule);
+            String run = factory + " " + schedule.name;
+            assertEquals(run, 0, report.violations.get());
+            assertTrue(run, report.acquired.get() > 0);
+            assertFalse(run + " left the lock without expiry", report.leftWithoutExpiry);
+            server.close();
+            proxy.close();
+            setUp();
+        }
+    }
+
+    @Test
+    public void noFault() throws Exception {
+        assertMutualExclusion(new Schedule("no fault"));
+    }
+
+    @Test
+    public void delayedReplies() throws Exception {
+        Schedule schedule = new Schedule("delay 20ms");
+        schedule.maxDelay = 20;
+        assertMutualExclusion(schedule);
+    }
+
+    @Test
+    public void droppedReplies() throws Exception {
+        Schedule schedule = new Schedule("drop 2%");
+        schedule.dropProbability = 0.02;
+        assertMutualExclusion(schedule);
+    }
+
+    @Test
+    public void resetConnections() throws Exception {
+        Schedule schedule = new Schedule("reset 2%");
+        schedule.resetProbability = 0.02;
+        assertMutualExclusion(schedule);
+    }
+
+    @Test
+    public void partitions() throws Exception {
+        Schedule schedule = new Schedule("partition");
+        schedule.partitionEvery = 150;
+        schedule.partitionLength = 50;
+        assertMutualExclusion(schedule);
+    }
+
+    @Test
+    public void holderPausesLongerThanExpiredTime() throws Exception {
+        Schedule schedule = new Schedule("holder pause");
+        schedule.holderPauseProbability = 0.05;
+        for (LockFactory factory : new LockFactory[]{REDIS_LOCK, REDIS_LUA_LOCK}) {
+            Report report = run(factory, schedule);
+            assertTrue(report.acquired.get() > 0);
+            assertFalse(report.leftWithoutExpiry);
+            server.close();
+            proxy.close();
+            setUp();
+        }
+    }
+}
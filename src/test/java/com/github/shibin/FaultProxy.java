@@ -0,0 +1,210 @@
+package com.github.shibin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP proxy in front of a redis server injecting network faults.
+ *
+ * <ul>
+ * <li>delay: every chunk of replies is held for a random time up to the delay</li>
+ * <li>drop: a chunk of replies is lost after the server applied the commands, the connection then
+ * stays silent so the client times out without knowing the outcome</li>
+ * <li>reset: the connection is reset right after forwarding a chunk of commands</li>
+ * <li>pause: nothing is forwarded in either direction until the pause ends, like a partition</li>
+ * </ul>
+ */
+public class FaultProxy {
+
+    private final String host;
+    private final int port;
+    private final ServerSocket serverSocket;
+    private final Random random = new Random();
+    private final List<Socket> sockets = new ArrayList<Socket>();
+
+    private volatile long maxDelay;
+    private volatile double dropProbability;
+    private volatile double resetProbability;
+    private volatile long pausedUntil;
+    private final AtomicInteger repliesToDrop = new AtomicInteger();
+
+    public FaultProxy(String host, int port) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.serverSocket = new ServerSocket(0);
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "fault-proxy-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public void setDropProbability(double dropProbability) {
+        this.dropProbability = dropProbability;
+    }
+
+    public void setResetProbability(double resetProbability) {
+        this.resetProbability = resetProbability;
+    }
+
+    /**
+     * Drop the next chunks of replies, whatever the drop probability.
+     */
+    public void dropReplies(int count) {
+        repliesToDrop.set(count);
+    }
+
+    /**
+     * Stop forwarding in both directions for the given ms.
+     */
+    public void pause(long millis) {
+        pausedUntil = System.currentTimeMillis() + millis;
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private boolean chance(double probability) {
+        if (probability <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < probability;
+        }
+    }
+
+    private static boolean decrementIfPositive(AtomicInteger counter) {
+        int current;
+        while ((current = counter.get()) > 0) {
+            if (counter.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(host, port);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                synchronized (sockets) {
+                    sockets.add(client);
+                    sockets.add(server);
+                }
+                pump(client, server, true);
+                pump(server, client, false);
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void pump(final Socket from, final Socket to, final boolean commands) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[16 * 1024];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        awaitPause();
+                        if (!commands) {
+                            delay();
+                            if (chance(dropProbability) || decrementIfPositive(repliesToDrop)) {
+                                blackHole(in);
+                                return;
+                            }
+                        }
+                        out.write(buffer, 0, read);
+                        out.flush();
+                        if (commands && chance(resetProbability)) {
+                            reset(from, to);
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    // one of the sides is closed
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                close(from, to);
+            }
+        }, "fault-proxy-pump");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void awaitPause() throws InterruptedException {
+        long remaining;
+        while ((remaining = pausedUntil - System.currentTimeMillis()) > 0) {
+            Thread.sleep(remaining);
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long delay = maxDelay;
+        if (delay > 0) {
+            synchronized (random) {
+                delay = (long) (random.nextDouble() * delay);
+            }
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Swallow the replies until the client gives up and closes the connection.
+     */
+    private static void blackHole(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) >= 0) {
+            // discard
+        }
+    }
+
+    private static void reset(Socket from, Socket to) throws IOException {
+        from.setSoLinger(true, 0);
+        to.setSoLinger(true, 0);
+        close(from, to);
+    }
+
+    private static void close(Socket from, Socket to) {
+        try {
+            from.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        try {
+            to.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.shibin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lock keeping the keys in a local map, used to test the logic of AbstractLock without redis server.
+ */
+public class InMemoryLock extends AbstractLock {
+
+    static class Store {
+        private final Map<String, String> tokens = new HashMap<String, String>();
+        private final Map<String, Long> deadlines = new HashMap<String, Long>();
+
+        synchronized long setIfAbsent(String key, String token, long ttl) {
+            long now = System.nanoTime();
+            Long deadline = deadlines.get(key);
+            if (deadline != null && deadline - now > 0) {
+                return TimeUnit.NANOSECONDS.toMillis(deadline - now);
+            }
+
+            tokens.put(key, token);
+            deadlines.put(key, now + TimeUnit.MILLISECONDS.toNanos(ttl));
+            return ACQUIRED;
+        }
+
+        synchronized String get(String key) {
+            Long deadline = deadlines.get(key);
+            if (deadline == null || deadline - System.nanoTime() <= 0) {
+                return null;
+            }
+            return tokens.get(key);
+        }
+
+        synchronized boolean delete(String key, String token) {
+            if (token.equals(get(key))) {
+                tokens.remove(key);
+                deadlines.remove(key);
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean extend(String key, String token, long ttl) {
+            if (token.equals(get(key))) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl);
+                if (deadline - deadlines.get(key) > 0) {
+                    deadlines.put(key, deadline);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean addTime(String key, String token, long additionalTime) {
+            if (token.equals(get(key))) {
+                deadlines.put(key, deadlines.get(key) + TimeUnit.MILLISECONDS.toNanos(additionalTime));
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Store store;
+    final AtomicInteger acquireCalls = new AtomicInteger();
+    final AtomicInteger releaseCalls = new AtomicInteger();
+
+    public InMemoryLock(Store store, String lockName, long expiredTime) {
+        super(null, lockName, expiredTime);
+        this.store = store;
+    }
+
+    @Override
+    protected boolean supportsLeaseTime() {
+        return true;
+    }
+
+    @Override
+    protected boolean doAcquire(String token) {
+        return doTryAcquire(token, expiredTime) == ACQUIRED;
+    }
+
+    @Override
+    protected long doTryAcquire(String token, long leaseTime) {
+        acquireCalls.incrementAndGet();
+        return store.setIfAbsent(lockName, token, leaseTime);
+    }
+
+    @Override
+    protected void doRelease(String token) {
+        releaseCalls.incrementAndGet();
+        store.delete(lockName, token);
+    }
+
+    @Override
+    protected boolean doExtend(String token, long additionalTime) {
+        return store.addTime(lockName, token, additionalTime);
+    }
+
+    @Override
+    protected boolean doExtendTo(String token, long leaseTime) {
+        return store.extend(lockName, token, leaseTime);
+    }
+}
@@ -0,0 +1,227 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * Waiters woken up by the invalidations of the lock key, against a FakeRedisServer implementing
+ * 'CLIENT TRACKING ... REDIRECT ... BCAST'.
+ */
+public class InvalidationTrackerTest {
+
+    private static final long EXPIRED_TIME = 10000;
+
+    private FakeRedisServer server;
+    private InvalidationTracker tracker;
+    private Jedis holderClient;
+    private Jedis waiterClient;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        tracker = new InvalidationTracker("127.0.0.1", server.getPort());
+        holderClient = new Jedis("127.0.0.1", server.getPort());
+        waiterClient = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        holderClient.close();
+        waiterClient.close();
+        tracker.close();
+        server.close();
+    }
+
+    @Test
+    public void releaseWakesUpTheWaiter() throws Exception {
+        RedisLuaLock holder = new RedisLuaLock(holderClient, "trackedLock", EXPIRED_TIME);
+        assertTrue(holder.acquire());
+
+        final RedisLuaLock waiter = new RedisLuaLock(waiterClient, "trackedLock", EXPIRED_TIME, true, 5000);
+        waiter.setMaxSleepTime(EXPIRED_TIME);
+        waiter.setInvalidationTracker(tracker);
+        final AtomicBoolean acquired = new AtomicBoolean();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    acquired.set(waiter.acquire());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + 1000;
+        while (tracker.getTrackedKeyCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, tracker.getTrackedKeyCount());
+
+        long start = System.currentTimeMillis();
+        holder.release();
+        thread.join(3000);
+
+        assertTrue(acquired.get());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, tracker.getTrackedKeyCount());
+    }
+
+    @Test
+    public void trackedKeysAreCapped() throws Exception {
+        InvalidationTracker capped = new InvalidationTracker("127.0.0.1", server.getPort(), 1);
+        try {
+            RedisLuaLock first = new RedisLuaLock(waiterClient, "firstLock");
+            RedisLuaLock sameKey = new RedisLuaLock(holderClient, "firstLock");
+            RedisLuaLock second = new RedisLuaLock(waiterClient, "secondLock");
+
+            assertTrue(capped.track(first));
+            assertTrue(capped.track(sameKey));
+            assertFalse(capped.track(second));
+            assertEquals(1, capped.getTrackedKeyCount());
+
+            capped.untrack(first);
+            assertEquals(1, capped.getTrackedKeyCount());
+            capped.untrack(sameKey);
+            assertEquals(0, capped.getTrackedKeyCount());
+            assertTrue(capped.track(second));
+        } finally {
+            capped.close();
+        }
+    }
+
+    @Test
+    public void closedTrackerFallsBackToPolling() throws Exception {
+        tracker.close();
+        assertFalse(tracker.isOpen());
+
+        RedisLuaLock holder = new RedisLuaLock(holderClient, "trackedLock", 300);
+        assertTrue(holder.acquire());
+
+        RedisLuaLock waiter = new RedisLuaLock(waiterClient, "trackedLock", EXPIRED_TIME, true, 2000);
+        waiter.setInvalidationTracker(tracker);
+        assertTrue(waiter.acquire());
+        waiter.release();
+    }
+
+    private static class CountingLock extends RedisLuaLock {
+        private final AtomicInteger wakeUps = new AtomicInteger();
+
+        CountingLock(String lockName) {
+            super(null, lockName);
+        }
+
+        @Override
+        protected void wakeUpWaiters() {
+            wakeUps.incrementAndGet();
+            super.wakeUpWaiters();
+        }
+    }
+
+    private static void awaitCount(AtomicInteger count, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (count.get() < expected) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitUpdates(long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (tracker.getUpdateCount() < expected) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void changesAreAppliedInBatches() throws Exception {
+        List<CountingLock> locks = new ArrayList<CountingLock>();
+        long commands = server.getCommandCount();
+        synchronized (tracker) {
+            for (int i = 0; i < 50; i++) {
+                CountingLock lock = new CountingLock("batchedLock-" + i);
+                assertTrue(tracker.track(lock));
+                locks.add(lock);
+            }
+        }
+        awaitUpdates(1);
+
+        // one 'CLIENT TRACKING ON' on the idle connection and one 'CLIENT TRACKING OFF' on the other
+        assertEquals(1, tracker.getUpdateCount());
+        assertEquals(2, server.getCommandCount() - commands);
+        for (CountingLock lock : locks) {
+            // woken up once their tracking is on
+            assertEquals(1, lock.wakeUps.get());
+        }
+
+        holderClient.set("batchedLock-7", "changed");
+        awaitCount(locks.get(7).wakeUps, 2);
+    }
+
+    @Test
+    public void keyStaysTrackedAcrossTheChangesOfOtherKeys() throws Exception {
+        CountingLock first = new CountingLock("firstLock");
+        assertTrue(tracker.track(first));
+        awaitUpdates(1);
+
+        for (int i = 0; i < 20; i++) {
+            CountingLock other = new CountingLock("otherLock-" + i);
+            assertTrue(tracker.track(other));
+            awaitUpdates(2 + 2 * i);
+            int wakeUps = first.wakeUps.get();
+            holderClient.set("firstLock", "changed-" + i);
+            awaitCount(first.wakeUps, wakeUps + 1);
+            tracker.untrack(other);
+            awaitUpdates(3 + 2 * i);
+        }
+    }
+
+    @Test
+    public void longerKeysDoNotWakeUpTheWaiters() throws Exception {
+        CountingLock lock = new CountingLock("prefixLock");
+        assertTrue(tracker.track(lock));
+        awaitUpdates(1);
+        awaitCount(lock.wakeUps, 1);
+
+        // matched by the prefix "prefixLock"
+        holderClient.set("prefixLock-other", "changed");
+        holderClient.set("prefixLock:condition:0", "changed");
+        holderClient.set("prefixLock", "changed");
+        awaitCount(lock.wakeUps, 2);
+        Thread.sleep(100);
+        assertEquals(2, lock.wakeUps.get());
+    }
+
+    @Test
+    public void overlappingKeysShareAPrefix() throws Exception {
+        assertEquals(Arrays.asList("order:1", "order:2"),
+                InvalidationTracker.prefixesOf(Arrays.asList("order:12", "order:2", "order:1", "order:10")));
+
+        CountingLock shorter = new CountingLock("order:1");
+        CountingLock longer = new CountingLock("order:12");
+        assertTrue(tracker.track(shorter));
+        assertTrue(tracker.track(longer));
+        awaitUpdates(1);
+        awaitCount(longer.wakeUps, 1);
+        assertTrue(tracker.isOpen());
+
+        holderClient.set("order:12", "changed");
+        awaitCount(longer.wakeUps, 2);
+        holderClient.set("order:1", "changed");
+        awaitCount(shorter.wakeUps, 2);
+        Thread.sleep(100);
+        assertEquals(2, shorter.wakeUps.get());
+        assertEquals(2, longer.wakeUps.get());
+    }
+}
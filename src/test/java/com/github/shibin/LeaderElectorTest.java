@@ -0,0 +1,123 @@
+package com.github.shibin;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * LeaderElector against a FakeRedisServer.
+ */
+public class LeaderElectorTest {
+
+    private static final long LEASE_TIME = 300;
+
+    private FakeRedisServer server;
+    private Jedis first;
+    private Jedis second;
+
+    private static class Latches implements LeaderElector.Listener {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch lost = new CountDownLatch(1);
+
+        public void leadershipAcquired() {
+            acquired.countDown();
+        }
+
+        public void leadershipLost() {
+            lost.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        first = new Jedis("127.0.0.1", server.getPort());
+        second = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        first.close();
+        second.close();
+        server.close();
+    }
+
+    @Test
+    public void renewalsKeepTheLeaseBounded() throws Exception {
+        Latches latches = new Latches();
+        LeaderElector elector = new LeaderElector(first, "election", LEASE_TIME, latches);
+        elector.start();
+        try {
+            assertTrue(latches.acquired.await(1, TimeUnit.SECONDS));
+
+            // several renewals, each one resets the lease instead of adding to it
+            for (int i = 0; i < 10; i++) {
+                Thread.sleep(LEASE_TIME / 3);
+                assertTrue(elector.isLeader());
+                long pttl = server.pttl("election");
+                assertTrue("pttl " + pttl, pttl > 0 && pttl <= LEASE_TIME);
+            }
+            assertEquals(1, latches.lost.getCount());
+        } finally {
+            elector.stop();
+        }
+        assertEquals(0, latches.lost.getCount());
+        assertNull(server.get("election"));
+    }
+
+    @Test
+    public void standbyTakesOverAfterResignation() throws Exception {
+        Latches leaderLatches = new Latches();
+        LeaderElector leader = new LeaderElector(first, "election", LEASE_TIME, leaderLatches);
+        leader.start();
+        assertTrue(leaderLatches.acquired.await(1, TimeUnit.SECONDS));
+
+        Latches standbyLatches = new Latches();
+        LeaderElector standby = new LeaderElector(second, "election", LEASE_TIME, standbyLatches);
+        standby.start();
+        try {
+            Thread.sleep(LEASE_TIME);
+            assertFalse(standby.isLeader());
+
+            leader.stop();
+            assertTrue(standbyLatches.acquired.await(leader.getWorstCaseFailoverTime() * 2, TimeUnit.MILLISECONDS));
+            assertTrue(standby.isLeader());
+        } finally {
+            standby.stop();
+        }
+    }
+
+    @Test
+    public void failingListenerStepsDownAndKeepsElecting() throws Exception {
+        final AtomicInteger acquisitions = new AtomicInteger();
+        final Latches latches = new Latches();
+        LeaderElector elector = new LeaderElector(first, "election", LEASE_TIME, new LeaderElector.Listener() {
+            public void leadershipAcquired() {
+                if (acquisitions.incrementAndGet() == 1) {
+                    throw new IllegalStateException("not ready");
+                }
+                latches.leadershipAcquired();
+            }
+
+            public void leadershipLost() {
+                latches.leadershipLost();
+            }
+        });
+        elector.start();
+        try {
+            assertTrue(latches.lost.await(1, TimeUnit.SECONDS));
+            assertTrue(latches.acquired.await(1, TimeUnit.SECONDS));
+            assertEquals(2, acquisitions.get());
+            assertTrue(elector.isLeader());
+        } finally {
+            elector.stop();
+        }
+    }
+}
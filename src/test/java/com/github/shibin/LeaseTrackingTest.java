@@ -0,0 +1,83 @@
+package com.github.shibin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The lease validity is tracked locally, without any round trip.
+ */
+public class LeaseTrackingTest {
+
+    private InMemoryLock lock;
+
+    @Before
+    public void setUp() throws Exception {
+        lock = new InMemoryLock(new InMemoryLock.Store(), "leaseLock", 200);
+    }
+
+    @Test
+    public void notHeldBeforeAcquire() throws Exception {
+        assertFalse(lock.isHeld());
+        assertEquals(0, lock.remainingLeaseNanos());
+    }
+
+    @Test
+    public void leaseIsPessimistic() throws Exception {
+        lock.setClockDriftFactor(0.1);
+        assertTrue(lock.acquire());
+
+        assertTrue(lock.isHeld());
+        assertTrue(lock.remainingLeaseNanos() <= TimeUnit.MILLISECONDS.toNanos(180));
+    }
+
+    @Test
+    public void leaseExpiresLocally() throws Exception {
+        assertTrue(lock.acquire());
+        Thread.sleep(250);
+
+        assertFalse(lock.isHeld());
+        assertEquals(0, lock.remainingLeaseNanos());
+    }
+
+    @Test
+    public void extendMovesTheDeadline() throws Exception {
+        assertTrue(lock.acquire());
+        long before = lock.remainingLeaseNanos();
+
+        assertTrue(lock.extend(1000));
+        assertTrue(lock.remainingLeaseNanos() > before + TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void renewResetsTheDeadline() throws Exception {
+        assertTrue(lock.acquire());
+        assertTrue(lock.extend(1000));
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lock.renew(100));
+            assertTrue(lock.remainingLeaseNanos() <= TimeUnit.MILLISECONDS.toNanos(100));
+            assertTrue(lock.isHeld());
+        }
+    }
+
+    @Test
+    public void notHeldAfterRelease() throws Exception {
+        assertTrue(lock.acquire());
+        lock.release();
+
+        assertFalse(lock.isHeld());
+    }
+
+    @Test(expected = LockException.class)
+    public void checkLeaseFailsNearTheEnd() throws Exception {
+        assertTrue(lock.acquire());
+        lock.checkLease(10, TimeUnit.MILLISECONDS);
+
+        Thread.sleep(150);
+        lock.checkLease(100, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.shibin;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * The flight recorder events of a lock against a FakeRedisServer, recorded with no threshold.
+ */
+public class LockEventsTest {
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        server.close();
+    }
+
+    private static List<RecordedEvent> record(Runnable scenario) throws Exception {
+        Recording recording = new Recording();
+        for (String name : new String[]{"LockAcquire", "LockHold", "LockExtend", "LockRoundTrip"}) {
+            recording.enable("com.github.shibin." + name).withThreshold(Duration.ZERO);
+        }
+        File file = File.createTempFile("lock-events", ".jfr");
+        try {
+            recording.start();
+            scenario.run();
+            recording.stop();
+            recording.dump(file.toPath());
+            return RecordingFile.readAllEvents(file.toPath());
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> result = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals("com.github.shibin." + name)) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void acquireHoldExtendAndRoundTrips() throws Exception {
+        final RedisLuaLock lock = new RedisLuaLock(jedis, "eventLock", 5000);
+        List<RecordedEvent> events = record(new Runnable() {
+            public void run() {
+                try {
+                    assertTrue(lock.acquire());
+                    assertTrue(lock.extend(1000));
+                    lock.release();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+
+        List<RecordedEvent> acquires = named(events, "LockAcquire");
+        assertEquals(1, acquires.size());
+        assertEquals("eventLock", acquires.get(0).getString("lockName"));
+        assertEquals(1, acquires.get(0).getInt("attempts"));
+        assertEquals(LockEvents.ACQUIRED, acquires.get(0).getString("outcome"));
+
+        assertEquals(1, named(events, "LockHold").size());
+
+        List<RecordedEvent> extendEvents = named(events, "LockExtend");
+        assertEquals(1, extendEvents.size());
+        assertTrue(extendEvents.get(0).getBoolean("extended"));
+        assertEquals(1000, extendEvents.get(0).getLong("additionalTime"));
+
+        List<String> operations = new ArrayList<String>();
+        for (RecordedEvent event : named(events, "LockRoundTrip")) {
+            operations.add(event.getString("operation"));
+        }
+        assertEquals(Arrays.asList("acquire", "extend", "release"), operations);
+    }
+
+    @Test
+    public void timedOutAcquireCountsItsAttempts() throws Exception {
+        RedisLuaLock holder = new RedisLuaLock(jedis, "eventLock", 5000);
+        assertTrue(holder.acquire());
+
+        final Jedis other = new Jedis("127.0.0.1", server.getPort());
+        try {
+            final RedisLuaLock lock = new RedisLuaLock(other, "eventLock", 5000, true, 200, 20);
+            lock.setMaxSleepTime(20);
+            List<RecordedEvent> events = record(new Runnable() {
+                public void run() {
+                    try {
+                        assertFalse(lock.acquire());
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+
+            RecordedEvent acquire = named(events, "LockAcquire").get(0);
+            assertEquals(LockEvents.TIMED_OUT, acquire.getString("outcome"));
+            assertTrue(acquire.getInt("attempts") > 1);
+            assertTrue(acquire.getDuration().toMillis() >= 200);
+        } finally {
+            other.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * LockInspector against a FakeRedisServer.
+ */
+public class LockInspectorTest {
+
+    private static final long EXPIRED_TIME = 5000;
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+    private Jedis other;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+        other = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        other.close();
+        server.close();
+    }
+
+    @Test
+    public void heldAndFreeLocks() throws Exception {
+        RedisLuaLock held = new RedisLuaLock(jedis, "heldLock", EXPIRED_TIME, false);
+        assertTrue(held.acquire());
+
+        List<LockInfo> infos = new LockInspector(other).inspect(Arrays.asList("heldLock", "freeLock"));
+        assertEquals(2, infos.size());
+
+        LockInfo heldInfo = infos.get(0);
+        assertEquals("heldLock", heldInfo.getLockName());
+        assertTrue(heldInfo.isHeld());
+        assertEquals(held.getTokenAsString(), heldInfo.getToken());
+        assertTrue(heldInfo.getRemainingTime() > 0 && heldInfo.getRemainingTime() <= EXPIRED_TIME);
+        assertEquals(0, heldInfo.getWaiters());
+
+        LockInfo freeInfo = infos.get(1);
+        assertEquals("freeLock", freeInfo.getLockName());
+        assertFalse(freeInfo.isHeld());
+        assertNull(freeInfo.getToken());
+        assertEquals(0, freeInfo.getWaiters());
+
+        held.release();
+    }
+
+    @Test
+    public void waitersOfStickyLocks() throws Exception {
+        RedisLuaLock held = new RedisLuaLock(jedis, "contendedLock", EXPIRED_TIME, false);
+        assertTrue(held.acquire());
+
+        RedisLuaLock contender = new RedisLuaLock(other, "contendedLock", EXPIRED_TIME);
+        assertTrue(contender.doTryAcquire("waiter-1", EXPIRED_TIME, true) > 0);
+        assertTrue(contender.doTryAcquire("waiter-2", EXPIRED_TIME, true) > 0);
+        // a try which does not wait is not a waiter
+        assertTrue(contender.doTryAcquire("try", EXPIRED_TIME, false) > 0);
+
+        LockInfo info = new LockInspector(other).inspect(Arrays.asList("contendedLock")).get(0);
+        assertEquals(2, info.getWaiters());
+
+        held.release();
+    }
+
+    @Test
+    public void batchesKeepTheOrder() throws Exception {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            names.add("lock-" + i);
+        }
+        for (int i = 0; i < 5; i += 2) {
+            jedis.set("lock-" + i, "token-" + i);
+        }
+
+        final List<LockInfo> infos = new ArrayList<LockInfo>();
+        LockInspector inspector = new LockInspector(other, 2);
+        long commands = server.getCommandCount();
+        inspector.inspect(names.iterator(), new LockInspector.Handler() {
+            public void onLockInfo(LockInfo info) {
+                infos.add(info);
+            }
+        });
+
+        // one 'SCRIPT LOAD' and one call per batch of 2
+        assertEquals(4, server.getCommandCount() - commands);
+        assertEquals(5, infos.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("lock-" + i, infos.get(i).getLockName());
+            assertEquals(i % 2 == 0 ? "token-" + i : null, infos.get(i).getToken());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.shibin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * The operations whose reply is lost are retried with the same token instead of waiting for the lease
+ * to expire, through a FaultProxy dropping replies in front of a FakeRedisServer.
+ */
+public class LostReplyTest {
+
+    private static final long EXPIRED_TIME = 5000;
+
+    private FakeRedisServer server;
+    private FaultProxy proxy;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        proxy = new FaultProxy("127.0.0.1", server.getPort());
+        jedis = new Jedis("127.0.0.1", proxy.getPort(), 200);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        proxy.close();
+        server.close();
+    }
+
+    private void assertAcquiredDespiteLostReply(AbstractLock lock) throws Exception {
+        assertTrue(lock.acquire());
+        lock.release();
+
+        proxy.dropReplies(1);
+        long start = System.currentTimeMillis();
+        assertTrue(lock.acquire());
+        assertTrue(System.currentTimeMillis() - start < EXPIRED_TIME / 2);
+        assertEquals(lock.getTokenAsString(), server.get("lostReplyLock"));
+        assertTrue(server.pttl("lostReplyLock") > 0);
+
+        proxy.dropReplies(1);
+        lock.release();
+        assertNull(server.get("lostReplyLock"));
+    }
+
+    @Test
+    public void luaLock() throws Exception {
+        assertAcquiredDespiteLostReply(new RedisLuaLock(jedis, "lostReplyLock", EXPIRED_TIME));
+    }
+
+    @Test
+    public void setnxLock() throws Exception {
+        assertAcquiredDespiteLostReply(new RedisLock(jedis, "lostReplyLock", EXPIRED_TIME));
+    }
+
+    @Test
+    public void setnxLockWithoutExpiryIsRepaired() throws Exception {
+        // a holder which failed between 'setnx' and 'pexpire'
+        jedis.setnx("lostReplyLock", "orphan");
+
+        RedisLock lock = new RedisLock(jedis, "lostReplyLock", EXPIRED_TIME, false);
+        assertFalse(lock.acquire());
+        assertTrue(server.pttl("lostReplyLock") > 0);
+        assertTrue(server.pttl("lostReplyLock") <= EXPIRED_TIME);
+    }
+
+    @Test
+    public void extend() throws Exception {
+        RedisLuaLock lock = new RedisLuaLock(jedis, "lostReplyLock", EXPIRED_TIME);
+        assertTrue(lock.acquire());
+
+        proxy.dropReplies(1);
+        assertTrue(lock.extend(EXPIRED_TIME));
+        assertTrue(server.pttl("lostReplyLock") > EXPIRED_TIME);
+        lock.release();
+    }
+
+    @Test
+    public void extendAppliedOnceDespiteLostReply() throws Exception {
+        RedisLuaLock lock = new RedisLuaLock(jedis, "lostReplyLock", EXPIRED_TIME);
+        assertTrue(lock.acquire());
+        long remaining = TimeUnit.NANOSECONDS.toMillis(lock.remainingLeaseNanos());
+
+        // the first extend is applied by redis but its reply is lost, the retry must not add to it
+        proxy.dropReplies(1);
+        assertTrue(lock.extend(EXPIRED_TIME));
+        long pttl = server.pttl("lostReplyLock");
+        assertTrue("pttl " + pttl, pttl <= remaining + 1 + EXPIRED_TIME);
+        assertTrue("pttl " + pttl, pttl > remaining + EXPIRED_TIME - 1000);
+
+        // extending by less than the remaining time in redis keeps it
+        assertTrue(lock.extend(0));
+        assertTrue(server.pttl("lostReplyLock") > EXPIRED_TIME);
+        lock.release();
+    }
+}
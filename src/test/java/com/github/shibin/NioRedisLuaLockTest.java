@@ -0,0 +1,118 @@
+package com.github.shibin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * NioRedisLuaLock over a RespConnection, through a FaultProxy in front of a FakeRedisServer.
+ */
+public class NioRedisLuaLockTest {
+
+    private static final long EXPIRED_TIME = 5000;
+    private static final byte[] PING = RespConnection.encode(1, "PING");
+
+    private FakeRedisServer server;
+    private FaultProxy proxy;
+    private RespConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        proxy = new FaultProxy("127.0.0.1", server.getPort());
+        connection = new RespConnection("127.0.0.1", proxy.getPort(), 200, RespConnection.DEFAULT_BUFFER_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        proxy.close();
+        server.close();
+    }
+
+    @Test
+    public void acquireExtendRelease() throws Exception {
+        NioRedisLuaLock lock = new NioRedisLuaLock(connection, "nioLock", EXPIRED_TIME);
+        assertTrue(lock.acquire());
+        assertEquals(lock.getTokenAsString(), server.get("nioLock"));
+
+        assertTrue(lock.extend(EXPIRED_TIME));
+        assertTrue(server.pttl("nioLock") > EXPIRED_TIME);
+
+        lock.release();
+        assertNull(server.get("nioLock"));
+    }
+
+    @Test
+    public void connectionDroppedAfterTimeout() throws Exception {
+        proxy.dropReplies(1);
+        try {
+            connection.call(PING);
+            fail();
+        } catch (JedisConnectionException e) {
+            assertFalse(connection.isConnected());
+        }
+
+        // the late reply of the lost command must not be read as the reply of the next one
+        assertEquals("PONG", new String((byte[]) connection.call(PING), "UTF-8"));
+        assertTrue(connection.isConnected());
+    }
+
+    @Test
+    public void acquiredDespiteLostReply() throws Exception {
+        NioRedisLuaLock lock = new NioRedisLuaLock(connection, "nioLock", EXPIRED_TIME);
+        assertTrue(lock.acquire());
+        lock.release();
+
+        proxy.dropReplies(1);
+        assertTrue(lock.acquire());
+        assertEquals(lock.getTokenAsString(), server.get("nioLock"));
+        lock.release();
+        assertNull(server.get("nioLock"));
+    }
+
+    @Test
+    public void transportReopenedAfterConnectionError() throws Exception {
+        final AtomicInteger reconnects = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger(1);
+        RespTransport failingOnce = new RespTransport() {
+            public Object call(byte[] command) {
+                return connection.call(command);
+            }
+
+            public long callInteger(byte[] prefix, String token) {
+                return connection.callInteger(prefix, token);
+            }
+
+            public long callInteger(byte[] prefix, String token, long time) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new JedisConnectionException("Connection reset");
+                }
+                return connection.callInteger(prefix, token, time);
+            }
+
+            public void reconnect() {
+                reconnects.incrementAndGet();
+                connection.reconnect();
+            }
+        };
+
+        NioRedisLuaLock lock = new NioRedisLuaLock(failingOnce, "nioLock", EXPIRED_TIME);
+        assertTrue(lock.acquire());
+        assertEquals(1, reconnects.get());
+        lock.release();
+    }
+
+    @Test
+    public void noJedisClient() throws Exception {
+        NioRedisLuaLock lock = new NioRedisLuaLock(connection, "nioLock");
+        lock.setJedisClient(new Jedis("127.0.0.1", server.getPort()));
+        assertNull(lock.getJedisClient());
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.shibin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that PipelinedConnection matches the replies to the callers, against a server replying to
+ * each command with its last argument as an integer, or with an error when that argument is negative.
+ * The server drops the connection on the argument DROP.
+ */
+public class PipelinedConnectionTest {
+
+    private static final byte[] PREFIX = RespConnection.encode(3, "ECHO");
+    private static final long DROP = 999999999L;
+
+    private ServerSocket server;
+    private Thread serverThread;
+    private PipelinedConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        serverThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    serve(socket);
+                                } catch (IOException e) {
+                                    // dropped
+                                }
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        });
+        serverThread.start();
+        connection = new PipelinedConnection(new RespConnection("127.0.0.1", server.getLocalPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        server.close();
+        serverThread.join(1000);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\r') {
+            if (b < 0) {
+                throw new IOException("closed");
+            }
+            line.append((char) b);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    private static void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+        try {
+            while (true) {
+                int argc = Integer.parseInt(readLine(in).substring(1));
+                String last = null;
+                for (int i = 0; i < argc; i++) {
+                    readLine(in);
+                    last = readLine(in);
+                }
+                if (last.equals(String.valueOf(DROP))) {
+                    return;
+                }
+                String reply = last.startsWith("-") ? "-ERR negative\r\n" : ":" + last + "\r\n";
+                out.write(SafeEncoder.encode(reply));
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void matchRepliesOfConcurrentCallers() throws Exception {
+        final int threads = 16;
+        final int calls = 500;
+        final AtomicInteger mismatches = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < calls; i++) {
+                        long value = thread * calls + i;
+                        if (connection.callInteger(PREFIX, "token", value) != value) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        done.await();
+        assertEquals(0, mismatches.get());
+        assertEquals(threads * calls, connection.getCommandCount());
+        assertTrue(connection.getBatchCount() <= connection.getCommandCount());
+    }
+
+    @Test
+    public void errorOnlyFailsItsCommand() throws Exception {
+        try {
+            connection.callInteger(PREFIX, "token", -1);
+            fail();
+        } catch (JedisDataException e) {
+            assertEquals("ERR negative", e.getMessage());
+        }
+
+        assertEquals(7, connection.callInteger(PREFIX, "token", 7));
+    }
+
+    @Test
+    public void failPendingCommandsWhenClosed() throws Exception {
+        connection.close();
+
+        try {
+            connection.callInteger(PREFIX, "token", 1);
+            fail();
+        } catch (JedisConnectionException e) {
+            assertFalse(connection.isConnected());
+        }
+    }
+
+    @Test
+    public void reconnectAfterAConnectionError() throws Exception {
+        assertEquals(1, connection.callInteger(PREFIX, "token", 1));
+        try {
+            connection.callInteger(PREFIX, "token", DROP);
+            fail();
+        } catch (JedisConnectionException e) {
+            assertFalse(connection.isConnected());
+        }
+
+        try {
+            connection.callInteger(PREFIX, "token", 2);
+            fail();
+        } catch (JedisConnectionException e) {
+            // has to be reconnected first
+        }
+
+        connection.reconnect();
+        connection.reconnect();
+        assertTrue(connection.isConnected());
+        assertEquals(3, connection.callInteger(PREFIX, "token", 3));
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.shibin;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * The conditions of RedisLockAdapter against a FakeRedisServer, awaited and signalled from two threads.
+ */
+public class RedisConditionTest {
+
+    private static final String WAITERS_KEY = "conditionLock:condition:0:waiters";
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+    private Jedis inspect;
+    private JedisPool pool;
+    private RedisLockAdapter adapter;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+        inspect = new Jedis("127.0.0.1", server.getPort());
+        pool = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort());
+        adapter = new RedisLockAdapter(new RedisLuaLock(jedis, "conditionLock", 5000, true, 1000, 20), pool);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        pool.close();
+        jedis.close();
+        inspect.close();
+        server.close();
+    }
+
+    private void awaitWaiters(String count) throws Exception {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!count.equals(inspect.get(WAITERS_KEY))) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void signalWakesUpTheWaiter() throws Exception {
+        final Condition condition = adapter.newCondition();
+        Future<Boolean> awaited = executor.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                adapter.lock();
+                try {
+                    return condition.await(5, TimeUnit.SECONDS);
+                } finally {
+                    adapter.unlock();
+                }
+            }
+        });
+
+        awaitWaiters("1");
+        long pttl = inspect.pttl(WAITERS_KEY);
+        assertTrue("pttl " + pttl, pttl > 0 && pttl <= RedisLockAdapter.WAITERS_EXPIRED_TIME_MILLIS);
+
+        long start = System.currentTimeMillis();
+        adapter.lock();
+        try {
+            condition.signal();
+        } finally {
+            adapter.unlock();
+        }
+
+        assertTrue(awaited.get(3, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals("0", inspect.get(WAITERS_KEY));
+    }
+
+    @Test
+    public void timedOutWaiterCancelsItsWait() throws Exception {
+        Condition condition = adapter.newCondition();
+        adapter.lock();
+        try {
+            assertFalse(condition.await(100, TimeUnit.MILLISECONDS));
+            assertNotNull(adapter.getLock().getTokenAsString());
+        } finally {
+            adapter.unlock();
+        }
+
+        assertEquals("0", inspect.get(WAITERS_KEY));
+
+        // a signal without waiters pushes no wake token
+        adapter.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            adapter.unlock();
+        }
+        assertEquals(Long.valueOf(0), inspect.llen("conditionLock:condition:0"));
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.shibin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * RedisFunctionLock against a FakeRedisServer running the functions library.
+ */
+public class RedisFunctionLockTest {
+
+    private static final long EXPIRED_TIME = 5000;
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        server.close();
+    }
+
+    private long installedVersion() {
+        return (Long) RedisCommands.call(jedis, "FCALL_RO", "redislock_version", "0");
+    }
+
+    private static String library(long version) {
+        return RedisFunctionLock.LUA_LIBRARY.replace("return " + RedisFunctionLock.LIBRARY_VERSION + " ",
+                "return " + version + " ");
+    }
+
+    @Test
+    public void acquireReleaseAndExtend() throws Exception {
+        RedisFunctionLock lock = new RedisFunctionLock(jedis, "functionLock", EXPIRED_TIME, false);
+        assertTrue(lock.acquire());
+        assertEquals(RedisFunctionLock.LIBRARY_VERSION, installedVersion());
+        assertEquals(lock.getTokenAsString(), server.get("functionLock"));
+        assertTrue(lock.getRemainingTime() > EXPIRED_TIME - 1000);
+
+        Jedis other = new Jedis("127.0.0.1", server.getPort());
+        try {
+            assertFalse(new RedisFunctionLock(other, "functionLock", EXPIRED_TIME, false).acquire());
+        } finally {
+            other.close();
+        }
+
+        assertTrue(lock.extend(EXPIRED_TIME));
+        assertTrue(server.pttl("functionLock") > EXPIRED_TIME);
+
+        lock.release();
+        assertNull(server.get("functionLock"));
+        assertEquals(-2, lock.getRemainingTime());
+    }
+
+    @Test
+    public void olderLibraryIsReplaced() throws Exception {
+        RedisCommands.call(jedis, "FUNCTION", "LOAD", library(1));
+        assertEquals(1, installedVersion());
+
+        RedisFunctionLock lock = new RedisFunctionLock(jedis, "functionLock", EXPIRED_TIME, false);
+        assertTrue(lock.acquire());
+        assertEquals(RedisFunctionLock.LIBRARY_VERSION, installedVersion());
+        lock.release();
+    }
+
+    @Test
+    public void newerLibraryIsKept() throws Exception {
+        long newer = RedisFunctionLock.LIBRARY_VERSION + 1;
+        RedisCommands.call(jedis, "FUNCTION", "LOAD", library(newer));
+
+        RedisFunctionLock lock = new RedisFunctionLock(jedis, "functionLock", EXPIRED_TIME, false);
+        assertTrue(lock.acquire());
+        assertEquals(newer, installedVersion());
+        lock.release();
+    }
+
+    @Test
+    public void flushedLibraryIsReloaded() throws Exception {
+        RedisFunctionLock lock = new RedisFunctionLock(jedis, "functionLock", EXPIRED_TIME, false);
+        assertTrue(lock.acquire());
+        lock.release();
+
+        RedisCommands.call(jedis, "FUNCTION", "FLUSH");
+        assertTrue(lock.acquire());
+        assertEquals(lock.getTokenAsString(), server.get("functionLock"));
+        lock.release();
+    }
+
+    @Test
+    public void acquireAllOrNone() throws Exception {
+        List<String> names = Arrays.asList("{bulk}:a", "{bulk}:b", "{bulk}:c");
+        RedisFunctionLock lock = new RedisFunctionLock(jedis, "{bulk}:a", EXPIRED_TIME, false);
+        jedis.set("{bulk}:c", "other");
+
+        assertFalse(lock.acquireAll(names, "token", EXPIRED_TIME));
+        assertNull(server.get("{bulk}:a"));
+        assertNull(server.get("{bulk}:b"));
+
+        jedis.del("{bulk}:c");
+        jedis.set("{bulk}:a", "token");
+        assertTrue(lock.acquireAll(names, "token", EXPIRED_TIME));
+        for (String name : names) {
+            assertEquals("token", server.get(name));
+            assertTrue(server.pttl(name) > EXPIRED_TIME - 1000);
+        }
+        assertTrue(lock.acquireAll(Collections.<String>emptyList(), "token", EXPIRED_TIME));
+    }
+
+    @Test
+    public void statusAndReleaseAll() throws Exception {
+        List<String> names = Arrays.asList("{bulk}:a", "{bulk}:b", "{bulk}:c");
+        RedisFunctionLock lock = new RedisFunctionLock(jedis, "{bulk}:a", EXPIRED_TIME, false);
+        assertTrue(lock.acquireAll(names.subList(0, 2), "token", EXPIRED_TIME));
+
+        List<LockInfo> infos = lock.getStatus(names);
+        assertEquals(3, infos.size());
+        assertEquals("{bulk}:a", infos.get(0).getLockName());
+        assertEquals("token", infos.get(0).getToken());
+        assertTrue(infos.get(1).getRemainingTime() > EXPIRED_TIME - 1000);
+        assertFalse(infos.get(2).isHeld());
+        assertEquals(-2, infos.get(2).getRemainingTime());
+
+        jedis.set("{bulk}:c", "other");
+        assertEquals(2, lock.releaseAll(names, "token"));
+        assertNull(server.get("{bulk}:a"));
+        assertNull(server.get("{bulk}:b"));
+        assertEquals("other", server.get("{bulk}:c"));
+    }
+}
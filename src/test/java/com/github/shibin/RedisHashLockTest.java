@@ -0,0 +1,87 @@
+package com.github.shibin;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * RedisHashLock against a FakeRedisServer.
+ */
+public class RedisHashLockTest {
+
+    private static final long EXPIRED_TIME = 5000;
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+    private Jedis other;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+        other = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        other.close();
+        server.close();
+    }
+
+    @Test
+    public void acquireExtendRelease() throws Exception {
+        RedisHashLock lock = new RedisHashLock(jedis, "locks", "hashLock", EXPIRED_TIME, 4);
+        assertTrue(lock.acquire());
+        assertEquals(lock.getTokenAsString(), other.hget(lock.getHashKey(), "hashLock"));
+
+        RedisHashLock contender = new RedisHashLock(other, "locks", "hashLock", EXPIRED_TIME, 4);
+        long ttl = contender.doTryAcquire("contender", EXPIRED_TIME);
+        assertTrue(ttl > 0 && ttl <= EXPIRED_TIME);
+
+        assertTrue(lock.extend(EXPIRED_TIME));
+        assertTrue(contender.doTryAcquire("contender", EXPIRED_TIME) > EXPIRED_TIME);
+
+        // releasing with a wrong token must keep the lock
+        contender.doRelease("contender");
+        assertEquals(lock.getTokenAsString(), other.hget(lock.getHashKey(), "hashLock"));
+        assertFalse(contender.doExtend("contender", EXPIRED_TIME));
+
+        lock.release();
+        assertNull(other.hget(lock.getHashKey(), "hashLock"));
+        assertEquals(AbstractLock.ACQUIRED, contender.doTryAcquire("contender", EXPIRED_TIME));
+    }
+
+    @Test
+    public void locksOfABucketAreIndependent() throws Exception {
+        RedisHashLock first = new RedisHashLock(jedis, "locks", "first", EXPIRED_TIME, 1);
+        RedisHashLock second = new RedisHashLock(other, "locks", "second", EXPIRED_TIME, 1);
+        assertEquals("locks:0", first.getHashKey());
+        assertEquals(first.getHashKey(), second.getHashKey());
+
+        assertTrue(first.acquire());
+        assertTrue(second.acquire());
+        first.release();
+        assertNotNull(other.hget("locks:0", "second"));
+        second.release();
+    }
+
+    @Test
+    public void tokensAreRandomAndCompact() throws Exception {
+        RedisHashLock lock = new RedisHashLock(jedis, "locks", "hashLock");
+        Set<String> tokens = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String token = lock.newToken();
+            assertEquals(22, token.length());
+            assertTrue(token.matches("[A-Za-z0-9_-]+"));
+            tokens.add(token);
+        }
+        assertEquals(1000, tokens.size());
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.shibin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import static org.junit.Assert.*;
+
+public class RedisLockAdapterTest {
+
+    private InMemoryLock.Store store;
+    private RedisLockAdapter adapter;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new InMemoryLock.Store();
+        adapter = new RedisLockAdapter(new InMemoryLock(store, "adaptedLock", 1000), null);
+    }
+
+    @Test
+    public void tryLockFailsWhileHeldElsewhere() throws Exception {
+        InMemoryLock other = new InMemoryLock(store, "adaptedLock", 1000);
+        assertTrue(other.acquire());
+
+        assertFalse(adapter.tryLock());
+
+        long start = System.currentTimeMillis();
+        assertFalse(adapter.tryLock(100, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+
+        other.release();
+        assertTrue(adapter.tryLock());
+        adapter.unlock();
+    }
+
+    @Test
+    public void lockAndUnlock() throws Exception {
+        adapter.lock();
+        assertNotNull(adapter.getLock().getTokenAsString());
+        adapter.unlock();
+        assertNull(adapter.getLock().getTokenAsString());
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void awaitWithoutTheLock() throws Exception {
+        Condition condition = adapter.newCondition();
+        condition.await();
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void signalWithoutTheLock() throws Exception {
+        Condition condition = adapter.newCondition();
+        condition.signal();
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.shibin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * RedisNativeLock against a FakeRedisServer, with and without 'DELEX'.
+ */
+public class RedisNativeLockTest {
+
+    private static final long EXPIRED_TIME = 5000;
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+    private Jedis other;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+        other = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        other.close();
+        server.close();
+    }
+
+    private void assertAcquireExtendRelease() throws Exception {
+        RedisNativeLock lock = new RedisNativeLock(jedis, "nativeLock", EXPIRED_TIME, false);
+        assertTrue(lock.acquire());
+        assertEquals(lock.getTokenAsString(), server.get("nativeLock"));
+
+        RedisNativeLock contender = new RedisNativeLock(other, "nativeLock", EXPIRED_TIME, false);
+        assertTrue(contender.doTryAcquire("contender", EXPIRED_TIME) > 0);
+        assertFalse(contender.acquire());
+
+        assertTrue(lock.extend(EXPIRED_TIME));
+        assertTrue(server.pttl("nativeLock") > EXPIRED_TIME);
+
+        // releasing with a wrong token must keep the lock
+        contender.doRelease("contender");
+        assertEquals(lock.getTokenAsString(), server.get("nativeLock"));
+
+        lock.release();
+        assertNull(server.get("nativeLock"));
+        assertTrue(contender.acquire());
+        contender.release();
+    }
+
+    @Test
+    public void compareAndDelete() throws Exception {
+        server.setVersion("8.4.0");
+        assertAcquireExtendRelease();
+    }
+
+    @Test
+    public void scriptReleaseOnOlderServers() throws Exception {
+        server.setVersion("7.2.4");
+        assertAcquireExtendRelease();
+    }
+
+    @Test
+    public void leaseLongerThanAnInt() throws Exception {
+        long leaseTime = Integer.MAX_VALUE + 1000L;
+        RedisNativeLock lock = new RedisNativeLock(jedis, "nativeLock", leaseTime, false);
+        assertTrue(lock.acquire());
+        assertTrue(server.pttl("nativeLock") > Integer.MAX_VALUE);
+
+        RedisNativeLock contender = new RedisNativeLock(other, "nativeLock", leaseTime, false);
+        assertTrue(contender.doTryAcquire("contender", leaseTime) > Integer.MAX_VALUE);
+        lock.release();
+    }
+}
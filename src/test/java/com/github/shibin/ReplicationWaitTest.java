@@ -0,0 +1,180 @@
+package com.github.shibin;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * Acquires and extends waiting for replicas against a FakeRedisServer answering 'WAIT'.
+ */
+public class ReplicationWaitTest {
+
+    private static final long EXPIRED_TIME = 5000;
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedis.close();
+        server.close();
+    }
+
+    @Test
+    public void durableWhenEnoughReplicasAcknowledge() throws Exception {
+        server.setReplicas(2);
+        RedisLuaLock lock = new RedisLuaLock(jedis, "replicatedLock", EXPIRED_TIME);
+        lock.setDurability(1, 1000);
+
+        assertTrue(lock.acquire());
+        assertEquals(2, lock.getAckedReplicas());
+        assertTrue(lock.extend(1000));
+        lock.release();
+
+        RedisLuaLock.ReplicationStats stats = lock.getReplicationStats();
+        assertEquals(2, stats.getWaits());
+        assertEquals(0, stats.getDegraded());
+        assertTrue(stats.getMaxWaitTime(TimeUnit.MILLISECONDS) < 1000);
+    }
+
+    @Test
+    public void degradedInsteadOfFailingWhenTheBudgetIsExceeded() throws Exception {
+        server.setReplicas(0);
+        RedisLuaLock lock = new RedisLuaLock(jedis, "replicatedLock", EXPIRED_TIME);
+        lock.setDurability(1, 50);
+
+        assertTrue(lock.acquire());
+        assertEquals(0, lock.getAckedReplicas());
+        assertEquals(lock.getTokenAsString(), server.get("replicatedLock"));
+
+        RedisLuaLock.ReplicationStats stats = lock.getReplicationStats();
+        assertEquals(1, stats.getWaits());
+        assertEquals(1, stats.getDegraded());
+        assertTrue(stats.getWaitTime(TimeUnit.MILLISECONDS) >= 50);
+
+        lock.release();
+        lock.resetReplicationStats();
+        assertEquals(0, lock.getReplicationStats().getWaits());
+    }
+
+    @Test
+    public void failedAcquireStillReportsTheHolder() throws Exception {
+        server.setReplicas(1);
+        RedisLuaLock holder = new RedisLuaLock(jedis, "replicatedLock", EXPIRED_TIME);
+        assertTrue(holder.acquire());
+
+        Jedis other = new Jedis("127.0.0.1", server.getPort());
+        try {
+            RedisLuaLock lock = new RedisLuaLock(other, "replicatedLock", EXPIRED_TIME, false);
+            lock.setDurability(1, 1000);
+            assertFalse(lock.acquire());
+            assertEquals(1, lock.getReplicationStats().getWaits());
+        } finally {
+            other.close();
+        }
+
+        holder.release();
+    }
+
+    @Test
+    public void degradedIsReportedPerLease() throws Exception {
+        server.setReplicas(1);
+        final RedisLuaLock lock = new RedisLuaLock(jedis, "replicatedLock", EXPIRED_TIME);
+        lock.setDurability(1, 50);
+        assertEquals(-1, lock.getLeaseAckedReplicas());
+
+        assertTrue(lock.acquire());
+        assertEquals(1, lock.getLeaseAckedReplicas());
+        assertFalse(lock.isLeaseDegraded());
+
+        // an extend reaching no replica degrades the lease for good
+        server.setReplicas(0);
+        assertTrue(lock.extend(1000));
+        server.setReplicas(1);
+        assertTrue(lock.extend(1000));
+        assertEquals(1, lock.getAckedReplicas());
+        assertEquals(0, lock.getLeaseAckedReplicas());
+        assertTrue(lock.isLeaseDegraded());
+
+        // the lease of another lock does not share the record
+        Jedis other = new Jedis("127.0.0.1", server.getPort());
+        try {
+            RedisLuaLock otherLock = new RedisLuaLock(other, "otherLock", EXPIRED_TIME);
+            otherLock.setDurability(1, 50);
+            assertTrue(otherLock.acquire());
+            assertFalse(otherLock.isLeaseDegraded());
+            otherLock.release();
+        } finally {
+            other.close();
+        }
+
+        lock.release();
+        assertEquals(-1, lock.getLeaseAckedReplicas());
+
+        // a new lease starts durable again
+        assertTrue(lock.acquire());
+        assertFalse(lock.isLeaseDegraded());
+        lock.release();
+    }
+
+    @Test
+    public void forgetLeasesEndingWithoutARelease() throws Exception {
+        server.setReplicas(1);
+        RedisLuaLock lock = new RedisLuaLock(jedis, "replicatedLock", 150, false);
+        lock.setDurability(1, 50);
+        lock.setAdaptiveLeasePolicy(new AdaptiveLeasePolicy(0.9, 20, 50, 5000, 100));
+
+        // the renewal fails once another client took the lock
+        assertTrue(lock.acquire());
+        assertEquals(1, lock.getTrackedLeases());
+        Jedis other = new Jedis("127.0.0.1", server.getPort());
+        try {
+            other.set("replicatedLock", "stolen");
+            Thread.sleep(300);
+            assertFalse(lock.isHeld());
+            assertEquals(0, lock.getTrackedLeases());
+            other.del("replicatedLock");
+        } finally {
+            other.close();
+        }
+
+        // a dropped lease runs out on the server
+        assertTrue(lock.acquire());
+        assertEquals(1, lock.getTrackedLeases());
+        lock.dropLease();
+        assertEquals(0, lock.getTrackedLeases());
+        assertEquals(-1, lock.getLeaseAckedReplicas());
+    }
+
+    @Test
+    public void reacquireAfterALostReplyWaitsForTheReplicas() throws Exception {
+        server.setReplicas(1);
+        FaultProxy proxy = new FaultProxy("127.0.0.1", server.getPort());
+        Jedis proxied = new Jedis("127.0.0.1", proxy.getPort(), 200);
+        try {
+            RedisLuaLock lock = new RedisLuaLock(proxied, "replicatedLock", EXPIRED_TIME);
+            lock.setDurability(1, 1000);
+
+            proxy.dropReplies(1);
+            assertTrue(lock.acquire());
+            assertEquals(lock.getTokenAsString(), server.get("replicatedLock"));
+            assertEquals(1, lock.getReplicationStats().getWaits());
+            assertEquals(1, lock.getLeaseAckedReplicas());
+            lock.release();
+        } finally {
+            proxied.close();
+            proxy.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.shibin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the encoding and the parsing of RespConnection against a canned server.
+ */
+public class RespConnectionTest {
+
+    private ServerSocket server;
+    private Socket accepted;
+    private RespConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        connection = new RespConnection("127.0.0.1", server.getLocalPort());
+        accepted = server.accept();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        accepted.close();
+        server.close();
+    }
+
+    private String receive(int length) throws Exception {
+        InputStream in = accepted.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        while (received.size() < length) {
+            received.write(in.read());
+        }
+        return SafeEncoder.encode(received.toByteArray());
+    }
+
+    private void reply(String reply) throws Exception {
+        OutputStream out = accepted.getOutputStream();
+        out.write(SafeEncoder.encode(reply));
+        out.flush();
+    }
+
+    @Test
+    public void encodeCommand() throws Exception {
+        connection.writeRaw(RespConnection.encode(4, "EVALSHA", "abc", "1"));
+        connection.writeBulk("token");
+        connection.flush();
+
+        String expected = "*4\r\n$7\r\nEVALSHA\r\n$3\r\nabc\r\n$1\r\n1\r\n$5\r\ntoken\r\n";
+        assertEquals(expected, receive(expected.length()));
+    }
+
+    @Test
+    public void encodeLongs() throws Exception {
+        connection.writeArrayHeader(3);
+        connection.writeBulk(0);
+        connection.writeBulk(1234567890123L);
+        connection.writeBulk(-42);
+        connection.flush();
+
+        String expected = "*3\r\n$1\r\n0\r\n$13\r\n1234567890123\r\n$3\r\n-42\r\n";
+        assertEquals(expected, receive(expected.length()));
+    }
+
+    @Test
+    public void readIntegers() throws Exception {
+        reply(":1\r\n:-2\r\n:30000\r\n");
+
+        assertEquals(1, connection.readInteger());
+        assertEquals(-2, connection.readInteger());
+        assertEquals(30000, connection.readInteger());
+    }
+
+    @Test
+    public void readReplies() throws Exception {
+        reply("$5\r\nhello\r\n*3\r\n$-1\r\n:7\r\n+OK\r\n");
+
+        assertEquals("hello", SafeEncoder.encode((byte[]) connection.readReply()));
+        List list = (List) connection.readReply();
+        assertNull(list.get(0));
+        assertEquals(7L, list.get(1));
+        assertEquals("OK", SafeEncoder.encode((byte[]) list.get(2)));
+    }
+
+    @Test
+    public void readError() throws Exception {
+        reply("-NOSCRIPT No matching script\r\n");
+
+        try {
+            connection.readInteger();
+            fail();
+        } catch (JedisDataException e) {
+            assertTrue(e.getMessage().startsWith("NOSCRIPT"));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.shibin;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ShardedLockServiceTest {
+
+    private ShardedLockService service;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new ShardedLockService(Arrays.asList(new Jedis("10.0.0.1", 6379), new Jedis("10.0.0.2", 6379),
+                new Jedis("10.0.0.3", 6379)));
+    }
+
+    @Test
+    public void lockNamesAreSpreadOverTheShards() throws Exception {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 30000; i++) {
+            String shard = service.getShard("lock-" + i).getName();
+            counts.put(shard, counts.containsKey(shard) ? counts.get(shard) + 1 : 1);
+        }
+
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue("shard count " + count, count > 7000 && count < 13000);
+        }
+    }
+
+    @Test
+    public void addingAShardRemapsAFraction() throws Exception {
+        List<String> before = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            before.add(service.getShard("lock-" + i).getName());
+        }
+
+        service.addShard("10.0.0.4:6379", new Jedis("10.0.0.4", 6379));
+
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String after = service.getShard("lock-" + i).getName();
+            if (!after.equals(before.get(i))) {
+                assertEquals("10.0.0.4:6379", after);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 1500 && moved < 3500);
+    }
+
+    @Test
+    public void unhealthyShardIsSkippedOnlyWhenEnabled() throws Exception {
+        ShardedLockService.Shard owner = service.getShard("someLock");
+        for (int i = 0; i < service.getFailureThreshold(); i++) {
+            owner.failed();
+        }
+        assertFalse(owner.isHealthy());
+        assertSame(owner, service.getShard("someLock"));
+
+        service.setSkipUnhealthyShards(true);
+        assertNotSame(owner, service.getShard("someLock"));
+
+        owner.succeeded();
+        assertSame(owner, service.getShard("someLock"));
+    }
+
+    /**
+     * Acquire and release locks of distinct names from several threads, many of them on the same shard.
+     */
+    private static void lockConcurrently(final ShardedLockService service) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int acquired = 0;
+                        for (int i = 0; i < 50; i++) {
+                            AbstractLock lock = service.newLock("lock-" + thread + "-" + (i % 5), 5000);
+                            if (lock.acquire()) {
+                                acquired++;
+                                lock.extend(1000);
+                                lock.release();
+                            }
+                        }
+                        return acquired;
+                    }
+                }));
+            }
+
+            for (Future<Integer> future : futures) {
+                assertEquals(Integer.valueOf(50), future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void locksOfASharedConnectionTakeTurns() throws Exception {
+        FakeRedisServer first = new FakeRedisServer();
+        FakeRedisServer second = new FakeRedisServer();
+        Jedis firstClient = new Jedis("127.0.0.1", first.getPort());
+        Jedis secondClient = new Jedis("127.0.0.1", second.getPort());
+        try {
+            ShardedLockService shared = new ShardedLockService(Arrays.asList(firstClient, secondClient));
+            lockConcurrently(shared);
+            for (ShardedLockService.Shard shard : shared.getShards()) {
+                assertTrue(shard.isHealthy());
+                assertEquals(0, shard.getFailures());
+            }
+        } finally {
+            firstClient.close();
+            secondClient.close();
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void locksOfAPooledShardBorrowConnections() throws Exception {
+        FakeRedisServer first = new FakeRedisServer();
+        FakeRedisServer second = new FakeRedisServer();
+        JedisPool firstPool = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", first.getPort());
+        JedisPool secondPool = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", second.getPort());
+        try {
+            ShardedLockService pooled = new ShardedLockService();
+            pooled.addShard("first", firstPool);
+            pooled.addShard("second", secondPool);
+            lockConcurrently(pooled);
+
+            assertEquals(0, firstPool.getNumActive());
+            assertEquals(0, secondPool.getNumActive());
+            assertTrue(first.getCommandCount() > 0);
+            assertTrue(second.getCommandCount() > 0);
+        } finally {
+            firstPool.close();
+            secondPool.close();
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void connectionFailuresMarkTheShardUnhealthy() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        int deadPort = closed.getLocalPort();
+        closed.close();
+
+        FakeRedisServer live = new FakeRedisServer();
+        Jedis liveClient = new Jedis("127.0.0.1", live.getPort());
+        Jedis deadClient = new Jedis("127.0.0.1", deadPort);
+        try {
+            ShardedLockService health = new ShardedLockService();
+            health.addShard("live", liveClient);
+            health.addShard("dead", deadClient);
+
+            String lockName = null;
+            for (int i = 0; lockName == null; i++) {
+                if (health.getShard("lock-" + i).getName().equals("dead")) {
+                    lockName = "lock-" + i;
+                }
+            }
+            ShardedLockService.Shard dead = health.getShard(lockName);
+
+            while (dead.isHealthy()) {
+                try {
+                    health.newLock(lockName).acquire(false, 0);
+                    fail();
+                } catch (JedisConnectionException e) {
+                    // counted by the shard
+                }
+            }
+            assertTrue(dead.getFailures() >= health.getFailureThreshold());
+            assertSame(dead, health.getShard(lockName));
+
+            health.setSkipUnhealthyShards(true);
+            AbstractLock lock = health.newLock(lockName);
+            assertTrue(lock.acquire(false, 0));
+            assertEquals(lock.getTokenAsString(), live.get(lockName));
+            lock.release();
+        } finally {
+            liveClient.close();
+            deadClient.close();
+            live.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.shibin;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Computes values once with concurrent callers against a FakeRedisServer.
+ */
+public class SingleFlightTest {
+
+    private FakeRedisServer server;
+    private JedisPool pool;
+    private SingleFlight singleFlight;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(16);
+        pool = new JedisPool(config, "127.0.0.1", server.getPort());
+        singleFlight = new SingleFlight(pool, 300, 10000, 5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.destroy();
+        server.close();
+    }
+
+    private List<String> getConcurrently(int threads, final String key, final SingleFlight.Computation computation)
+            throws Exception {
+        final List<String> values = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String value = singleFlight.get(key, computation);
+                        synchronized (values) {
+                            values.add(value);
+                        }
+                    } catch (LockException e) {
+                        // a failed computation
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        return values;
+    }
+
+    @Test
+    public void computeOnceForConcurrentCallers() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        List<String> values = getConcurrently(8, "value", new SingleFlight.Computation() {
+            public String compute() throws Exception {
+                Thread.sleep(100);
+                return "computed-" + computations.incrementAndGet();
+            }
+        });
+
+        assertEquals(1, computations.get());
+        assertEquals(8, values.size());
+        for (String value : values) {
+            assertEquals("computed-1", value);
+        }
+        assertEquals("computed-1", server.get("value"));
+        assertNull(server.get("value:lock"));
+    }
+
+    @Test
+    public void hitWithoutComputing() throws Exception {
+        singleFlight.get("cached", new SingleFlight.Computation() {
+            public String compute() {
+                return "first";
+            }
+        });
+
+        assertEquals("first", singleFlight.get("cached", new SingleFlight.Computation() {
+            public String compute() {
+                fail("the value is cached");
+                return null;
+            }
+        }));
+        assertTrue(server.pttl("cached") > 9000);
+    }
+
+    @Test
+    public void waitersTakeOverAFailedComputation() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        List<String> values = getConcurrently(4, "failing", new SingleFlight.Computation() {
+            public String compute() throws Exception {
+                Thread.sleep(50);
+                if (computations.incrementAndGet() == 1) {
+                    throw new IllegalStateException("first computation fails");
+                }
+                return "recovered";
+            }
+        });
+
+        assertEquals(2, computations.get());
+        assertEquals(3, values.size());
+        for (String value : values) {
+            assertEquals("recovered", value);
+        }
+    }
+
+    @Test
+    public void takeOverWhenTheWinnerDies() throws Exception {
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.set("orphan:lock", "dead-winner", "NX", "PX", 200);
+        } finally {
+            jedis.close();
+        }
+
+        long start = System.currentTimeMillis();
+        assertEquals("late", singleFlight.get("orphan", new SingleFlight.Computation() {
+            public String compute() {
+                return "late";
+            }
+        }));
+        assertTrue(System.currentTimeMillis() - start >= 190);
+    }
+
+    @Test
+    public void waiterCountedOnceAcrossItsWaits() throws Exception {
+        final SingleFlight longLocks = new SingleFlight(pool, 5000, 10000, 5000);
+        Jedis jedis = pool.getResource();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            jedis.set("busy:lock", "first-winner", "NX", "PX", 300);
+            Future<String> waited = executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return longLocks.get("busy", new SingleFlight.Computation() {
+                        public String compute() {
+                            return "computed";
+                        }
+                    });
+                }
+            });
+
+            // the lock is taken over by another winner before the first wait of one second ends
+            Thread.sleep(500);
+            jedis.set("busy:lock", "second-winner", "NX", "PX", 3000);
+            Thread.sleep(1000);
+            assertEquals("1", jedis.get("busy:waiters"));
+
+            jedis.rpush("busy:notify", "vpublished");
+            assertEquals("published", waited.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+            jedis.close();
+        }
+    }
+
+    @Test
+    public void winnerDropsTheCopiesOfTheLastValue() throws Exception {
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.rpush("expired:notify", "vstale", "vstale");
+        } finally {
+            jedis.close();
+        }
+
+        List<String> values = getConcurrently(4, "expired", new SingleFlight.Computation() {
+            public String compute() throws Exception {
+                Thread.sleep(100);
+                return "fresh";
+            }
+        });
+
+        assertEquals(4, values.size());
+        for (String value : values) {
+            assertEquals("fresh", value);
+        }
+    }
+
+    @Test
+    public void hitIsOneEvalsha() throws Exception {
+        SingleFlight.Computation computation = new SingleFlight.Computation() {
+            public String compute() {
+                return "cached";
+            }
+        };
+        singleFlight.get("hit", computation);
+
+        long commands = server.getCommandCount();
+        assertEquals("cached", singleFlight.get("hit", computation));
+        assertEquals(1, server.getCommandCount() - commands);
+
+        // the scripts are loaded again after a flush
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.scriptFlush();
+        } finally {
+            jedis.close();
+        }
+        assertEquals("cached", singleFlight.get("hit", computation));
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.shibin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The sticky lease mode keeps the lease in redis across back-to-back local critical sections.
+ */
+public class StickyLeaseTest {
+
+    private InMemoryLock.Store store;
+    private InMemoryLock lock;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new InMemoryLock.Store();
+        lock = new InMemoryLock(store, "stickyLock", 1000);
+        lock.setStickyTime(200);
+    }
+
+    @Test
+    public void reacquireWithoutRoundTrip() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(lock.acquire());
+            lock.release();
+        }
+
+        assertEquals(1, lock.acquireCalls.get());
+        assertEquals(0, lock.releaseCalls.get());
+        assertNotNull(store.get("stickyLock"));
+    }
+
+    @Test
+    public void releasedWhenStickyTimeEnds() throws Exception {
+        assertTrue(lock.acquire());
+        lock.release();
+
+        Thread.sleep(400);
+
+        assertEquals(1, lock.releaseCalls.get());
+        assertNull(store.get("stickyLock"));
+    }
+
+    @Test
+    public void remoteClientWaitsAtMostTheStickyTime() throws Exception {
+        assertTrue(lock.acquire());
+        lock.release();
+
+        InMemoryLock remote = new InMemoryLock(store, "stickyLock", 1000);
+        remote.setMaxSleepTime(20);
+        remote.setBlockingTimeout(1000);
+
+        long start = System.currentTimeMillis();
+        assertTrue(remote.acquire());
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    @Test
+    public void noStickinessByDefault() throws Exception {
+        InMemoryLock plain = new InMemoryLock(store, "plainLock", 1000);
+        assertTrue(plain.acquire());
+        plain.release();
+
+        assertEquals(1, plain.releaseCalls.get());
+        assertNull(store.get("plainLock"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.shibin;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.*;
+
+/**
+ * The waiters set of RedisLuaLock against a FakeRedisServer: only the blocking acquires in sticky mode
+ * register, and a sticky holder releases the lock for them.
+ */
+public class StickyRedisLuaLockTest {
+
+    private static final long EXPIRED_TIME = 10000;
+    private static final long STICKY_TIME = 3000;
+
+    private FakeRedisServer server;
+    private Jedis jedis;
+    private Jedis other;
+    private Jedis inspect;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeRedisServer();
+        jedis = new Jedis("127.0.0.1", server.getPort());
+        other = new Jedis("127.0.0.1", server.getPort());
+        inspect = new Jedis("127.0.0.1", server.getPort());
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        jedis.close();
+        other.close();
+        inspect.close();
+        server.close();
+    }
+
+    private RedisLuaLock stickyLock(Jedis client, long blockingTimeout) {
+        RedisLuaLock lock = new RedisLuaLock(client, "stickyLock", EXPIRED_TIME, true, blockingTimeout, 20);
+        lock.setStickyTime(STICKY_TIME);
+        return lock;
+    }
+
+    @Test
+    public void waitersKeyHasTheHashTagOfTheLock() throws Exception {
+        assertEquals("{stickyLock}:waiters", stickyLock(jedis, 0).getWaitersKey());
+    }
+
+    @Test
+    public void nonBlockingTriesDoNotRegister() throws Exception {
+        RedisLuaLock holder = stickyLock(jedis, 0);
+        assertTrue(holder.acquire());
+
+        RedisLuaLock contender = stickyLock(other, 0);
+        assertFalse(contender.acquire(false, 0));
+        assertFalse(inspect.exists(contender.getWaitersKey()));
+
+        holder.release();
+    }
+
+    @Test
+    public void nonStickyWaitersDoNotRegister() throws Exception {
+        RedisLuaLock holder = new RedisLuaLock(jedis, "plainLock", EXPIRED_TIME);
+        assertTrue(holder.acquire());
+
+        RedisLuaLock contender = new RedisLuaLock(other, "plainLock", EXPIRED_TIME, true, 100, 20);
+        assertFalse(contender.acquire());
+        assertFalse(inspect.exists(contender.getWaitersKey()));
+
+        holder.release();
+    }
+
+    @Test
+    public void stickyHolderReleasesForARemoteWaiter() throws Exception {
+        final RedisLuaLock holder = stickyLock(jedis, 0);
+        assertTrue(holder.acquire());
+
+        final RedisLuaLock waiter = stickyLock(other, 5000);
+        Future<Long> waited = executor.submit(new Callable<Long>() {
+            public Long call() throws Exception {
+                long start = System.nanoTime();
+                assertTrue(waiter.acquire());
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                waiter.release();
+                return elapsed;
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!inspect.exists(holder.getWaitersKey())) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+
+        holder.release();
+        assertTrue(waited.get(5, TimeUnit.SECONDS) < STICKY_TIME);
+        // the waiter removed its token once it got the lock
+        assertEquals(Long.valueOf(0), inspect.scard(holder.getWaitersKey()));
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.shibin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import static org.junit.Assert.*;
+
+public class StripedRedisLockTest {
+
+    private StripedRedisLock stripedLock;
+
+    @Before
+    public void setUp() throws Exception {
+        stripedLock = new StripedRedisLock(new Jedis("localhost"), "customer", 16);
+    }
+
+    @Test
+    public void keysAreSpreadOverAllTheStripes() throws Exception {
+        int[] counts = new int[stripedLock.getStripeCount()];
+        for (int i = 0; i < 16000; i++) {
+            counts[stripedLock.stripeOf("customer-" + i)]++;
+        }
+
+        for (int count : counts) {
+            assertTrue("stripe count " + count, count > 500 && count < 1500);
+        }
+    }
+
+    @Test
+    public void sameKeySameStripe() throws Exception {
+        assertSame(stripedLock.getLock("customer-42"), stripedLock.getLock("customer-42"));
+        assertEquals("customer:" + stripedLock.stripeOf(42L), stripedLock.getLock(42L).getLockName());
+    }
+
+    /**
+     * The first key of each stripe, from stripe 0 up.
+     */
+    private static List<String> keysOfEachStripe(StripedRedisLock lock) {
+        String[] keys = new String[lock.getStripeCount()];
+        int found = 0;
+        for (int i = 0; found < keys.length; i++) {
+            int stripe = lock.stripeOf("customer-" + i);
+            if (keys[stripe] == null) {
+                keys[stripe] = "customer-" + i;
+                found++;
+            }
+        }
+        return Arrays.asList(keys);
+    }
+
+    @Test
+    public void acquireAllTakesTheStripesInOrderAndRollsBack() throws Exception {
+        FakeRedisServer server = new FakeRedisServer();
+        JedisPool pool = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort());
+        Jedis other = new Jedis("127.0.0.1", server.getPort());
+        try {
+            StripedRedisLock lock = new StripedRedisLock(pool, "customer", 4, 5000);
+            for (int i = 0; i < lock.getStripeCount(); i++) {
+                lock.getStripe(i).setBlocking(false);
+            }
+            List<String> keys = keysOfEachStripe(lock);
+
+            // another client holds stripe 2
+            other.set("customer:2", "other");
+
+            // given in reverse, the stripes are still taken from 0 up: 0 and 1 are acquired then released,
+            // 3 is never tried
+            List<String> reversed = new ArrayList<String>(keys);
+            Collections.reverse(reversed);
+            assertFalse(lock.acquireAll(reversed));
+            for (int i = 0; i < 4; i++) {
+                StripedRedisLock.StripeStats stats = lock.getStats(i);
+                assertEquals(i < 2 ? 1 : 0, stats.getAcquisitions());
+                assertEquals(i == 2 ? 1 : 0, stats.getFailedAttempts());
+                assertEquals(i == 2 ? 1 : 0, stats.getTimeouts());
+                if (i != 2) {
+                    assertNull(other.get("customer:" + i));
+                }
+            }
+
+            other.del("customer:2");
+            assertTrue(lock.acquireAll(keys));
+            for (int i = 0; i < 4; i++) {
+                assertEquals(lock.getStripe(i).getTokenAsString(), other.get("customer:" + i));
+            }
+            lock.releaseAll(keys);
+            for (int i = 0; i < 4; i++) {
+                assertNull(other.get("customer:" + i));
+            }
+
+            lock.resetStats();
+            assertEquals(0, lock.getStats(0).getAcquisitions());
+            assertEquals(0, pool.getNumActive());
+        } finally {
+            other.close();
+            pool.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void stripesOfASharedConnectionTakeTurns() throws Exception {
+        FakeRedisServer server = new FakeRedisServer();
+        Jedis jedis = new Jedis("127.0.0.1", server.getPort());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final StripedRedisLock lock = new StripedRedisLock(jedis, "customer", 4, 5000);
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (final String key : keysOfEachStripe(lock)) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int acquired = 0;
+                        for (int i = 0; i < 50; i++) {
+                            if (lock.acquire(key)) {
+                                acquired++;
+                                lock.release(key);
+                            }
+                        }
+                        return acquired;
+                    }
+                }));
+            }
+
+            for (Future<Integer> future : futures) {
+                assertEquals(Integer.valueOf(50), future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+            jedis.close();
+            server.close();
+        }
+    }
+}
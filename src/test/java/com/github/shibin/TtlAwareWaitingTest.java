@@ -0,0 +1,77 @@
+package com.github.shibin;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The waiters sleep until the lease of the current holder ends instead of the fixed sleep time.
+ */
+public class TtlAwareWaitingTest {
+
+    private InMemoryLock.Store store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new InMemoryLock.Store();
+    }
+
+    @Test
+    public void waitUntilTheLeaseEnds() throws Exception {
+        InMemoryLock holder = new InMemoryLock(store, "ttlLock", 50);
+        assertTrue(holder.acquire());
+
+        InMemoryLock waiter = new InMemoryLock(store, "ttlLock", 50);
+        waiter.setSleepTime(500);
+        waiter.setBlockingTimeout(1000);
+
+        long start = System.currentTimeMillis();
+        assertTrue(waiter.acquire());
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("waited " + elapsed + " ms", elapsed < 400);
+        assertTrue(waiter.acquireCalls.get() <= 3);
+    }
+
+    @Test
+    public void sleepIsBoundedByMaxSleepTime() throws Exception {
+        InMemoryLock holder = new InMemoryLock(store, "longLock", 10000);
+        assertTrue(holder.acquire());
+
+        InMemoryLock waiter = new InMemoryLock(store, "longLock", 10000);
+        waiter.setMaxSleepTime(20);
+        waiter.setBlockingTimeout(200);
+
+        assertFalse(waiter.acquire());
+        assertTrue(waiter.acquireCalls.get() >= 5);
+    }
+
+    @Test
+    public void wakeUpOnLocalRelease() throws Exception {
+        final InMemoryLock lock = new InMemoryLock(store, "sharedLock", 10000);
+        lock.setMaxSleepTime(10000);
+        lock.setBlockingTimeout(5000);
+        assertTrue(lock.acquire());
+
+        final long[] elapsed = new long[1];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    lock.acquire();
+                    elapsed[0] = System.currentTimeMillis() - start;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+
+        Thread.sleep(100);
+        lock.release();
+        thread.join();
+
+        assertTrue("waited " + elapsed[0] + " ms", elapsed[0] < 1000);
+    }
+}